@@ -0,0 +1,387 @@
+// Desktop benchmark for the native pipeline. It replays every video in a
+// directory through the app's own decoding, tracking, animation and blitting
+// code; visual_view.cpp is compiled in whole, with stand-ins for the Android
+// headers. Each stage is timed per frame, and the results are written as
+// JSON and compared against an earlier run.
+//
+// usage: benchmark [options] <tracker> <tracker params> <avatar> <video directory>
+//   -o <file>          write the results here rather than to stdout
+//   -b <file>          compare against these earlier results
+//   -t <fraction>      how much slower a stage may get before it counts as a
+//                      regression (default 0.1)
+//   -n <frames>        stop each video after this many frames
+//   -s <width>x<height> size of the screen frames are blitted to
+//                      (default 1280x720)
+//   -r <orientation>   0, 90, 180 or 270, as from the view (default 0)
+//   -g <milliseconds>  frame budget for the governor (default 0, which
+//                      always tracks at full quality)
+//   -f <faces>         track up to this many faces at once, on as many
+//                      threads as there are cores (default 1)
+//
+// Exits with 1 if any stage regressed and 2 if the benchmark could not run.
+
+#include "visual_view.cpp"
+
+#include <dirent.h>
+#include <unistd.h>
+
+#include <map>
+
+// The minimum change, in milliseconds, worth calling a regression; any less
+// is timer noise on stages that barely take any time
+#define REGRESSION_FLOOR 0.05
+
+// What is timed for every frame, in order; "frame" is all of them together
+const char *const stage_names[] = {
+	"decode", "convert", "track", "color", "animate", "blit", "frame"
+};
+
+enum {
+	BENCH_DECODE,
+	BENCH_CONVERT,
+	BENCH_TRACK,
+	BENCH_COLOR,
+	BENCH_ANIMATE,
+	BENCH_BLIT,
+	BENCH_FRAME,
+	NUM_BENCH_STAGES
+};
+
+struct options_t {
+	std::string outpath;
+	std::string baselinepath;
+	double tolerance;
+	int maxframes;
+	cv::Size screen;
+	int orientation;
+	double budget;
+	int maxfaces;
+};
+
+struct summary_t {
+	size_t count;
+	double mean, p50, p90, p99; // Milliseconds
+	double persecond;
+};
+
+double elapsed_ms(int64_t start) {
+	return (stats_clock() - start)/1000.0;
+}
+
+// Every file in path that does not start with a dot, sorted so that runs
+// are comparable
+std::vector<std::string> list_videos(const std::string &path) {
+	std::vector<std::string> videos;
+	DIR *dir;
+
+	if(!(dir = opendir(path.c_str())))
+		return videos;
+
+	while(struct dirent *entry = readdir(dir)) {
+		if(entry->d_name[0] != '.')
+			videos.push_back(path + "/" + entry->d_name);
+	}
+
+	closedir(dir);
+
+	std::sort(videos.begin(),videos.end());
+
+	return videos;
+}
+
+summary_t summarize(std::vector<double> samples) {
+	summary_t summary = summary_t();
+	double total = 0;
+
+	summary.count = samples.size();
+	if(samples.empty())
+		return summary;
+
+	std::sort(samples.begin(),samples.end());
+	for(size_t i = 0; i < samples.size(); i++)
+		total += samples[i];
+
+	summary.mean = total/samples.size();
+	summary.p50 = samples[(samples.size() - 1)*50/100];
+	summary.p90 = samples[(samples.size() - 1)*90/100];
+	summary.p99 = samples[(samples.size() - 1)*99/100];
+	summary.persecond = total > 0 ? 1000*samples.size()/total : 0;
+
+	return summary;
+}
+
+// Run one video through the pipeline the way the worker and presenter
+// threads would, adding each frame's timings to samples; returns how many
+// frames it got through
+int run_video(data_t *data, const options_t &options, std::vector<double> samples[]) {
+	frame_t frame;
+	cv::Mat screen(options.screen,CV_8UC4);
+	int64_t start, framestart;
+	int frames = 0;
+
+	if(!open_video(data->video,data->videopath))
+		return -1;
+
+	// Each video starts from scratch
+	if(data->facetracker)
+		data->facetracker->Reset();
+	clear_faces(data);
+	data->nextfaceid = 1;
+	init_governor(data,options.budget);
+	data->calibration++;
+
+	while(options.maxframes <= 0 || frames < options.maxframes) {
+		framestart = start = stats_clock();
+		if(!decode_video_frame(data->video))
+			break;
+		samples[BENCH_DECODE].push_back(elapsed_ms(start));
+
+		start = stats_clock();
+		convert_video_frame(data->video,PIX_FMT_BGR24,frame.input);
+		samples[BENCH_CONVERT].push_back(elapsed_ms(start));
+
+		frame.number = ++data->framecount;
+
+		start = stats_clock();
+		track_frame(data,frame);
+		samples[BENCH_TRACK].push_back(elapsed_ms(start));
+
+		govern_tracking(data,samples[BENCH_TRACK].back()/1000);
+
+		// As present_thread() does it, minus the screen
+		cv::Mat target = screen(fit_frame(oriented_size(frame.input,false,frame.orientation),
+			screen.cols,screen.rows));
+
+		if(should_animate(data,frame)) {
+			start = stats_clock();
+			orient_frame(frame.input,frame.oriented,frame.orientation);
+			samples[BENCH_COLOR].push_back(elapsed_ms(start));
+
+			start = stats_clock();
+			animate_frame(data,frame);
+			samples[BENCH_ANIMATE].push_back(elapsed_ms(start));
+
+			start = stats_clock();
+			blit_rgba(frame.oriented,false,ORIENTATION_NONE,target);
+		} else {
+			start = stats_clock();
+			blit_rgba(frame.input,false,frame.orientation,target);
+		}
+		samples[BENCH_BLIT].push_back(elapsed_ms(start));
+
+		samples[BENCH_FRAME].push_back(elapsed_ms(framestart));
+
+		frames++;
+	}
+
+	close_video(data->video);
+
+	return frames;
+}
+
+jsoncons::json summary_to_json(const summary_t &summary) {
+	jsoncons::json json;
+
+	json["count"] = summary.count;
+	json["mean_ms"] = summary.mean;
+	json["p50_ms"] = summary.p50;
+	json["p90_ms"] = summary.p90;
+	json["p99_ms"] = summary.p99;
+	json["per_second"] = summary.persecond;
+
+	return json;
+}
+
+// The worker's own histograms, for the split between orienting and tracking
+// that the harness cannot see from outside track_frame()
+jsoncons::json stats_to_json(const int32_t *stats) {
+	const char *const names[NUM_STAGES] = {
+		"decode", "convert", "orient", "track", "color", "animate", "blit", "present"
+	};
+	jsoncons::json json;
+	jsoncons::json histograms;
+	jsoncons::json strengths(jsoncons::json::an_array);
+
+	for(int stage = 0; stage < NUM_STAGES; stage++) {
+		jsoncons::json buckets(jsoncons::json::an_array);
+		for(int b = 0; b < STATS_BUCKETS; b++)
+			buckets.add(stats[STATS_STAGES + stage*STATS_BUCKETS + b]);
+		histograms[names[stage]] = std::move(buckets);
+	}
+
+	for(int i = 0; i < STATS_FACE_STRENGTHS; i++)
+		strengths.add(stats[STATS_FACE_STRENGTH + i]);
+
+	json["histograms"] = std::move(histograms);
+	json["face_strengths"] = std::move(strengths);
+	json["detections"] = stats[STATS_DETECTIONS];
+
+	return json;
+}
+
+// Print how every stage fared against the baseline; returns whether any of
+// them got slower by more than the tolerance at the median or the 90th
+// percentile. Stages missing from either side are skipped.
+bool compare_to_baseline(const std::string &path, const std::map<std::string,summary_t> &summaries, double tolerance) {
+	const jsoncons::json baseline = jsoncons::json::parse_file(path);
+	bool regressed = false;
+
+	fprintf(stderr,"%-8s %10s %10s %8s %10s %10s %8s\n","stage","base p50","p50","change","base p90","p90","change");
+
+	for(std::map<std::string,summary_t>::const_iterator current = summaries.begin(); current != summaries.end(); ++current) {
+		const std::string &name = current->first;
+		double oldp50, oldp90;
+
+		try {
+			oldp50 = baseline["stages"][name]["p50_ms"].as<double>();
+			oldp90 = baseline["stages"][name]["p90_ms"].as<double>();
+		} catch(const std::exception &) {
+			continue;
+		}
+
+		if(current->second.count == 0)
+			continue;
+
+		double p50 = current->second.p50;
+		double p90 = current->second.p90;
+		bool worse = (p50 > oldp50*(1 + tolerance) && p50 - oldp50 > REGRESSION_FLOOR)
+			|| (p90 > oldp90*(1 + tolerance) && p90 - oldp90 > REGRESSION_FLOOR);
+
+		fprintf(stderr,"%-8s %10.3f %10.3f %+7.1f%% %10.3f %10.3f %+7.1f%%%s\n",name.c_str(),
+			oldp50,p50,oldp50 > 0 ? 100*(p50/oldp50 - 1) : 0.0,
+			oldp90,p90,oldp90 > 0 ? 100*(p90/oldp90 - 1) : 0.0,worse ? "  REGRESSED" : "");
+
+		regressed = regressed || worse;
+	}
+
+	return regressed;
+}
+
+void usage(const char *name) {
+	fprintf(stderr,"usage: %s [-o results.json] [-b baseline.json] [-t tolerance] [-n frames] [-s WxH]\n"
+		"\t[-r orientation] [-g budget ms] [-f faces] <tracker> <tracker params> <avatar> <video directory>\n",name);
+}
+
+int main(int argc, char **argv) {
+	std::vector<double> samples[NUM_BENCH_STAGES];
+	std::map<std::string,summary_t> summaries;
+	std::vector<int32_t> stats(STATS_SIZE);
+	std::vector<std::string> videos;
+	jsoncons::json results, stages, videosjson(jsoncons::json::an_array);
+	options_t options;
+	int opt, frames = 0;
+
+	options.tolerance = 0.1;
+	options.maxframes = 0;
+	options.screen = cv::Size(1280,720);
+	options.orientation = 0;
+	options.budget = 0;
+	options.maxfaces = 1;
+
+	while((opt = getopt(argc,argv,"o:b:t:n:s:r:g:f:")) != -1) {
+		switch(opt) {
+		case 'o': options.outpath = optarg; break;
+		case 'b': options.baselinepath = optarg; break;
+		case 't': options.tolerance = atof(optarg); break;
+		case 'n': options.maxframes = atoi(optarg); break;
+		case 'r': options.orientation = atoi(optarg); break;
+		case 'g': options.budget = atof(optarg)/1000; break;
+		case 'f': options.maxfaces = std::max(1,atoi(optarg)); break;
+
+		case 's':
+			if(sscanf(optarg,"%dx%d",&options.screen.width,&options.screen.height) != 2) {
+				usage(argv[0]);
+				return 2;
+			}
+			break;
+
+		default:
+			usage(argv[0]);
+			return 2;
+		}
+	}
+
+	if(argc - optind != 4) {
+		usage(argv[0]);
+		return 2;
+	}
+
+	// Set up as spawnWorker() would for MODE_FILE, minus recording
+	std::unique_ptr<data_t> data(new data_t());
+
+	data->mode = MODE_FILE;
+	data->recordformat = RECORD_POINTS;
+	data->enabled = true;
+	data->orientation = options.orientation;
+	data->stats = stats.data();
+
+	data->facetracker = std::unique_ptr<FACETRACKER::FaceTracker>(FACETRACKER::LoadFaceTracker(argv[optind]));
+	data->facetrackerparams = std::unique_ptr<FACETRACKER::FaceTrackerParams>(FACETRACKER::LoadFaceTrackerParams(argv[optind + 1]));
+	data->avatar = std::unique_ptr<AVATAR::Avatar>(AVATAR::LoadAvatar(argv[optind + 2]));
+
+	if(!data->facetracker || !data->facetrackerparams || !data->avatar) {
+		fprintf(stderr,"cannot load the tracker, its parameters or the avatar\n");
+		return 2;
+	}
+
+	data->avatar->setAvatar(2);
+
+	videos = list_videos(argv[optind + 3]);
+	if(videos.empty()) {
+		fprintf(stderr,"no videos in %s\n",argv[optind + 3]);
+		return 2;
+	}
+
+	data->maxfaces = options.maxfaces;
+	if(data->maxfaces > 1)
+		init_face_pool(data->facepool,std::min((int) sysconf(_SC_NPROCESSORS_ONLN),data->maxfaces));
+
+	for(size_t i = 0; i < videos.size(); i++) {
+		data->videopath = videos[i];
+		data->framecount = 0;
+
+		int videoframes = run_video(data.get(),options,samples);
+		if(videoframes < 0) {
+			fprintf(stderr,"cannot open %s\n",videos[i].c_str());
+			return 2;
+		}
+
+		fprintf(stderr,"%s: %d frames\n",videos[i].c_str(),videoframes);
+
+		videosjson.add(videos[i]);
+		frames += videoframes;
+	}
+
+	if(data->maxfaces > 1)
+		destroy_face_pool(data->facepool);
+
+	for(int stage = 0; stage < NUM_BENCH_STAGES; stage++) {
+		summaries[stage_names[stage]] = summarize(samples[stage]);
+		stages[stage_names[stage]] = summary_to_json(summaries[stage_names[stage]]);
+	}
+
+	results["videos"] = std::move(videosjson);
+	results["frames"] = frames;
+	results["screen"] = to_string(options.screen.width) + "x" + to_string(options.screen.height);
+	results["orientation"] = options.orientation;
+	results["budget_ms"] = 1000*options.budget;
+	results["max_faces"] = options.maxfaces;
+	results["stages"] = std::move(stages);
+	results["worker"] = stats_to_json(stats.data());
+
+	if(options.outpath.empty())
+		std::cout << jsoncons::pretty_print(results) << std::endl;
+	else {
+		std::ofstream out(options.outpath);
+		out << jsoncons::pretty_print(results) << std::endl;
+		if(!out) {
+			fprintf(stderr,"cannot write %s\n",options.outpath.c_str());
+			return 2;
+		}
+	}
+
+	if(!options.baselinepath.empty())
+		return compare_to_baseline(options.baselinepath,summaries,options.tolerance) ? 1 : 0;
+
+	return 0;
+}
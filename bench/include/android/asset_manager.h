@@ -0,0 +1,33 @@
+// Desktop stand-in for the NDK's android/asset_manager.h; there is no APK, so
+// no asset can be opened
+#ifndef BENCH_ANDROID_ASSET_MANAGER_H
+#define BENCH_ANDROID_ASSET_MANAGER_H
+
+#include <sys/types.h>
+
+enum {
+	AASSET_MODE_UNKNOWN = 0,
+	AASSET_MODE_RANDOM = 1,
+	AASSET_MODE_STREAMING = 2,
+	AASSET_MODE_BUFFER = 3
+};
+
+struct AAssetManager;
+struct AAsset;
+
+inline AAsset *AAssetManager_open(AAssetManager *, const char *, int) {
+	return 0;
+}
+
+inline const void *AAsset_getBuffer(AAsset *) {
+	return 0;
+}
+
+inline off_t AAsset_getLength(AAsset *) {
+	return 0;
+}
+
+inline void AAsset_close(AAsset *) {
+}
+
+#endif
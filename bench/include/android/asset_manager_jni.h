@@ -0,0 +1,13 @@
+// Desktop stand-in for the NDK's android/asset_manager_jni.h
+#ifndef BENCH_ANDROID_ASSET_MANAGER_JNI_H
+#define BENCH_ANDROID_ASSET_MANAGER_JNI_H
+
+#include <jni.h>
+
+#include <android/asset_manager.h>
+
+inline AAssetManager *AAssetManager_fromJava(JNIEnv *, jobject) {
+	return 0;
+}
+
+#endif
@@ -0,0 +1,40 @@
+// Desktop stand-in for the NDK's android/bitmap.h; there are no bitmaps, so
+// every call fails
+#ifndef BENCH_ANDROID_BITMAP_H
+#define BENCH_ANDROID_BITMAP_H
+
+#include <cstdint>
+
+#include <jni.h>
+
+#define ANDROID_BITMAP_RESULT_SUCCESS 0
+#define ANDROID_BITMAP_RESULT_BAD_PARAMETER -1
+
+enum AndroidBitmapFormat {
+	ANDROID_BITMAP_FORMAT_NONE = 0,
+	ANDROID_BITMAP_FORMAT_RGBA_8888 = 1
+};
+
+struct AndroidBitmapInfo {
+	uint32_t width;
+	uint32_t height;
+	uint32_t stride;
+	int32_t format;
+	uint32_t flags;
+};
+
+inline int AndroidBitmap_getInfo(JNIEnv *, jobject, AndroidBitmapInfo *info) {
+	*info = AndroidBitmapInfo();
+	return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+}
+
+inline int AndroidBitmap_lockPixels(JNIEnv *, jobject, void **pixels) {
+	*pixels = 0;
+	return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+}
+
+inline int AndroidBitmap_unlockPixels(JNIEnv *, jobject) {
+	return ANDROID_BITMAP_RESULT_BAD_PARAMETER;
+}
+
+#endif
@@ -0,0 +1,16 @@
+// Desktop stand-in for the NDK's android/log.h: everything goes to stderr
+#ifndef BENCH_ANDROID_LOG_H
+#define BENCH_ANDROID_LOG_H
+
+#include <cstdio>
+
+enum {
+	ANDROID_LOG_INFO = 4,
+	ANDROID_LOG_ERROR = 6
+};
+
+inline int __android_log_write(int prio, const char *tag, const char *text) {
+	return fprintf(stderr,"%c/%s: %s\n",prio >= ANDROID_LOG_ERROR ? 'E' : 'I',tag,text);
+}
+
+#endif
@@ -0,0 +1,53 @@
+// Desktop stand-in for the NDK's android/native_window_jni.h; there are no
+// windows, so every call fails
+#ifndef BENCH_ANDROID_NATIVE_WINDOW_JNI_H
+#define BENCH_ANDROID_NATIVE_WINDOW_JNI_H
+
+#include <cstdint>
+
+#include <jni.h>
+
+enum {
+	WINDOW_FORMAT_RGBA_8888 = 1
+};
+
+struct ANativeWindow;
+
+struct ARect {
+	int32_t left, top, right, bottom;
+};
+
+struct ANativeWindow_Buffer {
+	int32_t width, height, stride, format;
+	void *bits;
+	uint32_t reserved[6];
+};
+
+inline ANativeWindow *ANativeWindow_fromSurface(JNIEnv *, jobject) {
+	return 0;
+}
+
+inline void ANativeWindow_release(ANativeWindow *) {
+}
+
+inline int32_t ANativeWindow_getWidth(ANativeWindow *) {
+	return -1;
+}
+
+inline int32_t ANativeWindow_getHeight(ANativeWindow *) {
+	return -1;
+}
+
+inline int32_t ANativeWindow_setBuffersGeometry(ANativeWindow *, int32_t, int32_t, int32_t) {
+	return -1;
+}
+
+inline int32_t ANativeWindow_lock(ANativeWindow *, ANativeWindow_Buffer *, ARect *) {
+	return -1;
+}
+
+inline int32_t ANativeWindow_unlockAndPost(ANativeWindow *) {
+	return -1;
+}
+
+#endif
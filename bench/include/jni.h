@@ -0,0 +1,10 @@
+// The JDK's jni.h, made to take the JNIEnv ** that Android's AttachCurrentThread()
+// does
+#ifndef BENCH_JNI_H
+#define BENCH_JNI_H
+
+#include_next <jni.h>
+
+#define AttachCurrentThread(penv,args) AttachCurrentThread((void **) (penv),args)
+
+#endif
@@ -0,0 +1,11 @@
+package android.util;
+
+import java.io.Reader;
+
+// Desktop stand-in for Android's JsonReader, which was derived from Gson's and
+// has the same interface; only for running app code in the benchmarks
+public class JsonReader extends com.google.gson.stream.JsonReader {
+	public JsonReader(Reader in) {
+		super(in);
+	}
+}
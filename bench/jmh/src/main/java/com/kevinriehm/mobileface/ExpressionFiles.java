@@ -0,0 +1,105 @@
+package com.kevinriehm.mobileface;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+// Synthetic .expression.json recordings shaped like the ones the tracker
+// writes (see expression_to_json() in visual_view.cpp), for the benchmarks
+final class ExpressionFiles {
+	static final int numPoints = 66;
+	static final int numModes = 24;
+
+	static final double fps = 30;
+
+	// Every so often the tracker loses the face
+	private static final int noFaceInterval = 20;
+
+	private ExpressionFiles() {
+	}
+
+	// A recording of numFrames frames of either "points" or "params"; the
+	// same arguments always give the same file
+	static File write(String format, int numFrames) throws IOException {
+		boolean params = format.equals("params");
+		if(!params && !format.equals("points"))
+			throw new IllegalArgumentException("unknown expression format '" + format + "'");
+
+		File file = File.createTempFile("bench-" + format + "-" + numFrames + "-",".expression.json");
+		file.deleteOnExit();
+
+		Random random = new Random(numFrames);
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),"UTF-8"),1 << 16);
+
+		try {
+			out.write("{\"fps\":" + fps);
+
+			if(params) {
+				out.write(",\"basis\":{\"mean\":");
+				writePoints(out,random,3,100);
+				out.write(",\"modes\":[");
+				for(int j = 0; j < numModes; j++) {
+					if(j > 0) out.write(',');
+					writePoints(out,random,3,1);
+				}
+				out.write("]}");
+			}
+
+			out.write(",\"frames\":[");
+			for(int i = 0; i < numFrames; i++) {
+				if(i > 0) out.write(',');
+
+				out.write("{\"frame\":" + i);
+
+				if(i%noFaceInterval == noFaceInterval - 1) {
+					out.write(",\"has_face\":false}");
+					continue;
+				}
+
+				out.write(",\"has_face\":true");
+
+				if(params) {
+					out.write(",\"shape_params\":");
+					writeValues(out,random,numModes,10);
+					out.write(",\"pose_params\":");
+					writeValues(out,random,6,100);
+				} else {
+					out.write(",\"points2d\":");
+					writePoints(out,random,2,400);
+					out.write(",\"points3d\":");
+					writePoints(out,random,3,100);
+				}
+
+				out.write('}');
+			}
+			out.write("]}");
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+
+	// [[x, y(, z)], ...] at full double precision, as jsoncons prints them
+	private static void writePoints(Writer out, Random random, int numCoords, double range) throws IOException {
+		out.write('[');
+		for(int i = 0; i < numPoints; i++) {
+			if(i > 0) out.write(',');
+			writeValues(out,random,numCoords,range);
+		}
+		out.write(']');
+	}
+
+	private static void writeValues(Writer out, Random random, int numValues, double range) throws IOException {
+		out.write('[');
+		for(int i = 0; i < numValues; i++) {
+			if(i > 0) out.write(',');
+			out.write(Double.toString(range*(2*random.nextDouble() - 1)));
+		}
+		out.write(']');
+	}
+}
@@ -0,0 +1,82 @@
+package com.kevinriehm.mobileface;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Compressing frames as they are loaded and decoding them again for
+// playback, per frame
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionFramesBenchmark {
+	@Param({"1", "100", "10000", "100000"})
+	public int numFrames;
+
+	private float[][] faces;
+	private ExpressionFrames frames;
+
+	private ExpressionFrames.Decoder decoder;
+	private float[] decoded;
+	private int next;
+
+	// A face that drifts a little from frame to frame, as a tracked one does;
+	// only a few distinct faces are kept, to bound the memory this takes
+	@Setup(Level.Trial)
+	public void makeFrames() {
+		Random random = new Random(numFrames);
+
+		faces = new float[Math.min(numFrames,1024)][3*ExpressionFiles.numPoints];
+		for(int k = 0; k < faces[0].length; k++)
+			faces[0][k] = 100*(2*random.nextFloat() - 1);
+		for(int i = 1; i < faces.length; i++) {
+			for(int k = 0; k < faces[i].length; k++)
+				faces[i][k] = faces[i - 1][k] + 2*random.nextFloat() - 1;
+		}
+
+		frames = new ExpressionFrames(ExpressionFiles.numPoints);
+		for(int i = 0; i < numFrames; i++)
+			frames.append(true,faces[i%faces.length]);
+		frames.finish();
+
+		decoder = frames.newDecoder();
+		decoded = new float[3*ExpressionFiles.numPoints];
+		next = 0;
+	}
+
+	// Loading a whole recording
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ExpressionFrames append() {
+		ExpressionFrames loaded = new ExpressionFrames(ExpressionFiles.numPoints);
+		for(int i = 0; i < numFrames; i++)
+			loaded.append(true,faces[i%faces.length]);
+		loaded.finish();
+		return loaded;
+	}
+
+	// One frame of playback, moving forwards and wrapping around
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		blackhole.consume(decoder.decode(next,decoded,0));
+		blackhole.consume(decoded);
+
+		if(++next == numFrames) next = 0;
+	}
+}
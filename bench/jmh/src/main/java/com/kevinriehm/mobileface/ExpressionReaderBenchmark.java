@@ -0,0 +1,86 @@
+package com.kevinriehm.mobileface;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Loading an .expression.json recording, as ExpressionView.readExpressionFile()
+// does, minus the renderer
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionReaderBenchmark {
+	@Param({"1", "100", "10000", "100000"})
+	public int numFrames;
+
+	@Param({"points", "params"})
+	public String format;
+
+	private File file;
+
+	// Does what the view's listener does, without a view to tell
+	private static class Listener implements ExpressionReader.Listener {
+		volatile double fps;
+		volatile ExpressionFrames frames;
+		volatile float maxCoord = 1;
+		volatile float progress;
+		volatile boolean firstFrame;
+
+		public void onFps(double _fps) {
+			fps = _fps;
+		}
+
+		public void onFrames(ExpressionFrames _frames) {
+			frames = _frames;
+		}
+
+		public void onMaxCoord(float _maxCoord) {
+			maxCoord = Math.max(maxCoord,_maxCoord);
+		}
+
+		public void onProgress(float fraction) {
+			progress = fraction;
+		}
+
+		public void onFirstFrame() {
+			firstFrame = true;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void writeFile() throws Exception {
+		file = ExpressionFiles.write(format,numFrames);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public ExpressionFrames read() throws Exception {
+		ExpressionReader reader = new ExpressionReader(ExpressionFiles.numPoints,new Listener());
+
+		if(!reader.read(new FileInputStream(file),file.length()))
+			throw new IllegalStateException("'" + file + "' read as truncated");
+
+		return reader.getFrames();
+	}
+}
@@ -0,0 +1,93 @@
+package com.kevinriehm.mobileface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The startup work on raw resources: recovering the Twitter keys
+// (MainActivity.getObfuscatedData()) and parsing the triangle list
+// (AssetCache.getTriangles())
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawResourcesBenchmark {
+	@State(Scope.Benchmark)
+	public static class Key {
+		// Twitter consumer keys and secrets are about this long
+		@Param({"25", "50"})
+		public int length;
+
+		byte[] obfuscated;
+
+		// Like obfuscate_twitter_keys.pl: each character as a pair of bytes
+		// that XOR to it
+		@Setup(Level.Trial)
+		public void obfuscate() {
+			Random random = new Random(length);
+
+			obfuscated = new byte[2*length];
+			for(int i = 0; i < length; i++) {
+				byte c = (byte) ('A' + random.nextInt(26));
+				byte r = (byte) random.nextInt(255);
+				obfuscated[2*i] = (byte) (r ^ c);
+				obfuscated[2*i + 1] = r;
+			}
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Triangles {
+		byte[] data;
+
+		@Setup(Level.Trial)
+		public void readTriangles() throws Exception {
+			data = readAll(RawResourcesBenchmark.class.getResourceAsStream("/face_tri"));
+		}
+	}
+
+	@Benchmark
+	public String deobfuscate(Key key) throws Exception {
+		return RawResources.deobfuscate(new ByteArrayInputStream(key.obfuscated));
+	}
+
+	@Benchmark
+	public ShortBuffer parseTriangles(Triangles triangles) throws Exception {
+		return RawResources.parseTriangles(triangles.data);
+	}
+
+	private static byte[] readAll(InputStream input) throws Exception {
+		if(input == null)
+			throw new IllegalStateException("face_tri is missing from the benchmark jar");
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		try {
+			int numBytes;
+			byte[] buf = new byte[8192];
+			while((numBytes = input.read(buf)) > 0)
+				output.write(buf,0,numBytes);
+		} finally {
+			input.close();
+		}
+
+		return output.toByteArray();
+	}
+}
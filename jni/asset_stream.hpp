@@ -0,0 +1,44 @@
+#ifndef ASSET_STREAM_HPP
+#define ASSET_STREAM_HPP
+
+#include <cstddef>
+#include <istream>
+#include <streambuf>
+
+#include <android/asset_manager.h>
+
+// Reads an asset where it lies: AAsset_getBuffer() maps an asset stored
+// uncompressed straight out of the APK, and inflates a compressed one into
+// memory once. Either way nothing is copied out to a file first, and reads
+// come straight from the mapping.
+class asset_stream_t : public std::istream {
+public:
+	asset_stream_t(AAssetManager *manager, const char *name) : std::istream(NULL), asset(NULL) {
+		const void *data = NULL;
+
+		if(manager) asset = AAssetManager_open(manager,name,AASSET_MODE_BUFFER);
+		if(asset) data = AAsset_getBuffer(asset);
+
+		rdbuf(&buffer);
+		if(data) buffer.wrap((const char *) data,AAsset_getLength(asset));
+		else setstate(std::ios::failbit);
+	}
+
+	~asset_stream_t() {
+		if(asset) AAsset_close(asset);
+	}
+
+private:
+	// Hands out the asset's bytes as they are
+	struct buffer_t : public std::streambuf {
+		void wrap(const char *data, size_t size) {
+			char *begin = const_cast<char *>(data);
+			setg(begin,begin,begin + size);
+		}
+	};
+
+	buffer_t buffer;
+	AAsset *asset;
+};
+
+#endif
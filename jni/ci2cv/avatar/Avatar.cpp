@@ -58,6 +58,20 @@ Avatar* AVATAR::LoadAvatar(const char* fname)
   return model;
 }
 //============================================================================
+Avatar* AVATAR::LoadAvatar(std::istream &s)
+{
+  int type = -1; Avatar* model=NULL;
+  s.read(reinterpret_cast<char*>(&type), sizeof(type));
+  if (s && type == IOBinary::MYAVATAR) {
+    myAvatar *avatar = new myAvatar();
+    avatar->ReadBinary(s, false); model = avatar;
+  }
+  else
+    printf("ERROR(%s,%d) : unknown avatar type %d\n", 
+	   __FILE__,__LINE__,type);
+  return model;
+}
+//============================================================================
 void* AVATAR::LoadAvatarParams(const char* fname)
 {
   int type; void* model = NULL;
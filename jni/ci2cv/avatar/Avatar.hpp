@@ -47,16 +47,16 @@ namespace AVATAR
 	       const std::vector<cv::Point_<double> > &shape,      //shape describing user
 	       void* params=NULL)=0;//additional parameters
     virtual void
-    Read(std::ifstream &s,        //file stream to read from
+    Read(std::istream &s,        //file stream to read from
 	 bool readType = true)=0;
     virtual void
-    ReadBinary(std::ifstream &s,        //file stream to read from
+    ReadBinary(std::istream &s,        //file stream to read from
 	 bool readType = true)=0;
     virtual void 
     Write(std::ofstream &s, //file stream to write to
 	  bool binary = false)=0;
     // virtual void 
-    // Read(std::ifstream &s,        //file stream to read from
+    // Read(std::istream &s,        //file stream to read from
     // 	 bool readType = true)=0; //read type?
 
     // virtual void 
@@ -100,6 +100,9 @@ namespace AVATAR
   /** IO functions */
   Avatar* //contains pointer to avatar obj on return, null on failure
   LoadAvatar(const char* fname); //filename containing avatar model
+
+  Avatar* //as above, from a binary model already in memory
+  LoadAvatar(std::istream &s); //stream positioned at the model
   
   void*  //contains pointer to avatar param obj on return, null on failure
   LoadAvatarParams(const char* fname); //file containing avatar params
@@ -48,7 +48,7 @@ myAvatar::Thumbnail(int idx)
   cv::Mat thumb = _images[idx].clone(); return thumb;
 }
 //=============================================================================
-void myAvatar::Read(ifstream &s,bool readType)
+void myAvatar::Read(istream &s,bool readType)
 {
   if(readType){int type; s >> type; assert(type == AVATAR::IO::MYAVATAR);}
   int k; s >> k; 
@@ -108,7 +108,7 @@ void myAvatar::Read(ifstream &s,bool readType)
   return;
 }
 //=============================================================================
-void myAvatar::ReadBinary(ifstream &s,bool readType)
+void myAvatar::ReadBinary(istream &s,bool readType)
 {
   if(readType){
     int type; s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -1299,7 +1299,7 @@ KSmooth& KSmooth::operator=(KSmooth const&rhs)
   }return *this;
 }
 //=============================================================================
-void KSmooth::Read(ifstream &s)
+void KSmooth::Read(istream &s)
 {
   int N; s >> N >> _sigma; _x.resize(N); _y.resize(N);
   for(int i = 0; i < N; i++){
@@ -1308,7 +1308,7 @@ void KSmooth::Read(ifstream &s)
   }
 }
 //=============================================================================
-void KSmooth::ReadBinary(ifstream &s, bool readType)
+void KSmooth::ReadBinary(istream &s, bool readType)
 {
   if(readType){int type;
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -1395,7 +1395,7 @@ ShapeExpMap& ShapeExpMap::operator=(ShapeExpMap const&rhs)
   R_.create(3,3,CV_64F); Ri_.create(3,3,CV_64F); return *this;
 }
 //=============================================================================
-void ShapeExpMap::Read(ifstream &s)
+void ShapeExpMap::Read(istream &s)
 {
   int N; s >> N; _reg.resize(N); _pdm.Read(s); 
   for(unsigned i = 0; i < _reg.size(); i++)_reg[i].Read(s);
@@ -1404,7 +1404,7 @@ void ShapeExpMap::Read(ifstream &s)
   R_.create(3,3,CV_64F); Ri_.create(3,3,CV_64F); 
 }
 //=============================================================================
-void ShapeExpMap::ReadBinary(ifstream &s, bool readType)
+void ShapeExpMap::ReadBinary(istream &s, bool readType)
 {
   if(readType){int type;
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -48,8 +48,8 @@ namespace AVATAR
       std::ofstream s(fname); assert(s.is_open()); this->Write(s, binary);s.close(); 
       return;
     }
-    void Read(std::ifstream &s);
-    void ReadBinary(std::ifstream &s, bool readType = true);
+    void Read(std::istream &s);
+    void ReadBinary(std::istream &s, bool readType = true);
     void Write(std::ofstream &s, bool binary = false);
     
     void Train(std::vector<cv::Mat> &Y,std::vector<cv::Mat> &X,double sigma);
@@ -78,8 +78,8 @@ namespace AVATAR
       std::ofstream s(fname); assert(s.is_open()); this->Write(s, binary);s.close(); 
       return;
     }
-    void Read(std::ifstream &s);
-    void ReadBinary(std::ifstream &s, bool readType = true);
+    void Read(std::istream &s);
+    void ReadBinary(std::istream &s, bool readType = true);
     void Write(std::ofstream &s, bool binary = false);
     void Train(FACETRACKER::PDM3D &pdm,
 	       std::vector<std::vector<cv::Mat> > express,
@@ -138,10 +138,10 @@ namespace AVATAR
 	       const std::vector<cv::Point_<double> > &shape,     //shape describing user
 	       void* params=NULL); //additional parameters
     void 
-    Read(std::ifstream &s,      //file stream to read from
+    Read(std::istream &s,      //file stream to read from
 	 bool readType = true); //read type?
     void 
-    ReadBinary(std::ifstream &s,      //file stream to read from
+    ReadBinary(std::istream &s,      //file stream to read from
 	       bool readType = true); //read type?
     void 
     Write(std::ofstream &s, bool binary = false);  //file stream to write to
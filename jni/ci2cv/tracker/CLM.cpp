@@ -111,6 +111,40 @@ CLM& CLM::operator= (CLM const& rhs)
   }return *this;
 }
 //=============================================================================
+void CLM::Share(CLM const& rhs)
+{
+  _kWidth = rhs._kWidth;
+  _pdm.Share(rhs._pdm);
+  _plocal = rhs._plocal.clone();
+  _pglobl = rhs._pglobl.clone();
+  _refs = rhs._refs;
+  _cent = rhs._cent;
+  _visi.resize(rhs._visi.size());
+  _patch.resize(rhs._patch.size());
+  _detectorsNCC.resize(rhs._detectorsNCC.size());
+  for(size_t i = 0; i < rhs._visi.size(); i++)
+    _visi[i] = rhs._visi[i].clone();
+  for(size_t i = 0; i < rhs._patch.size(); i++){
+    _patch[i].resize(rhs._patch[i].size());
+    for(size_t j = 0; j < rhs._patch[i].size(); j++)
+      _patch[i][j].Share(rhs._patch[i][j]);
+  }
+  for(size_t i = 0; i < rhs._detectorsNCC.size(); i++)
+    _detectorsNCC[i].Share(rhs._detectorsNCC[i]);
+  cshape_.create(2*_pdm.nPoints(),1,CV_64F);
+  bshape_.create(2*_pdm.nPoints(),1,CV_64F);
+  oshape_.create(2*_pdm.nPoints(),1,CV_64F);
+  ms_.create(2*_pdm.nPoints(),1,CV_64F);
+  u_.create(6+_pdm.nModes(),1,CV_64F);
+  g_.create(6+_pdm.nModes(),1,CV_64F);
+  J_.create(2*_pdm.nPoints(),6+_pdm.nModes(),CV_64F);
+  H_.create(6+_pdm.nModes(),6+_pdm.nModes(),CV_64F);
+  prob_.resize(_pdm.nPoints());
+  pmem_.resize(_pdm.nPoints());
+  wmem_.resize(_pdm.nPoints());
+  return;
+}
+//=============================================================================
 void CLM::Init(PDM3D &s,cv::Mat &r, std::vector<cv::Mat> &c,
 	       std::vector<cv::Mat> &v,std::vector<std::vector<MPatch> > &p)
 {
@@ -197,7 +231,7 @@ void CLM::Write(ofstream &s, bool binary)
 return;
 }
 //=============================================================================
-void CLM::Read(ifstream &s,bool readType)
+void CLM::Read(istream &s,bool readType)
 {
   if (readType) {
     int type;
@@ -246,7 +280,7 @@ void CLM::Read(ifstream &s,bool readType)
   return;
 }
 //=============================================================================
-void CLM::ReadBinary(ifstream &s,bool readType)
+void CLM::ReadBinary(istream &s,bool readType)
 {
   if (readType) {
     int type;
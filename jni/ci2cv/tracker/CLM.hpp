@@ -53,13 +53,14 @@ namespace FACETRACKER
       this->Init(s,r,c,v,p);
     }
     CLM& operator=(CLM const&rhs);
+    void Share(CLM const&rhs);
     inline int nViews(){return _patch.size();}
     int GetViewIdx();
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s, bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s, bool readType = true);
     void Init(PDM3D &s,cv::Mat &r, std::vector<cv::Mat> &c,
 	      std::vector<cv::Mat> &v,std::vector<std::vector<MPatch> > &p);
     void Fit(cv::Mat& im, std::vector<int> &wSize,
@@ -256,7 +256,7 @@ DetectorNCC::DetectorNCC(std::string file, bool binary)
 // }
 
 void
-DetectorNCC::ReadBinary(std::ifstream &s, bool readType)
+DetectorNCC::ReadBinary(std::istream &s, bool readType)
 {
   if(readType){int type;
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -277,6 +277,17 @@ DetectorNCC::ReadBinary(std::ifstream &s, bool readType)
 
 }
 
+void
+DetectorNCC::Share(DetectorNCC const&rhs)
+{
+  _refs = rhs._refs;
+  _refs_zm = rhs._refs_zm;
+  _patch.resize(rhs._patch.size());
+  for(size_t i=0; i<rhs._patch.size(); i++)
+    _patch[i].Share(rhs._patch[i]);
+  prob_.clear(); pmem_.clear(); wmem_.clear();
+}
+
 void
 DetectorNCC::Write(std::ofstream &s, bool binary)
 {
@@ -294,7 +305,7 @@ DetectorNCC::Write(std::ofstream &s, bool binary)
 }
 
 void
-DetectorNCC::Read(std::ifstream &, bool)
+DetectorNCC::Read(std::istream &, bool)
 {
   std::cerr << "Reading DetectorNCC objects from text files is not supported" 
 	    << std::endl;
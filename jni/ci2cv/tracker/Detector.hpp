@@ -30,8 +30,8 @@ public:
   Detector(){};
   virtual ~Detector(){};
 
-  virtual void ReadBinary(std::ifstream& s, bool readType)=0;
-  virtual void Read(std::ifstream& s, bool readType)=0;
+  virtual void ReadBinary(std::istream& s, bool readType)=0;
+  virtual void Read(std::istream& s, bool readType)=0;
   virtual void Write(std::ofstream& s, bool binary = true)=0;
   virtual void Load(std::string fname, bool binary = true)=0;
 
@@ -70,11 +70,12 @@ public:
   DetectorNCC(std::string file, bool binary);
   ~DetectorNCC(){};
   
-  void ReadBinary(std::ifstream& s, bool readType = true);
+  void ReadBinary(std::istream& s, bool readType = true);
   void Write(std::ofstream &s, bool binary = true);
-  void Read(std::ifstream &s, bool readType = true);
+  void Read(std::istream &s, bool readType = true);
   void Load(std::string fname, bool binary = true);
   void Save(std::string fname, bool binary = true);
+  void Share(DetectorNCC const&rhs);
   
   bool response(cv::Mat& img, cv::Mat &shape,
 		cv::Size wSize, 
@@ -66,7 +66,7 @@ void FCheck::Write(ofstream &s, bool binary)
  return;
 }
 //===========================================================================
-void FCheck::Read(ifstream &s,bool readType)
+void FCheck::Read(istream &s,bool readType)
 {
   int type = -1;; 
   if(readType){s >> type; assert(type == IO::FCHECK);}
@@ -78,7 +78,7 @@ void FCheck::Read(ifstream &s,bool readType)
   return;
 }
 //===========================================================================
-void FCheck::ReadBinary(ifstream &s,bool readType)
+void FCheck::ReadBinary(istream &s,bool readType)
 {
   if(readType){int type; 
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -145,7 +145,7 @@ void MFCheck::Write(ofstream &s, bool binary)
   for(size_t i = 0; i < _fcheck.size(); i++)_fcheck[i].Write(s, binary); return;
 }
 //===========================================================================
-void MFCheck::Read(ifstream &s,bool readType)
+void MFCheck::Read(istream &s,bool readType)
 {
   int type = -1;
   if(readType){s >> type; assert(type == IO::MFCHECK);}
@@ -158,7 +158,7 @@ void MFCheck::Read(ifstream &s,bool readType)
   for(int i = 0; i < n; i++)_fcheck[i].Read(s); return;
 }
 //===========================================================================
-void MFCheck::ReadBinary(ifstream &s,bool readType)
+void MFCheck::ReadBinary(istream &s,bool readType)
 {
   if(readType){int type; 
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
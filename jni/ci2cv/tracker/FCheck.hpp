@@ -41,8 +41,8 @@ namespace FACETRACKER
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     bool Check(cv::Mat &im,cv::Mat &s);
     
   private:
@@ -66,8 +66,8 @@ namespace FACETRACKER
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     bool Check(int idx,cv::Mat &im,cv::Mat &s);
   };
   //===========================================================================
@@ -25,7 +25,7 @@ using namespace std;
 FDet::~FDet()
 {  
   if(storage_ != NULL)cvReleaseMemStorage(&storage_);
-  if(_cascade != NULL)cvReleaseHaarClassifierCascade(&_cascade);
+  if(_cascade != NULL && !shared_)cvReleaseHaarClassifierCascade(&_cascade);
 }
 //===========================================================================
 FDet& FDet::operator= (FDet const& rhs)
@@ -40,6 +40,18 @@ FDet& FDet::operator= (FDet const& rhs)
   this->small_img_ = rhs.small_img_.clone(); return *this;
 }
 //===========================================================================
+void FDet::Share(FDet const& rhs)
+{
+  this->_min_neighbours = rhs._min_neighbours;
+  this->_min_size = rhs._min_size;
+  this->_img_scale = rhs._img_scale;
+  this->_scale_factor = rhs._scale_factor;
+  if(storage_ == NULL)storage_ = cvCreateMemStorage(0);
+  if(_cascade != NULL && !shared_)cvReleaseHaarClassifierCascade(&_cascade);
+  this->_cascade = rhs._cascade; shared_ = true;
+  this->small_img_.release(); return;
+}
+//===========================================================================
 void FDet::Init(const char* fname,
 		const double img_scale,
 		const double scale_factor,
@@ -58,9 +70,21 @@ void FDet::Init(const char* fname,
 }
 //===========================================================================
 cv::Rect FDet::Detect(cv::Mat im)
+{
+  std::vector<cv::Rect> all = this->DetectAll(im);
+  int i,maxv; cv::Rect R(0,0,0,0);
+  for(i = 0,maxv = 0; i < int(all.size()); i++){
+    if(i == 0 || maxv < all[i].width*all[i].height){
+      maxv = all[i].width*all[i].height; R = all[i];
+    }
+  }
+  return R;
+}
+//===========================================================================
+std::vector<cv::Rect> FDet::DetectAll(cv::Mat im)
 {
   assert(im.type() == CV_8U);
-  cv::Mat gray; int i,maxv; cv::Rect R;
+  cv::Mat gray; int i; std::vector<cv::Rect> rv;
   int w = cvRound(im.cols/_img_scale);
   int h = cvRound(im.rows/_img_scale);
   if((small_img_.rows!=h) || (small_img_.cols!=w))small_img_.create(h,w,CV_8U);
@@ -72,15 +96,16 @@ cv::Rect FDet::Detect(cv::Mat im)
   CvSeq* obj = cvHaarDetectObjects(&simg,_cascade,storage_,
 				   _scale_factor,_min_neighbours,0,
 				   cv::Size(_min_size,_min_size));
-  if(obj->total == 0)return cv::Rect(0,0,0,0);
-  for(i = 0,maxv = 0; i < obj->total; i++){
+  rv.resize(obj->total);
+  for(i = 0; i < obj->total; i++){
     CvRect* r = (CvRect*)cvGetSeqElem(obj,i);
-    if(i == 0 || maxv < r->width*r->height){
-      maxv = r->width*r->height; R.x = r->x*_img_scale; R.y = r->y*_img_scale;
-      R.width  = r->width*_img_scale; R.height = r->height*_img_scale;
-    }
+    rv[i].x = r->x*_img_scale; rv[i].y = r->y*_img_scale;
+    rv[i].width  = r->width*_img_scale; rv[i].height = r->height*_img_scale;
   }
-  cvRelease((void**)(&obj)); return R;
+  //the sequence lives in storage_, so this only drops the pointer and is
+  //safe with no detections too
+  cvRelease((void**)(&obj));
+  return rv;
 }
 //===========================================================================
 void FDet::Load(const char* fname, bool binary)
@@ -176,7 +201,7 @@ void FDet::Write(ofstream &s, bool binary)
   return;
 }
 //===========================================================================
-void FDet::Read(ifstream &s,bool readType)
+void FDet::Read(istream &s,bool readType)
 {  
   int i,j,k,l,n,m;
   if(readType){int type; s >> type; assert(type == IO::FDET);}
@@ -230,7 +255,7 @@ void FDet::Read(ifstream &s,bool readType)
   }return;
 }
 //===========================================================================
-void  FDet::ReadBinary(ifstream &s,bool readType)
+void  FDet::ReadBinary(istream &s,bool readType)
 {  
 
   int i,j,k,l, n,m;
@@ -334,7 +359,7 @@ void SInit::Write(ofstream &s, bool binary)
  return;
 }
 //===========================================================================
-void SInit::Read(ifstream &s,bool readType)
+void SInit::Read(istream &s,bool readType)
 {
   int type = -1;
   if(readType){s >> type; assert(type == IO::SINIT);}
@@ -345,7 +370,7 @@ void SInit::Read(ifstream &s,bool readType)
   return;
 }
 //===========================================================================
-void SInit::ReadBinary(ifstream &s,bool readType)
+void SInit::ReadBinary(istream &s,bool readType)
 {
 
   if(readType){int type; 
@@ -358,6 +383,12 @@ void SInit::ReadBinary(ifstream &s,bool readType)
  return;
 }
 //===========================================================================
+void SInit::Share(SInit const& rhs)
+{
+  _fdet.Share(rhs._fdet); _rshape = rhs._rshape; _simil = rhs._simil;
+  temp_.release(); ncc_.release(); small_.release(); return;
+}
+//===========================================================================
 int SInit::InitShape(cv::Mat &im,cv::Mat &shape, cv::Rect r)
 {
   int i,n = _rshape.rows/2; double a,b,tx,ty;
@@ -379,23 +410,30 @@ int SInit::InitShape(cv::Mat &im,cv::Mat &shape, cv::Rect r)
   }return 0;
 }
 //===========================================================================
-cv::Rect SInit::ReDetect(cv::Mat &im)
+cv::Rect SInit::ReDetect(cv::Mat &im, cv::Rect roi)
 {
   if(temp_.rows == 0)return cv::Rect();
   int x,y; float v,vb=-2;
   int ww = im.cols,hh = im.rows;
-  int w = TSCALE*ww-temp_.cols+1,h = TSCALE*hh-temp_.rows+1;
   if((small_.rows != TSCALE*hh) || (small_.cols != TSCALE*ww))
     small_.create(TSCALE*hh,TSCALE*ww,CV_8U);
   cv::resize(im,small_,cv::Size(TSCALE*ww,TSCALE*hh),0,0,CV_INTER_LINEAR);
+  //only search roi, if it is given and can hold the template
+  cv::Rect S(0,0,small_.cols,small_.rows);
+  if((roi.width > 0) && (roi.height > 0)){
+    cv::Rect r = S & cv::Rect(roi.x*TSCALE,roi.y*TSCALE,
+			      roi.width*TSCALE,roi.height*TSCALE);
+    if((r.width >= temp_.cols) && (r.height >= temp_.rows))S = r;
+  }
+  int w = S.width-temp_.cols+1,h = S.height-temp_.rows+1;
   if((ncc_.rows != h) || (ncc_.cols != w))ncc_.create(h,w,CV_32F);
-  IplImage im_o = small_,temp_o = temp_,ncc_o = ncc_;
+  IplImage im_o = small_(S),temp_o = temp_,ncc_o = ncc_;
   cvMatchTemplate(&im_o,&temp_o,&ncc_o,CV_TM_CCOEFF_NORMED);
   cv::MatIterator_<float> p = ncc_.begin<float>(); cv::Rect R;  
   R.width = temp_.cols; R.height = temp_.rows;
   for(y = 0; y < h; y++){
     for(x = 0; x < w; x++){
-      v = *p++; if(v > vb){vb = v; R.x = x; R.y = y;}
+      v = *p++; if(v > vb){vb = v; R.x = S.x + x; R.y = S.y + y;}
     }
   }
   R.x *= 1.0/TSCALE; R.y *= 1.0/TSCALE; 
@@ -34,32 +34,34 @@ namespace FACETRACKER
     double                   _scale_factor;   /**< ...                      */
     CvHaarClassifierCascade* _cascade;        /**< ...                      */
 
-    FDet(){storage_=NULL;_cascade=NULL;}
-    FDet(const char* fname){this->Load(fname);}
+    FDet(){storage_=NULL;_cascade=NULL;shared_=false;}
+    FDet(const char* fname){shared_=false; this->Load(fname);}
     FDet(const char*  cascFile,
 	 const double img_scale, //1.3
 	 const double scale_factor = 1.1,
 	 const int    min_neighbours = 2,
 	 const int    min_size = 100){
-      this->Init(cascFile,img_scale,scale_factor,min_neighbours,min_size);
+      shared_=false; this->Init(cascFile,img_scale,scale_factor,min_neighbours,min_size);
     }
     ~FDet();
     FDet& operator=(FDet const&rhs);
+    void Share(FDet const&rhs); //rhs must outlive this
     void Init(const char* fname,
 	      const double img_scale = 1.3,
 	      const double scale_factor = 1.1,
 	      const int    min_neighbours = 2,
 	      const int    min_size = 30);
     cv::Rect Detect(cv::Mat im);
+    std::vector<cv::Rect> DetectAll(cv::Mat im);
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false
 	       );
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     
   private:
-    cv::Mat small_img_; CvMemStorage* storage_;
+    cv::Mat small_img_; CvMemStorage* storage_; bool shared_;
   };
   //===========================================================================
   /** Shape initializer */
@@ -73,11 +75,13 @@ namespace FACETRACKER
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     int InitShape(cv::Mat &im,cv::Mat &shape, cv::Rect r = cv::Rect(0,0,0,0));
+    void Share(SInit const&rhs);
     cv::Rect Detect(cv::Mat &im){return _fdet.Detect(im);}
-    cv::Rect ReDetect(cv::Mat &im);
+    std::vector<cv::Rect> DetectAll(cv::Mat &im){return _fdet.DetectAll(im);}
+    cv::Rect ReDetect(cv::Mat &im, cv::Rect roi = cv::Rect(0,0,0,0));
     cv::Rect Update(cv::Mat &im,cv::Mat &s,bool rsize);
   protected:
     cv::Mat temp_,ncc_,small_;
@@ -75,6 +75,34 @@ FaceTrackerParams * FACETRACKER::LoadFaceTrackerParams(const char* fname)
   }return model;
 }
 //============================================================================
+FaceTracker* FACETRACKER::LoadFaceTracker(std::istream &s)
+{
+  int type = -1; FaceTracker* model=NULL;
+  s.read(reinterpret_cast<char*>(&type), sizeof(type));
+  if(s && type == IOBinary::MYFACETRACKER){
+    myFaceTracker *tracker = new myFaceTracker();
+    tracker->ReadBinary(s, false); model = tracker;
+  }
+  else
+    printf("ERROR(%s,%d) : unknown facetracker type %d\n", 
+	   __FILE__,__LINE__,type);
+  return model;
+}
+//============================================================================
+FaceTrackerParams * FACETRACKER::LoadFaceTrackerParams(std::istream &s)
+{
+  int type = -1; FaceTrackerParams * model = NULL;
+  s.read(reinterpret_cast<char*>(&type), sizeof(type));
+  if(s && type == IOBinary::MYFACETRACKERPARAMS){
+    myFaceTrackerParams *params = new myFaceTrackerParams();
+    params->ReadBinary(s, false); model = params;
+  }
+  else
+    printf("ERROR(%s,%d) : unknown facetracker parameter type %d\n", 
+	   __FILE__,__LINE__,type);
+  return model;
+}
+//============================================================================
 
 std::string
 FACETRACKER::DefaultFaceTrackerModelPathname()
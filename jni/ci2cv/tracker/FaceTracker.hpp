@@ -134,10 +134,10 @@ namespace FACETRACKER
     NewFrame(cv::Mat &im,          //grayscale image to track
 	     FaceTrackerParams *params=NULL)=0; //additinal parameters 
     virtual void 
-    Read(std::ifstream &s,        //file stream to read from
+    Read(std::istream &s,        //file stream to read from
 	 bool readType = true)=0; //read type?
     virtual void
-    ReadBinary(std::ifstream &s,        //file stream to read from
+    ReadBinary(std::istream &s,        //file stream to read from
 	 bool readType = true)=0;
     virtual void 
     Write(std::ofstream &s, //file stream to write to
@@ -163,6 +163,12 @@ namespace FACETRACKER
 
   FaceTrackerParams *  //contains pointer to facetracker param obj on return, null on failure
   LoadFaceTrackerParams(const char* fname); //file containing facetracker params
+
+  FaceTracker* //as above, from a binary model already in memory
+  LoadFaceTracker(std::istream &s); //stream positioned at the model
+
+  FaceTrackerParams * //as above, from binary params already in memory
+  LoadFaceTrackerParams(std::istream &s); //stream positioned at the params
   //============================================================================
 
   std::string DefaultFaceTrackerModelPathname();
@@ -36,7 +36,7 @@ vector<string> IO::GetList(const char* fname)
   file.close(); return names;
 }
 //===========================================================================
-void IO::ReadMat(ifstream& s,cv::Mat &M)
+void IO::ReadMat(istream& s,cv::Mat &M)
 {
   int r,c,t; s >> r >> c >> t;
   M = cv::Mat(r,c,t);
@@ -229,7 +229,7 @@ std::vector<cv::Mat> IO::LoadMatList(const char* fname)
 //===========================================================================
 //===========================================================================
 //===========================================================================
-void IOBinary::ReadMat(std::ifstream &s, cv::Mat &M)
+void IOBinary::ReadMat(std::istream &s, cv::Mat &M)
 {
 	int r,c,t;
 	//s >> r >> c >> t;
@@ -33,7 +33,7 @@ namespace FACETRACKER
     enum{PDM3D = 0,PAW,PATCH,MPATCH,CLM,FDET,FCHECK,MFCHECK,TRACKER,TPS,AAM_POIC,PDM2D,AAM_POIC_F,SINIT,LINPATCH,CLP,CLD,TRACKER4,NONLINPATCH,MIXPATCH,CLM3,CLMix,PRA,ATM_PO,LBPHISTPATCH,FACEPREDICTORPRA,FACEPREDICTORKSMOOTH,MYFACETRACKER,MYFACETRACKERPARAMS,REGOCHECK,MVREGOCHECK,SHAPEPREDICTORLIST, SHAPEPREDICTOR, SHAPEEXPMAP, 
 	 DUMMY_LAST_DONT_USE};
     static std::vector<std::string> GetList(const char* fname);
-    static void ReadMat(std::ifstream& s,cv::Mat &M);
+    static void ReadMat(std::istream& s,cv::Mat &M);
     static void WriteMat(std::ofstream& s,cv::Mat &M);
     static cv::Mat LoadCon(const char* fname);
     static cv::Mat LoadTri(const char* fname);
@@ -54,7 +54,7 @@ namespace FACETRACKER
     //    enum{IO_BINARY_DATA = 0xFFFF0000};
     enum{PDM3D= IO::DUMMY_LAST_DONT_USE+1,PAW,PATCH,MPATCH,CLM,FDET,FCHECK,MFCHECK,TRACKER,TPS,AAM_POIC,PDM2D,AAM_POIC_F,SINIT,LINPATCH,CLP,CLD,TRACKER4,NONLINPATCH,MIXPATCH,CLM3,CLMix,PRA,ATM_PO,LBPHISTPATCH,FACEPREDICTORPRA,FACEPREDICTORKSMOOTH,MYFACETRACKER,MYFACETRACKERPARAMS,REGOCHECK,MVREGOCHECK, SHAPEPREDICTORLIST, SHAPEPREDICTOR, SHAPEEXPMAP, KSMOOTH,
 	 DETECTOR_NCC, DETECTOR_HOG, DETECTOR_ASM, HOG_DET};
-    static void ReadMat(std::ifstream& s,cv::Mat &M);
+    static void ReadMat(std::istream& s,cv::Mat &M);
     static void WriteMat(std::ofstream& s,cv::Mat &M);
     //		static cv::Mat LoadCon(const char* fname);
     //		static cv::Mat LoadTri(const char* fname);
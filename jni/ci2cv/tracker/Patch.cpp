@@ -103,6 +103,12 @@ Patch& Patch::operator= (Patch const& rhs)
   this->res_ = rhs.res_.clone(); return *this;
 }
 //===========================================================================
+void Patch::Share(Patch const& rhs)
+{   
+  this->_t = rhs._t; this->_a = rhs._a; this->_b = rhs._b; 
+  this->_W = rhs._W; this->im_.release(); this->res_.release(); return;
+}
+//===========================================================================
 void Patch::Load(const char* fname, bool binary)
 {
   ifstream s;
@@ -133,7 +139,7 @@ void Patch::Write(ofstream &s, bool binary)
   return;
 }
 //===========================================================================
-void Patch::Read(ifstream &s,bool readType)
+void Patch::Read(istream &s,bool readType)
 {
   int type =-1;
   if(readType){s >> type; assert(type == IO::PATCH);}
@@ -144,7 +150,7 @@ void Patch::Read(ifstream &s,bool readType)
   return;
 }
 //===========================================================================
-void Patch::ReadBinary(ifstream &s,bool readType)
+void Patch::ReadBinary(istream &s,bool readType)
 
 {
   if(readType){int type; 
@@ -210,6 +216,13 @@ MPatch& MPatch::operator= (MPatch const& rhs)
   _p = rhs._p; return *this;
 }
 //===========================================================================
+void MPatch::Share(MPatch const& rhs)
+{   
+  _w = rhs._w; _h = rhs._h; _p.resize(rhs._p.size());
+  for(size_t i = 0; i < rhs._p.size(); i++)_p[i].Share(rhs._p[i]);
+  res_.release(); return;
+}
+//===========================================================================
 void MPatch::Init(std::vector<Patch> &p)
 {
   _w = p[0]._W.cols; _h = p[0]._W.rows;
@@ -255,7 +268,7 @@ void MPatch::Write(ofstream &s, bool binary)
   return;
 }
 //===========================================================================
-void MPatch::Read(ifstream &s,bool readType)
+void MPatch::Read(istream &s,bool readType)
 {
   int type;
   if(readType){s >> type; assert(type == IO::MPATCH);}
@@ -270,7 +283,7 @@ void MPatch::Read(ifstream &s,bool readType)
   return;
 }
 //===========================================================================
-void MPatch::ReadBinary(ifstream &s,bool readType)
+void MPatch::ReadBinary(istream &s,bool readType)
 {
   if(readType){int type; 
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -37,13 +37,14 @@ namespace FACETRACKER
     Patch(const char* fname, bool binary = false){this->Load(fname, binary);}
     Patch(int t,double a,double b,cv::Mat &W){this->Init(t,a,b,W);}
     Patch& operator=(Patch const&rhs);
+    void Share(Patch const&rhs);
     inline int w(){return _W.cols;}
     inline int h(){return _W.rows;}
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     void Init(int t, double a, double b, cv::Mat &W);
     void Response(cv::Mat &im,cv::Mat &resp);    
     cv::Mat Response(){return res_.clone();}
@@ -63,12 +64,13 @@ namespace FACETRACKER
     MPatch(const char* fname, bool binary = false){this->Load(fname, binary);}
     MPatch(std::vector<Patch> &p){this->Init(p);}
     MPatch& operator=(MPatch const&rhs);
+    void Share(MPatch const&rhs);
     inline int nPatch(){return _p.size();}
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     void Init(std::vector<Patch> &p);
     void Response(cv::Mat &im,cv::Mat &resp);    
   private:
@@ -40,7 +40,7 @@ RegistrationCheck::Write(ofstream &s, bool binary)
 }
 //===========================================================================
 void 
-RegistrationCheck::Read(ifstream &s,
+RegistrationCheck::Read(istream &s,
 			bool readType)
 {
   int type; 
@@ -51,7 +51,7 @@ RegistrationCheck::Read(ifstream &s,
 }
 //===========================================================================
 void 
-RegistrationCheck::ReadBinary(ifstream &s,
+RegistrationCheck::ReadBinary(istream &s,
 			      bool readType)
 {
  
@@ -98,7 +98,7 @@ mvRegistrationCheck::Write(ofstream &s, bool binary)
 }
 //===========================================================================
 void 
-mvRegistrationCheck::Read(ifstream &s,
+mvRegistrationCheck::Read(istream &s,
 			  bool readType)
 {
   int type; 
@@ -109,7 +109,7 @@ mvRegistrationCheck::Read(ifstream &s,
 }
 //===========================================================================
 void 
-mvRegistrationCheck::ReadBinary(ifstream &s,
+mvRegistrationCheck::ReadBinary(istream &s,
 			  bool readType)
 {
   if(readType){int type; 
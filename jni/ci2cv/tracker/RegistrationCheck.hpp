@@ -48,6 +48,11 @@ namespace FACETRACKER
       this->_a = rhs._a; this->_b = rhs._b; this->_c = rhs._c;
       this->_w = rhs._w.clone(); this->_paw = rhs._paw; return *this;
     }
+    void Share(RegistrationCheck const&rhs){
+      this->_a = rhs._a; this->_b = rhs._b; this->_c = rhs._c;
+      this->_w = rhs._w; this->_paw.Share(rhs._paw); 
+      crop_.release(); vec_.release(); x_.release(); return;
+    }
     void 
     Init(double a,   //probability gain
 	 double b,   //svm bias
@@ -71,8 +76,8 @@ namespace FACETRACKER
       return;
     }
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     int                //-1 on failure, [0:10] health otherwise
     Check(cv::Mat &im, //image
 	  cv::Mat &s); //shape
@@ -93,6 +98,10 @@ namespace FACETRACKER
     mvRegistrationCheck& operator=(mvRegistrationCheck const&rhs){      
       this->_rego = rhs._rego; return *this;
     }
+    void Share(mvRegistrationCheck const&rhs){
+      _rego.resize(rhs._rego.size());
+      for(size_t i = 0; i < rhs._rego.size(); i++)_rego[i].Share(rhs._rego[i]);
+    }
     void Init(std::vector<RegistrationCheck> &rego){_rego = rego;}
 
     void 
@@ -109,8 +118,8 @@ namespace FACETRACKER
       return;
     }
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     int                //-1 on failure, [0:10] health otherwise
     Check(cv::Mat &im, //image
 	  cv::Mat &s,  //shape
@@ -209,6 +209,13 @@ PDM2D& PDM2D::operator= (PDM2D const&rhs)
   this->_M  = rhs._M.clone();  this->s_  = rhs.s_.clone(); return *this;
 }
 //=============================================================================
+void PDM2D::Share(PDM2D const&rhs)
+{
+  this->_n  = rhs._n; this->_T = rhs._T;
+  this->_V  = rhs._V;  this->_E  = rhs._E;  this->_M  = rhs._M;
+  s_.release(); s_.create(_M.rows,1,CV_64F); return;
+}
+//=============================================================================
 void PDM2D::Write(ofstream &s, bool binary)
 {
   if(!binary){
@@ -229,7 +236,7 @@ void PDM2D::Write(ofstream &s, bool binary)
   return;
 }
 //=============================================================================
-void PDM2D::Read(ifstream &s,bool readType)
+void PDM2D::Read(istream &s,bool readType)
 {
   int type; 
   if(readType){s >> type; assert(type == IO::PDM2D || type == IOBinary::PDM2D);}
@@ -242,7 +249,7 @@ void PDM2D::Read(ifstream &s,bool readType)
   _n = _M.rows/2; s_.create(_M.rows,1,CV_64F); return;
 }
 //=============================================================================
-void PDM2D::ReadBinary(ifstream &s,bool readType)
+void PDM2D::ReadBinary(istream &s,bool readType)
 {
   if(readType){int type; 
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
@@ -411,6 +418,20 @@ PDM3D& PDM3D::operator= (PDM3D const& rhs)
   this->R3_ = rhs.R3_.clone(); return *this;
 }
 //=============================================================================
+void PDM3D::Share(PDM3D const& rhs)
+{   
+  this->_n  = rhs._n;
+  this->_V  = rhs._V;  this->_E  = rhs._E;  this->_M  = rhs._M;
+  S_.release(); R_.release(); s_.release(); P_.release(); 
+  Px_.release(); Py_.release(); Pz_.release(); 
+  R1_.release(); R2_.release(); R3_.release();
+  S_.create(_M.rows,1,CV_64F);  
+  R_.create(3,3,CV_64F); s_.create(_M.rows,1,CV_64F); P_.create(2,3,CV_64F);
+  Px_.create(2,3,CV_64F); Py_.create(2,3,CV_64F); Pz_.create(2,3,CV_64F);
+  R1_.create(3,3,CV_64F); R2_.create(3,3,CV_64F); R3_.create(3,3,CV_64F);
+  return;
+}
+//=============================================================================
 void PDM3D::Write(ofstream &s, bool binary)
 {
   if(!binary){
@@ -425,7 +446,7 @@ void PDM3D::Write(ofstream &s, bool binary)
  return;
 }
 //===========================================================================
-void PDM3D::Read(ifstream &s,bool readType)
+void PDM3D::Read(istream &s,bool readType)
 {
   int type = -1;
   if(readType){s >> type; assert(type == IO::PDM3D);}
@@ -440,7 +461,7 @@ void PDM3D::Read(ifstream &s,bool readType)
   return;
 }
 //===========================================================================
-void PDM3D::ReadBinary(ifstream &s,bool readType)
+void PDM3D::ReadBinary(istream &s,bool readType)
 {
   if(readType){int type; 
     s.read(reinterpret_cast<char*>(&type), sizeof(type));
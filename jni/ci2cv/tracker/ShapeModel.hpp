@@ -55,8 +55,8 @@ namespace FACETRACKER
       s.close(); return;
     }
     virtual void Write(std::ofstream &s, bool binary = false) = 0;
-    virtual void Read(std::ifstream &s,bool readType = true) = 0;
-    virtual void ReadBinary(std::ifstream &s,bool readType = true) = 0;
+    virtual void Read(std::istream &s,bool readType = true) = 0;
+    virtual void ReadBinary(std::istream &s,bool readType = true) = 0;
     virtual void CalcShape(cv::Mat &s,cv::Mat &params) = 0;
     virtual void CalcParams(cv::Mat &s,cv::Mat &params) = 0;
     virtual void CalcJacob(cv::Mat &params,cv::Mat &Jacob) = 0;    
@@ -105,10 +105,11 @@ namespace FACETRACKER
     PDM2D(const char* fname, bool binary = false){_type = IO::PDM2D; this->Load(fname, binary);}
     PDM2D(cv::Mat &M,cv::Mat &V,cv::Mat &E){_type=IO::PDM2D; this->Init(M,V,E);}
     PDM2D& operator=(PDM2D const&rhs);
+    void Share(PDM2D const&rhs);
 
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     void CalcShape2D(cv::Mat &s,cv::Mat &plocal,cv::Mat &pglobl);
     void CalcParams(cv::Mat &s,cv::Mat &plocal,cv::Mat &pglobl);
     void Init(cv::Mat &M,cv::Mat &V,cv::Mat &E);
@@ -132,10 +133,11 @@ namespace FACETRACKER
     PDM3D(const char* fname, bool binary = false){_type = IO::PDM3D; this->Load(fname, binary);}
     PDM3D(cv::Mat &M,cv::Mat &V,cv::Mat &E){_type=IO::PDM3D; this->Init(M,V,E);}
     PDM3D& operator=(PDM3D const&rhs);
+    void Share(PDM3D const&rhs);
 
     void Write(std::ofstream &s, bool binary = false);
-    void Read(std::ifstream &s,bool readType = true);
-    void ReadBinary(std::ifstream &s,bool readType = true);
+    void Read(std::istream &s,bool readType = true);
+    void ReadBinary(std::istream &s,bool readType = true);
     void CalcShape2D(cv::Mat &s,cv::Mat &plocal,cv::Mat &pglobl);
     void CalcShape3D(cv::Mat &s,cv::Mat &plocal);
     void CalcParams(cv::Mat &s,cv::Mat &plocal,cv::Mat &pglobl);
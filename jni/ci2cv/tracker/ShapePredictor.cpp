@@ -43,6 +43,23 @@ ShapePredictor& ShapePredictor::operator= (ShapePredictor const&rhs)
   pglobl_.create(4,1,CV_64F); return *this;
 }
 //==============================================================================
+void ShapePredictor::Share(ShapePredictor const&rhs)
+{
+  _K = rhs._K;
+  _idx = rhs._idx;
+  _rect = rhs._rect;
+  _pdm.Share(rhs._pdm);
+  _warp.Share(rhs._warp);
+  _c = rhs._c; _r = rhs._r;
+  crop_.release(); x_.release(); y_.release(); z_.release();
+  plocal_.release(); pglobl_.release();
+  x_.create(_warp._nPix+1,1,CV_64F);
+  y_.create(2*_idx.rows,1,CV_64F);
+  z_.create(2*_idx.rows,1,CV_64F);
+  plocal_.create(_pdm.nModes(),1,CV_64F);
+  pglobl_.create(4,1,CV_64F); return;
+}
+//==============================================================================
 void ShapePredictor::Load(const char* fname, bool binary)
 {
   ifstream s;
@@ -64,7 +81,7 @@ void ShapePredictor::Save(const char* fname, bool binary)
   assert(s.is_open()); this->Write(s);s.close(); return;
 }
 //==============================================================================
-void ShapePredictor::Read(ifstream &s)
+void ShapePredictor::Read(istream &s)
 {
   s >> _K; _c.resize(_K); _r.resize(_K);
   for(int i = 0; i < _K; i++){
@@ -82,7 +99,7 @@ void ShapePredictor::Read(ifstream &s)
   pglobl_.create(4,1,CV_64F); return;
 }
 //==============================================================================
-void ShapePredictor::ReadBinary(ifstream &s, bool readType)
+void ShapePredictor::ReadBinary(istream &s, bool readType)
 {
 
   if(readType){int type; 
@@ -194,7 +211,7 @@ void ShapePredictorList::Save(const char* fname, bool binary)
   assert(s.is_open()); this->Write(s, binary);s.close(); return;
 }
 //===========================================================================
-void ShapePredictorList::Read(ifstream &s)
+void ShapePredictorList::Read(istream &s)
 {
   int N; 
   s >> N;
@@ -206,7 +223,14 @@ void ShapePredictorList::Read(ifstream &s)
 }
 //==============================================================================
 //===========================================================================
-void ShapePredictorList::ReadBinary(ifstream &s, bool readType)
+void ShapePredictorList::Share(ShapePredictorList const&rhs)
+{
+  _pred.resize(rhs._pred.size());
+  for(size_t i = 0; i < rhs._pred.size(); i++)_pred[i].Share(rhs._pred[i]);
+  return;
+}
+//==============================================================================
+void ShapePredictorList::ReadBinary(istream &s, bool readType)
 {
   int N; 
 
@@ -36,10 +36,11 @@ namespace FACETRACKER
     ShapePredictor(){;}
     ShapePredictor(const char* fname, bool binary = false){this->Load(fname, binary);}
     ShapePredictor& operator=(ShapePredictor const&rhs);
+    void Share(ShapePredictor const&rhs);
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
-    void Read(std::ifstream &s);
-    void ReadBinary(std::ifstream &se, bool readType = true);
+    void Read(std::istream &s);
+    void ReadBinary(std::istream &se, bool readType = true);
     void Write(std::ofstream &s, bool binary = false);
     cv::Mat Predict(cv::Mat &shape,cv::Mat &im);
   protected:
@@ -52,10 +53,11 @@ namespace FACETRACKER
     std::vector<ShapePredictor> _pred;
     ShapePredictorList(){;}
     ShapePredictorList(const char* fname, bool binary = false){this->Load(fname, binary);}
+    void Share(ShapePredictorList const&rhs);
     void Load(const char* fname, bool binary = false);
     void Save(const char* fname, bool binary = false);
-    void Read(std::ifstream &s);
-    void ReadBinary(std::ifstream &s, bool readType = true);
+    void Read(std::istream &s);
+    void ReadBinary(std::istream &s, bool readType = true);
     void Write(std::ofstream &s, bool binary = false);
     void Predict(cv::Mat &shape,cv::Mat &im);
   };
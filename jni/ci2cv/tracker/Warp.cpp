@@ -113,6 +113,26 @@ PAW& PAW::operator= (PAW const& rhs)
   _dst = _src; return *this;
 }
 //===========================================================================
+void PAW::Share(PAW const& rhs)
+{   
+  this->_w    = rhs._w;
+  this->_h    = rhs._h;
+  this->_nPix = rhs._nPix;
+  this->_xmin = rhs._xmin;
+  this->_ymin = rhs._ymin;
+  this->_src  = rhs._src;
+  this->_tri  = rhs._tri;
+  this->_tridx  = rhs._tridx;
+  this->_mask  = rhs._mask;
+  this->_alpha  = rhs._alpha;
+  this->_beta  = rhs._beta;
+  _mapx.release(); _mapy.release(); _coeff.release();
+  _mapx.create(_mask.rows,_mask.cols,CV_32F);
+  _mapy.create(_mask.rows,_mask.cols,CV_32F);
+  _coeff.create(this->nTri(),6,CV_64F);
+  _dst = _src; return;
+}
+//===========================================================================
 void PAW::Write(ofstream &s, bool binary)
 {
   if(!binary){
@@ -133,7 +153,7 @@ void PAW::Write(ofstream &s, bool binary)
   return;
 }
 //===========================================================================
-void PAW::ReadBinary(ifstream &s,bool readType)
+void PAW::ReadBinary(istream &s,bool readType)
 {
  
   if(readType){int type; 
@@ -154,7 +174,7 @@ void PAW::ReadBinary(ifstream &s,bool readType)
   _coeff.create(this->nTri(),6,CV_64F); _dst = _src;
   return;
 }//===========================================================================
-void PAW::Read(ifstream &s,bool readType)
+void PAW::Read(istream &s,bool readType)
 {
   int type = -1;
   if(readType){s >> type; assert(type == IO::PAW);}
@@ -227,6 +227,61 @@ void myFaceTrackerParams::Save(const char* fname, bool binary)
   file.close();
 }
 //=============================================================================
+void myFaceTrackerParams::ReadBinary(istream &s, bool readType)
+{
+  if(readType){int type; 
+    s.read(reinterpret_cast<char*>(&type), sizeof(type));
+    assert(type == IOBinary::MYFACETRACKERPARAMS);
+  }
+
+  s.read(reinterpret_cast<char*>(&timeDet), sizeof(timeDet));
+  s.read(reinterpret_cast<char*>(&itol), sizeof(itol));
+  s.read(reinterpret_cast<char*>(&ftol), sizeof(ftol));
+  s.read(reinterpret_cast<char*>(&clamp), sizeof(clamp));
+  s.read(reinterpret_cast<char*>(&init_lambda), sizeof(init_lambda));
+  s.read(reinterpret_cast<char*>(&track_lambda), sizeof(track_lambda));
+  s.read(reinterpret_cast<char*>(&gamma), sizeof(gamma));
+  s.read(reinterpret_cast<char*>(&init_type), sizeof(init_type));
+  s.read(reinterpret_cast<char*>(&track_type), sizeof(track_type));
+  s.read(reinterpret_cast<char*>(&shape_predict), sizeof(shape_predict));
+  int t;
+  s.read(reinterpret_cast<char*>(&t), sizeof(t)); init_wSize.resize(t);
+  s.read(reinterpret_cast<char*>(&init_wSize[0]), sizeof(int)*init_wSize.size());
+  
+ 
+  s.read(reinterpret_cast<char*>(&t), sizeof(t));  track_wSize.resize(t);
+  s.read(reinterpret_cast<char*>(&track_wSize[0]), sizeof(int)*track_wSize.size());
+
+ 
+  s.read(reinterpret_cast<char*>(&t), sizeof(t));   center.resize(t);
+  for(int i = 0; i < int(center.size()); i++)IOBinary::ReadMat(s,center[i]);
+  
+ 
+  s.read(reinterpret_cast<char*>(&t), sizeof(t)); visi.resize(t);
+  for(int i = 0; i < int(visi.size()); i++)IOBinary::ReadMat(s,visi[i]);
+  
+  s.read(reinterpret_cast<char*>(&t), sizeof(t));
+ 
+  if(t > 0)
+    IOBinary::ReadMat(s,atm_tri);
+  else{
+    atm_tri = cv::Mat();
+  }
+  
+  s.read(reinterpret_cast<char*>(&atm_scale), sizeof(atm_scale));
+  s.read(reinterpret_cast<char*>(&atm_thresh), sizeof(atm_thresh));
+  s.read(reinterpret_cast<char*>(&atm_ntemp), sizeof(atm_ntemp));
+  s.read(reinterpret_cast<char*>(&ksmooth_size), sizeof(ksmooth_size));
+  s.read(reinterpret_cast<char*>(&ksmooth_sigma), sizeof(ksmooth_sigma));
+  s.read(reinterpret_cast<char*>(&ksmooth_noise), sizeof(ksmooth_noise));
+  s.read(reinterpret_cast<char*>(&ksmooth_thresh), sizeof(ksmooth_thresh));
+  s.read(reinterpret_cast<char*>(&ksmooth_ntemp), sizeof(ksmooth_ntemp));
+  check_health = true;
+
+  if(init_type!=0)
+    init_type = 0;
+}
+//=============================================================================
 void myFaceTrackerParams::Load(const char* fname, bool binary)
 {
   ifstream file;
@@ -264,53 +319,8 @@ void myFaceTrackerParams::Load(const char* fname, bool binary)
 	 >> ksmooth_ntemp;
   }
   else{
-    file.open(fname, std::ios::binary);
-    {int type; 
-      file.read(reinterpret_cast<char*>(&type), sizeof(type));
-      assert(type == IOBinary::MYFACETRACKERPARAMS);
-    }
-    file.read(reinterpret_cast<char*>(&timeDet), sizeof(timeDet));
-    file.read(reinterpret_cast<char*>(&itol), sizeof(itol));
-    file.read(reinterpret_cast<char*>(&ftol), sizeof(ftol));
-    file.read(reinterpret_cast<char*>(&clamp), sizeof(clamp));
-    file.read(reinterpret_cast<char*>(&init_lambda), sizeof(init_lambda));
-    file.read(reinterpret_cast<char*>(&track_lambda), sizeof(track_lambda));
-    file.read(reinterpret_cast<char*>(&gamma), sizeof(gamma));
-    file.read(reinterpret_cast<char*>(&init_type), sizeof(init_type));
-    file.read(reinterpret_cast<char*>(&track_type), sizeof(track_type));
-    file.read(reinterpret_cast<char*>(&shape_predict), sizeof(shape_predict));
-    int t;
-    file.read(reinterpret_cast<char*>(&t), sizeof(t)); init_wSize.resize(t);
-    file.read(reinterpret_cast<char*>(&init_wSize[0]), sizeof(int)*init_wSize.size());
-    
- 
-    file.read(reinterpret_cast<char*>(&t), sizeof(t));  track_wSize.resize(t);
-    file.read(reinterpret_cast<char*>(&track_wSize[0]), sizeof(int)*track_wSize.size());
-
- 
-    file.read(reinterpret_cast<char*>(&t), sizeof(t));   center.resize(t);
-    for(int i = 0; i < int(center.size()); i++)IOBinary::ReadMat(file,center[i]);
-    
- 
-    file.read(reinterpret_cast<char*>(&t), sizeof(t)); visi.resize(t);
-    for(int i = 0; i < int(visi.size()); i++)IOBinary::ReadMat(file,visi[i]);
-    
-    file.read(reinterpret_cast<char*>(&t), sizeof(t));
- 
-    if(t > 0)
-      IOBinary::ReadMat(file,atm_tri);
-    else{
-      atm_tri = cv::Mat();
-    }
-    
-    file.read(reinterpret_cast<char*>(&atm_scale), sizeof(atm_scale));
-    file.read(reinterpret_cast<char*>(&atm_thresh), sizeof(atm_thresh));
-    file.read(reinterpret_cast<char*>(&atm_ntemp), sizeof(atm_ntemp));
-    file.read(reinterpret_cast<char*>(&ksmooth_size), sizeof(ksmooth_size));
-    file.read(reinterpret_cast<char*>(&ksmooth_sigma), sizeof(ksmooth_sigma));
-    file.read(reinterpret_cast<char*>(&ksmooth_noise), sizeof(ksmooth_noise));
-    file.read(reinterpret_cast<char*>(&ksmooth_thresh), sizeof(ksmooth_thresh));
-    file.read(reinterpret_cast<char*>(&ksmooth_ntemp), sizeof(ksmooth_ntemp));
+    file.open(fname, std::ios::binary); assert(file.is_open());
+    this->ReadBinary(file);
   }
 
 
@@ -340,7 +350,7 @@ myFaceTracker::myFaceTracker(const char* clmFile,
   _sinit.Load(sInitFile, binary);
   _fcheck.Load(FcheckFile, binary);
   _spred.Load(predFile, binary);
-  _time = -1;
+  _time = -1; _reach = 0; shared_ = false;
 }
 //=============================================================================
 void 
@@ -349,6 +359,23 @@ myFaceTracker::Reset()
   _time = -1; _atm._init = false;
 }
 //=============================================================================
+void 
+myFaceTracker::Share(const myFaceTracker &rhs)
+{
+  _clm.Share(rhs._clm); _sinit.Share(rhs._sinit); 
+  _fcheck.Share(rhs._fcheck); _spred.Share(rhs._spred);
+  _reach = rhs._reach; shared_ = true; this->Reset();
+  int n = _clm._pdm.nPoints();
+  mu_.create(2*n,1,CV_64F); cov_.create(2*n,2*n,CV_64F); 
+  covi_.create(2*n,2*n,CV_64F); return;
+}
+//=============================================================================
+void 
+myFaceTracker::Seed(cv::Rect r)
+{
+  this->Reset(); seed_ = r;
+}
+//=============================================================================
 std::vector<cv::Point_<double> >
 myFaceTracker::getShape() const
 {
@@ -425,7 +452,10 @@ myFaceTracker::NewFrame(cv::Mat &im,
   bool rsize=true;
   cv::Rect R;  
   if (_time < 0) {
-    R = _sinit.Detect(gray_); 
+    if((seed_.width > 0) && (seed_.height > 0))R = seed_;
+    else if(!shared_)R = _sinit.Detect(gray_); 
+    else R = cv::Rect(); //see Share()
+    seed_ = cv::Rect();
     if ((R.width <= 0) || (R.height <= 0)) {
       _time = -1;
       if(release)
@@ -435,7 +465,12 @@ myFaceTracker::NewFrame(cv::Mat &im,
     _time = cvGetTickCount();
     gen = true;
   } else {
-    R = _sinit.ReDetect(gray_);
+    cv::Rect roi;
+    if(_reach > 0){
+      int dx = _reach*rect_.width,dy = _reach*rect_.height;
+      roi = cv::Rect(rect_.x-dx,rect_.y-dy,rect_.width+2*dx,rect_.height+2*dy);
+    }
+    R = _sinit.ReDetect(gray_,roi);
     gen = false;
   }
   if(gen){
@@ -573,7 +608,7 @@ myFaceTracker::NewFrame(cv::Mat &im,
 }
 //=============================================================================
 void 
-myFaceTracker::Read(ifstream &s,
+myFaceTracker::Read(istream &s,
 		    bool readType)
 {
   int type; 
@@ -589,7 +624,7 @@ myFaceTracker::Read(ifstream &s,
 }
 //=============================================================================
 void 
-myFaceTracker::ReadBinary(ifstream &s,
+myFaceTracker::ReadBinary(istream &s,
 			  bool readType)
 {
   if(readType){int type; 
@@ -37,9 +37,11 @@ namespace FACETRACKER
     SInit _sinit;                  /**< Face detector and shape initialiser */
     mvRegistrationCheck _fcheck;   /**< Failure checker                     */
     ShapePredictorList _spred;     /**< Refining shape predictors           */
+    double _reach;                 /**< ReDetect() range, relative to the
+				      face's size; 0 searches everywhere   */
 
-    myFaceTracker(){_time=-1;}
-    myFaceTracker(const char* fname, bool binary = false){this->Load(fname, binary);}
+    myFaceTracker(){_time=-1;_reach=0;shared_=false;}
+    myFaceTracker(const char* fname, bool binary = false){_reach=0;shared_=false; this->Load(fname, binary);}
     myFaceTracker(const char* clmFile,     //CLM
 		  const char* sInitFile,   //SInit
 		  const char* FcheckFile,  //RegistrationCheck
@@ -48,6 +50,15 @@ namespace FACETRACKER
 		  bool binary = false); // if the files are binary
     void Reset(); //reset tracker
 
+    //Track another face with rhs's models, which are shared rather than
+    //copied; this tracker must be new and rhs must outlive it. The detector
+    //is shared too and is not thread-safe, so this tracker never detects:
+    //it only follows faces given to Seed(), and fails once it loses one
+    void Share(const myFaceTracker &rhs);
+
+    //reset tracker, and start from the face in r instead of detecting one
+    void Seed(cv::Rect r);
+
     std::vector<cv::Point_<double> > getShape() const;
     std::vector<cv::Point3_<double> > get3DShape() const;
     Pose getPose() const;
@@ -56,10 +67,10 @@ namespace FACETRACKER
     NewFrame(cv::Mat &im,        //grayscale image to track
 	     FaceTrackerParams* params=NULL); //additinal parameters
     void 
-    Read(std::ifstream &s,      //file stream to read from
+    Read(std::istream &s,      //file stream to read from
 	 bool readType = true); //read type?
     void 
-    ReadBinary(std::ifstream &s,      //file stream to read from
+    ReadBinary(std::istream &s,      //file stream to read from
 	       bool readType = true); //read type?
 
     void 
@@ -72,7 +83,8 @@ namespace FACETRACKER
     cv::Mat getShapeParameters(){return _clm._plocal.clone();}
     cv::Mat getPoseParameters(){return _clm._pglobl.clone();}
   protected:
-    cv::Rect rect_; cv::Mat gray_,mu_,cov_,covi_,smooth_,dxdp_;
+    cv::Rect rect_,seed_; cv::Mat gray_,mu_,cov_,covi_,smooth_,dxdp_;
+    bool shared_;
   };
   //============================================================================
   class myFaceTrackerParams : public FaceTrackerParams {
@@ -109,6 +121,7 @@ namespace FACETRACKER
     myFaceTrackerParams(const char* fname, bool binary = false){this->Load(fname, binary);}
     void Save(const char* fname, bool binary = false);
     void Load(const char* fname, bool binary = false);
+    void ReadBinary(std::istream &s, bool readType = true);
   };
   //============================================================================
 }
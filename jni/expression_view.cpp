@@ -4,7 +4,9 @@
 #include <memory>
 #include <ostream>
 #include <string>
+#include <vector>
 
+#include <android/asset_manager_jni.h>
 #include <android/bitmap.h>
 #include <android/log.h>
 
@@ -14,6 +16,8 @@
 
 #include <jni.h>
 
+#include "asset_stream.hpp"
+
 #define TAG "MobileFace-ExpressionView"
 #define LOGE(msg) __android_log_write(ANDROID_LOG_ERROR,TAG,msg)
 #define LOGI(msg) __android_log_write(ANDROID_LOG_INFO,TAG,msg)
@@ -25,21 +29,39 @@ std::string to_string(T val) {
 	return os.str();
 }
 
-AVATAR::myAvatar *get_avatar(JNIEnv *jenv, jstring path) {
+// Java holds on to a loaded avatar as an opaque handle, so the model file
+// only has to be parsed once however many things get asked of it
+AVATAR::myAvatar *get_avatar(jlong handle) {
+	return (AVATAR::myAvatar *) (intptr_t) handle;
+}
+
+// A relative path names an asset, which is read in place out of the APK
+extern "C" jlong Java_com_kevinriehm_mobileface_ExpressionView_openAvatar(JNIEnv *jenv, jobject jthis, jobject assets,
+	jstring path) {
 	const char *spath;
 	AVATAR::myAvatar *avatar;
 
 	spath = jenv->GetStringUTFChars(path,NULL);
-	avatar = (AVATAR::myAvatar *) AVATAR::LoadAvatar(spath);
+	if(spath[0] && spath[0] != '/') {
+		asset_stream_t stream(AAssetManager_fromJava(jenv,assets),spath);
+		avatar = stream ? (AVATAR::myAvatar *) AVATAR::LoadAvatar(stream) : NULL;
+	} else avatar = (AVATAR::myAvatar *) AVATAR::LoadAvatar(spath);
 	jenv->ReleaseStringUTFChars(path,spath);
 
-	return avatar;
+	if(!avatar)
+		LOGE("cannot load avatar");
+
+	return (jlong) (intptr_t) avatar;
 }
 
-extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarSize(JNIEnv *jenv, jobject jthis, jstring path, jintArray size) {
-	std::unique_ptr<AVATAR::myAvatar> avatar(get_avatar(jenv,path));
+extern "C" void Java_com_kevinriehm_mobileface_ExpressionView_closeAvatar(JNIEnv *jenv, jobject jthis, jlong handle) {
+	delete get_avatar(handle);
+}
+
+extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarSize(JNIEnv *jenv, jobject jthis, jlong handle, jintArray size) {
+	AVATAR::myAvatar *avatar = get_avatar(handle);
 
-	if(!avatar.get())
+	if(!avatar)
 		return false;
 
 	jint sizebuf[] = {avatar->_warp.Width(), avatar->_warp.Height()};
@@ -48,57 +70,86 @@ extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarSize(
 	return true;
 }
 
-uint8_t clamp8(double x) {
-	return x < 0 ? 0 : x < 0xff ? (uint8_t) floor(x + 0.5) : 0xff;
-}
+// Expands the avatar's masked texture vector into an RGBA image, one band
+// of rows per worker; rowstart[y] is the index of row y's first masked pixel
+class TextureExporter : public cv::ParallelLoopBody {
+public:
+	TextureExporter(const cv::Mat &_rgb, const cv::Mat &_mask, const std::vector<int> &_rowstart,
+		uint8_t *_pixels, int _stride)
+		: rgb(_rgb), mask(_mask), rowstart(_rowstart), pixels(_pixels), stride(_stride) {
+	}
+
+	void operator()(const cv::Range &rows) const {
+		for(int y = rows.start; y < rows.end; y++) {
+			const uint8_t *m = mask.ptr<uint8_t>(y);
+			const uint8_t *src = rgb.data + 3*rowstart[y];
+			uint8_t *dst = pixels + y*stride;
+
+			for(int x = 0; x < mask.cols; x++, dst += 4) {
+				if(m[x]) {
+					dst[0] = src[0];
+					dst[1] = src[1];
+					dst[2] = src[2];
+					src += 3;
+				} else dst[0] = dst[1] = dst[2] = 0xff;
+
+				dst[3] = 0xff;
+			}
+		}
+	}
+
+private:
+	const cv::Mat &rgb;
+	const cv::Mat &mask;
+	const std::vector<int> &rowstart;
+	uint8_t *pixels;
+	int stride;
+};
 
-extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarImage(JNIEnv *jenv, jobject jthis, jstring path, jobject bitmap, jobject uvs) {
+extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarImage(JNIEnv *jenv, jobject jthis, jlong handle, jobject bitmap, jobject uvs) {
 	int w, h;
-	jfloat uv[2];
 	double *data;
 	int xmin, ymin;
 	jfloat *uvdata;
-	uint8_t rgba[4];
 	uint8_t *pixels;
-	cv::MatIterator_<uchar> mask;
-	int index, npoints, planestride;
-	cv::MatIterator_<double> rdata, gdata, bdata;
-	std::unique_ptr<AVATAR::myAvatar> avatar(get_avatar(jenv,path));
+	AndroidBitmapInfo info;
+	int npoints, planestride;
+	cv::Mat planes[3], rgb;
+	std::vector<int> rowstart;
+	AVATAR::myAvatar *avatar = get_avatar(handle);
 
-	if(!avatar.get())
+	if(!avatar)
 		return false;
 
-	// Copy over the avatar image
-	data = (double *) avatar->_textr[2].data;
-
 	w = avatar->_warp.Width();
 	h = avatar->_warp.Height();
 
-	planestride = avatar->_warp._nPix;
-
-	rdata = avatar->_textr[2](cv::Rect(0,2*planestride,1,planestride)).begin<double>();
-	gdata = avatar->_textr[2](cv::Rect(0,  planestride,1,planestride)).begin<double>();
-	bdata = avatar->_textr[2](cv::Rect(0,0            ,1,planestride)).begin<double>();
-
-	mask = avatar->_warp._mask.begin<uchar>();
+	AndroidBitmap_getInfo(jenv,bitmap,&info);
+	if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 || (int) info.width != w || (int) info.height != h) {
+		LOGE("avatar bitmap has the wrong size or format");
+		return false;
+	}
 
-	AndroidBitmap_lockPixels(jenv,bitmap,(void **) &pixels);
+	// The texture is stored as planar B, G, R doubles covering only the
+	// masked pixels; round and saturate each plane to bytes in bulk, then
+	// interleave them
+	planestride = avatar->_warp._nPix;
 
-	index = 0;
-	for(int y = 0; y < h; y++) {
-		for(int x = 0; x < w; x++) {
-			if(*mask++) {
-				rgba[0] = clamp8(*rdata++);
-				rgba[1] = clamp8(*gdata++);
-				rgba[2] = clamp8(*bdata++);
-			} else rgba[0] = rgba[1] = rgba[2] = 0xff;
+	for(int i = 0; i < 3; i++)
+		avatar->_textr[2](cv::Rect(0,(2 - i)*planestride,1,planestride)).convertTo(planes[i],CV_8U);
 
-			rgba[4] = 0xff;
+	cv::merge(planes,3,rgb);
 
-			memcpy(pixels + index++*sizeof rgba,rgba,sizeof rgba);
-		}
+	// Work out where each row starts in the packed pixels
+	rowstart.resize(h);
+	for(int y = 0, index = 0; y < h; y++) {
+		rowstart[y] = index;
+		index += cv::countNonZero(avatar->_warp._mask.row(y));
 	}
 
+	// Copy over the avatar image
+	AndroidBitmap_lockPixels(jenv,bitmap,(void **) &pixels);
+	cv::parallel_for_(cv::Range(0,h),TextureExporter(rgb,avatar->_warp._mask,rowstart,pixels,info.stride));
 	AndroidBitmap_unlockPixels(jenv,bitmap);
 
 	data = (double *) avatar->_shapes[2].data;
@@ -118,4 +169,3 @@ extern "C" jboolean Java_com_kevinriehm_mobileface_ExpressionView_getAvatarImage
 
 	return true;
 }
-
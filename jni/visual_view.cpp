@@ -1,20 +1,29 @@
+#include <algorithm>
+#include <cmath>
 #include <cstdint>
+#include <cstdio>
+#include <cstring>
 #include <ctime>
 #include <fstream>
 #include <iostream>
+#include <limits>
 #include <memory>
+#include <sstream>
 #include <streambuf>
 #include <string>
 #include <vector>
 
 #include <pthread.h>
-#include <signal.h>
 
+#include <android/asset_manager_jni.h>
 #include <android/bitmap.h>
 #include <android/log.h>
+#include <android/native_window_jni.h>
 
 #include <jni.h>
 
+#include "asset_stream.hpp"
+
 #define _GLIBCXX_USE_NOEXCEPT noexcept
 #include <jsoncons/json.hpp>
 
@@ -22,6 +31,7 @@
 
 #include <avatar/Avatar.hpp>
 #include <tracker/FaceTracker.hpp>
+#include <tracker/myFaceTracker.hpp>
 
 extern "C" {
 #include <libavcodec/avcodec.h>
@@ -29,18 +39,299 @@ extern "C" {
 #include <libswscale/swscale.h>
 }
 
-#define CAMERA_WIDTH  640
-#define CAMERA_HEIGHT 480
-
 #define MIN_FACE_STRENGTH 1
 
+#define EXPRESSION_BIN_MAGIC   "MFEX"
+#define EXPRESSION_BIN_VERSION 3
+
+#define EXPRESSION_KEYFRAME_INTERVAL 64
+
+// Longest Rice quotient before a delta is written out whole instead
+#define EXPRESSION_RICE_ESCAPE 16
+#define EXPRESSION_ZIGZAG_BITS 17
+
 #define TAG "MobileFace-VisualView"
 #define LOGE(msg) __android_log_write(ANDROID_LOG_ERROR,TAG,msg)
 #define LOGI(msg) __android_log_write(ANDROID_LOG_INFO,TAG,msg)
 
 enum {
 	MODE_CAMERA,
-	MODE_FILE
+	MODE_FILE,
+	MODE_BATCH
+};
+
+// How often batch mode tells Java how it is doing
+#define BATCH_REPORT_INTERVAL 0.25
+
+// Frames each batch segment tracks before its own, so that it has settled on
+// the face by then
+#define SEGMENT_WARMUP_FRAMES 30
+
+// Multi-face mode: how many frames go by between looks for faces nobody is
+// tracking yet, how far each face's tracker looks for it from one frame to
+// the next relative to its size, and what fraction of the smaller of two
+// faces may be covered by the other before they are taken to be the same
+#define FACES_DETECT_INTERVAL 10
+#define FACES_REACH 0.5
+#define FACES_MAX_OVERLAP 0.5
+
+enum {
+	RECORD_POINTS,
+	RECORD_PARAMETERS
+};
+
+enum {
+	PIPELINE_BLOCK,
+	PIPELINE_DROP_OLDEST
+};
+
+// Orientation of a frame that has already been oriented
+#define ORIENTATION_NONE -1
+
+// The frame time governor: how many levels it has (see governor_levels),
+// how fast its average follows the tracking time, what fraction of the
+// budget a frame must fit in before it tries a better level, how many
+// frames it ignores after a change, and how long it trusts what it has seen
+// of the other levels
+#define GOVERNOR_LEVELS 5
+#define GOVERNOR_SMOOTHING 0.1
+#define GOVERNOR_HEADROOM 0.6
+#define GOVERNOR_SETTLE_FRAMES 15
+#define GOVERNOR_MEMORY_FRAMES 300
+
+// Space left around the face when tracking crops to it, relative to its size
+#define GOVERNOR_CROP_MARGIN 0.5
+
+// Most idle models of each kind kept for later workers (see take_model())
+#define MODEL_CACHE_SIZE 4
+
+// Stages of the pipeline that get timed for VisualView.getStats()
+enum {
+	STAGE_DECODE,
+	STAGE_CONVERT,
+	STAGE_ORIENT,
+	STAGE_TRACK,
+	STAGE_COLOR,
+	STAGE_ANIMATE,
+	STAGE_BLIT,
+	STAGE_PRESENT,
+	NUM_STAGES
+};
+
+// Layout of VisualView's stats buffer, in ints; this must match
+// PipelineStats.java. Each stage has a histogram of STATS_BUCKETS, where
+// bucket b counts times of [2^b,2^(b+1)) microseconds and the last one also
+// counts anything longer. Face strengths run from -2 (face out of frame) to
+// 10.
+#define STATS_BUCKETS 20
+#define STATS_FACE_STRENGTHS 13
+#define STATS_STAGES 0
+#define STATS_FACE_STRENGTH (STATS_STAGES + NUM_STAGES*STATS_BUCKETS)
+#define STATS_DETECTIONS (STATS_FACE_STRENGTH + STATS_FACE_STRENGTHS)
+#define STATS_DROPPED_CAPTURED (STATS_DETECTIONS + 1)
+#define STATS_DROPPED_TRACKED (STATS_DROPPED_CAPTURED + 1)
+#define STATS_SIZE (STATS_DROPPED_TRACKED + 1)
+
+// A face image that Java asked to have saved; request is how it knows which
+struct face_request_t {
+	int request;
+	std::string filename;
+};
+
+// Where one of several faces was found in a frame, in the frame's own
+// coordinates; shape is empty if the face was too weak to show
+struct face_shape_t {
+	int id;
+	int facestrength;
+	FACETRACKER::PointVector shape;
+};
+
+// A frame on its way through the pipeline; frames are swapped rather than
+// copied between stages, so their buffers circulate and, once allocated,
+// get reused for every later frame
+struct frame_t {
+	int number;
+
+	// Camera frames are NV21 straight out of preview buffer number
+	// preview; other frames are BGR or gray
+	int preview = -1;
+	cv::Mat input;
+
+	int orientation;
+	cv::Mat oriented;
+
+	int facestrength;
+	FACETRACKER::PointVector shape;
+
+	// Every face in multi-face mode, oldest first; the oldest is also the
+	// one in shape
+	std::vector<face_shape_t> faces;
+
+	// What the UI asked of this frame: the avatar is calibrated on the first
+	// frame of each calibration, and saves are answered once it is presented
+	int calibration;
+	std::vector<face_request_t> saves;
+};
+
+// A camera preview buffer, pinned for as long as the worker runs; if the VM
+// will only hand out copies, each frame gets copied into copy instead
+struct preview_buffer_t {
+	jbyteArray array;
+	jbyte *bytes;
+
+	std::vector<jbyte> copy;
+};
+
+// Bounded FIFO of frames between two pipeline stages
+struct frame_queue_t {
+	std::vector<frame_t> slots;
+	size_t head, count;
+
+	bool dropoldest;
+	bool closed;
+	int dropped;
+	int32_t *dropstat; // Where else drops are counted, if anywhere
+
+	pthread_mutex_t mutex;
+	pthread_cond_t notempty;
+	pthread_cond_t notfull;
+};
+
+// Controls from VisualView, which the worker carries out between frames
+enum {
+	COMMAND_RESET_TRACKING,
+	COMMAND_CALIBRATE_EXPRESSION,
+	COMMAND_SAVE_FACE_IMAGE
+};
+
+struct command_t {
+	int type;
+	face_request_t face; // COMMAND_SAVE_FACE_IMAGE only
+};
+
+#define COMMAND_QUEUE_SIZE 16
+
+// Lock-free ring of commands from the UI thread, the only producer, to the
+// worker, the only consumer; head and tail only ever grow, and each is only
+// written by one side
+struct command_queue_t {
+	command_t slots[COMMAND_QUEUE_SIZE];
+	size_t head, tail;
+};
+
+// Header of a .expression.bin file; it is followed by a table of uint32
+// offsets to each block of keyframe_interval frames, counted from the end of
+// the table, and then by the blocks themselves (see encode_expression_block()),
+// so that any frame can be found by decoding at most one block
+struct expression_bin_header_t {
+	char magic[4];
+	uint32_t version;
+	double fps;
+	uint32_t frame_width;
+	uint32_t frame_height;
+	uint32_t num_points;
+	uint32_t num_frames;
+	float max_coord;
+	uint32_t keyframe_interval;
+};
+
+static_assert(sizeof(expression_bin_header_t) == 40,"ExpressionView expects a 40-byte header");
+
+// Streams an expression recording to disk as it is made, so that memory use
+// stays flat however long the video is. The .json file is the header object
+// with "frames" as its last member and one compact line per frame, so a file
+// cut short by a crash is readable up to its last whole frame. Point
+// recordings also get a .bin file: its blocks are encoded as they fill and
+// parked in a .part file until the frame count, and with it the size of the
+// offset table, is known; the .bin is then assembled under a temporary name
+// and renamed into place.
+struct expression_writer_t {
+	std::string basepath;
+	bool open;
+
+	std::ofstream json;
+	size_t nframes;
+
+	bool writebin;
+	std::ofstream blocks;
+	expression_bin_header_t header;
+	std::vector<uint32_t> offsets;
+	uint32_t blockssize;
+
+	// The block being filled
+	std::vector<float> pending;
+	uint64_t pendingmask;
+	size_t npending;
+	std::vector<uint8_t> encoded;
+};
+
+// Decoding state for one open video file
+struct video_t {
+	AVFormatContext *avformat;
+	AVStream *avstream;
+	AVCodecContext *avcodec;
+
+	AVPacket avpacket;
+	int avpacketoffset;
+
+	AVFrame *avframe;
+	AVPicture avpicture;
+
+	SwsContext *swscontext;
+};
+
+// The part of an oriented frame the tracker was given, and how much it was
+// scaled by first
+struct tracking_view_t {
+	cv::Rect roi;
+	double scale;
+};
+
+// Keeps tracking within a time budget per frame, giving up quality while it
+// is over and taking it back once there is room; see govern_tracking()
+struct governor_t {
+	double budget; // Seconds, or 0 if the governor is off
+
+	int level;
+	double average; // Recent tracking time at level
+	double cost[GOVERNOR_LEVELS]; // Last average seen at each level, or 0
+	int settle; // Frames left to ignore since the level changed
+	int sinceforget;
+
+	cv::Rect face; // Last face, in oriented frame coordinates
+	tracking_view_t view; // How the last frame was tracked
+
+	std::unique_ptr<FACETRACKER::FaceTrackerParams> lightparams;
+};
+
+// One of the faces multi-face mode is tracking. Its tracker shares the main
+// tracker's models, and bounds is where it was last seen in the image the
+// trackers are given. Ids count up from 1 for each source and are never
+// reused, so a face keeps its id for as long as it is tracked.
+struct face_t {
+	int id;
+	int facestrength;
+	cv::Rect bounds;
+
+	std::unique_ptr<FACETRACKER::FaceTracker> tracker;
+};
+
+// Threads that track faces alongside the worker in multi-face mode. Each
+// round, the worker puts up the frame and the faces, and everyone takes
+// faces off the list until it is empty; see track_faces_parallel().
+struct face_pool_t {
+	std::vector<pthread_t> threads;
+
+	pthread_mutex_t mutex;
+	pthread_cond_t start;
+	pthread_cond_t finish;
+	bool closed;
+
+	int round;
+	std::vector<face_t *> faces;
+	size_t next, done;
+	cv::Mat image;
+	FACETRACKER::FaceTrackerParams *params;
 };
 
 struct data_t {
@@ -50,48 +341,151 @@ struct data_t {
 	jobject jthis;
 	pthread_t worker;
 
+	// Where models named by relative paths come from; held for as long as
+	// any thread might load one
+	jobject assets;
+	AAssetManager *assetmanager;
+
+	// Capture -> worker (tracking) -> presenter, each on its own thread
+	pthread_t capturer;
+	pthread_t presenter;
+
+	frame_queue_t captured;
+	frame_queue_t tracked;
+
+	int pipelinedepth;
+	int pipelinepolicy;
+
 	int mode;
+	int recordformat;
 	volatile bool enabled;
 
+	// While paused, capture waits and the presenter parks between frames,
+	// so that the surface can be swapped under it; see pause_worker()
+	pthread_mutex_t pausemutex;
+	pthread_cond_t pausecond;
+	bool paused;
+	bool presenting;
+
 	jobject bitmap;
 
+	// Frames go straight into the surface's buffers when this is set, or
+	// through bitmap and VisualView.blitBitmap() when it is not
+	ANativeWindow *window;
+
 	volatile int orientation;
-	cv::Mat orientedframe;
 	cv::Mat orientedgray;
+	cv::Mat scaledgray;
 
 	bool sourceinited;
 
 	int framecount;
 
-	std::unique_ptr<cv::VideoCapture> capture;
+	// Camera frames arrive from VisualView's preview callback
+	std::vector<preview_buffer_t> previewbuffers;
+	pthread_mutex_t previewmutex;
+	frame_t previewframe;
 
 	std::string videopath;
 
-	jsoncons::json expressions;
+	// Batch mode works through these, one after another
+	std::vector<std::string> videopaths;
+	size_t batchindex;
+	int expectedframes;
 
-	AVFormatContext *avformat;
-	AVStream *avstream;
-	AVCodecContext *avcodec;
+	expression_writer_t writer;
 
-	AVPacket avpacket;
-	int avpacketoffset;
+	video_t video;
 
-	AVFrame *avframe;
-	AVPicture avpicture;
+	// Batch mode splits each video between this many trackers
+	int trackingthreads;
 
-	SwsContext *swscontext;
+	// Where the models came from, and so where they go back to in the cache
+	std::string modelpath;
+	std::string paramspath;
+	std::string avatarpath;
 
 	std::unique_ptr<FACETRACKER::FaceTracker> facetracker;
 	std::unique_ptr<FACETRACKER::FaceTrackerParams> facetrackerparams;
 
 	int facestrength;
-	bool calibrated;
+
+	// Multi-face mode tracks up to maxfaces faces, each with a tracker of
+	// its own on facetracker's models, which itself only detects; a
+	// maxfaces of 1 leaves everything to facetracker. Trackers of faces
+	// that were lost are kept in sparetrackers for the next ones found.
+	int maxfaces;
+	std::vector<face_t> faces;
+	std::vector<std::unique_ptr<FACETRACKER::FaceTracker> > sparetrackers;
+	int nextfaceid;
+	int sincedetect;
+	face_pool_t facepool;
+
+	// UI thread -> worker
+	command_queue_t commands;
+
+	// Worker only: the current calibration of the avatar, and face images
+	// waiting for a frame to go out with
+	int calibration;
+	std::vector<face_request_t> saves;
+
+	// Presenter only: the calibration the avatar was last initialised for
+	int avatarcalibration;
+
+	governor_t governor;
+
+	// VisualView's stats buffer, or NULL if there is none
+	int32_t *stats;
 
 	std::unique_ptr<AVATAR::Avatar> avatar;
+};
 
-	cv::Rect face;
+// VisualView's fields and methods, looked up once when the class is loaded
+// (see initIDs())
+struct visual_view_ids_t {
+	jfieldID f_data;
+	jfieldID f_mode, f_recordFormat, f_pipelineDepth, f_pipelinePolicy, f_frameBudget, f_trackingThreads, f_maxFaces;
+	jfieldID f_statsBuffer;
+	jfieldID f_assets;
+	jfieldID f_modelPath, f_paramsPath, f_avatarPath, f_videoPath, f_videoPaths;
 
 	jmethodID m_blitBitmap;
+	jmethodID m_recyclePreviewBuffer;
+	jmethodID m_reportBatchProgress;
+	jmethodID m_reportFaceImage;
+};
+
+visual_view_ids_t ids;
+
+// Models no worker is using at the moment, by the path they were loaded
+// from. Loading them takes seconds, so they stay around for the next worker
+// for as long as the process does, or until VisualView.releaseModels().
+pthread_mutex_t modelmutex = PTHREAD_MUTEX_INITIALIZER;
+std::vector<std::pair<std::string,FACETRACKER::FaceTracker *> > idletrackers;
+std::vector<std::pair<std::string,FACETRACKER::FaceTrackerParams *> > idleparams;
+std::vector<std::pair<std::string,AVATAR::Avatar *> > idleavatars;
+
+// A stretch of a video that batch mode tracks on its own thread with its own
+// tracker. Frames are numbered by their rank in presentation order, which is
+// what a sequential pass would have numbered them. Decoding starts from the
+// keyframe before warmup, tracking from warmup so that the tracker has found
+// the face by first, and recording from first until end.
+struct segment_t {
+	data_t *data;
+	pthread_t thread;
+
+	const std::vector<int64_t> *pts;
+	int warmup, first, end;
+
+	FACETRACKER::FaceTracker *tracker;
+	std::unique_ptr<FACETRACKER::FaceTracker> ownedtracker;
+
+	// Frames go here until the segments are merged
+	std::string framespath;
+
+	volatile int tracked;
+	volatile bool done;
+	bool complete;
 };
 
 template <typename T>
@@ -101,491 +495,2372 @@ std::string to_string(T val) {
 	return os.str();
 }
 
-jint get_int(JNIEnv *jenv, jobject jthis, const char *name) {
-	jclass c_this;
-	jfieldID f_int;
+// Monotonic clock in microseconds, for the stats
+int64_t stats_clock() {
+	struct timespec now;
+
+	clock_gettime(CLOCK_MONOTONIC,&now);
+
+	return (int64_t) now.tv_sec*1000000 + now.tv_nsec/1000;
+}
+
+// Bump a counter in the stats buffer; the buffer is shared with Java and with
+// any other thread, so nothing here ever blocks
+void count_stat(data_t *data, int index) {
+	if(data->stats)
+		__atomic_fetch_add(data->stats + index,1,__ATOMIC_RELAXED);
+}
+
+// Put the time since start, from stats_clock(), into stage's histogram
+void time_stage(data_t *data, int stage, int64_t start) {
+	int64_t elapsed = stats_clock() - start;
+	int bucket = 0;
+
+	while((elapsed >>= 1) > 0 && bucket < STATS_BUCKETS - 1)
+		bucket++;
+
+	count_stat(data,STATS_STAGES + stage*STATS_BUCKETS + bucket);
+}
+
+void count_face_strength(data_t *data, int facestrength) {
+	count_stat(data,STATS_FACE_STRENGTH + std::max(0,std::min(STATS_FACE_STRENGTHS - 1,facestrength + 2)));
+}
+
+// Whether the tracker is about to look for a face from scratch, rather than
+// follow the one it had
+bool will_detect(FACETRACKER::FaceTracker *tracker) {
+	FACETRACKER::myFaceTracker *mytracker = dynamic_cast<FACETRACKER::myFaceTracker *>(tracker);
+
+	return mytracker && mytracker->_time < 0;
+}
+
+// Stop tracking face i, keeping its tracker for another face
+void drop_face(data_t *data, size_t i) {
+	LOGI(std::string("lost face ").append(to_string(data->faces[i].id)).c_str());
+
+	data->sparetrackers.push_back(std::move(data->faces[i].tracker));
+	data->faces.erase(data->faces.begin() + i);
+}
+
+// Forget every face, such as when the trackers' coordinates change
+void clear_faces(data_t *data) {
+	while(!data->faces.empty())
+		drop_face(data,data->faces.size() - 1);
+	data->sincedetect = 0;
+}
+
+void init_queue(frame_queue_t &queue, size_t depth, bool dropoldest, int32_t *dropstat) {
+	queue.slots.resize(std::max<size_t>(depth,1));
+	queue.head = 0;
+	queue.count = 0;
+
+	queue.dropoldest = dropoldest;
+	queue.closed = false;
+	queue.dropped = 0;
+	queue.dropstat = dropstat;
+
+	pthread_mutex_init(&queue.mutex,NULL);
+	pthread_cond_init(&queue.notempty,NULL);
+	pthread_cond_init(&queue.notfull,NULL);
+}
+
+void destroy_queue(frame_queue_t &queue) {
+	pthread_cond_destroy(&queue.notfull);
+	pthread_cond_destroy(&queue.notempty);
+	pthread_mutex_destroy(&queue.mutex);
+
+	queue.slots.clear();
+}
+
+// Hand frame to the next stage, getting an old frame's buffers back in it;
+// when the queue is full, either wait or throw away the oldest frame.
+// Returns false once the queue has been closed.
+bool push_frame(frame_queue_t &queue, frame_t &frame) {
+	bool pushed = false;
+
+	pthread_mutex_lock(&queue.mutex);
+
+	while(!queue.closed && queue.count == queue.slots.size()) {
+		if(queue.dropoldest) {
+			queue.head = (queue.head + 1)%queue.slots.size();
+			queue.count--;
+			queue.dropped++;
+			if(queue.dropstat)
+				__atomic_fetch_add(queue.dropstat,1,__ATOMIC_RELAXED);
+		} else pthread_cond_wait(&queue.notfull,&queue.mutex);
+	}
+
+	if(!queue.closed) {
+		std::swap(frame,queue.slots[(queue.head + queue.count)%queue.slots.size()]);
+		queue.count++;
+		pushed = true;
+
+		pthread_cond_signal(&queue.notempty);
+	}
+
+	pthread_mutex_unlock(&queue.mutex);
+
+	return pushed;
+}
+
+// Take the oldest frame, giving the queue frame's buffers in exchange;
+// returns false once the queue is closed and empty
+bool pop_frame(frame_queue_t &queue, frame_t &frame) {
+	bool popped = false;
+
+	pthread_mutex_lock(&queue.mutex);
+
+	while(!queue.closed && queue.count == 0)
+		pthread_cond_wait(&queue.notempty,&queue.mutex);
+
+	if(queue.count > 0) {
+		std::swap(frame,queue.slots[queue.head]);
+		queue.head = (queue.head + 1)%queue.slots.size();
+		queue.count--;
+		popped = true;
+
+		pthread_cond_signal(&queue.notfull);
+	}
+
+	pthread_mutex_unlock(&queue.mutex);
+
+	return popped;
+}
+
+// Empty a closed queue and let frames through again, unless the worker has
+// been told to stop in the meantime
+void reopen_queue(frame_queue_t &queue, volatile bool &enabled) {
+	pthread_mutex_lock(&queue.mutex);
+	if(enabled) {
+		queue.head = 0;
+		queue.count = 0;
+		queue.closed = false;
+	}
+	pthread_mutex_unlock(&queue.mutex);
+}
+
+// Wake everyone waiting on the queue and refuse any more frames
+void close_queue(frame_queue_t &queue) {
+	pthread_mutex_lock(&queue.mutex);
+	queue.closed = true;
+	pthread_cond_broadcast(&queue.notempty);
+	pthread_cond_broadcast(&queue.notfull);
+	pthread_mutex_unlock(&queue.mutex);
+}
+
+// Queue command, taking its contents; returns false, leaving command alone,
+// if the queue is full. Only the UI thread may call this.
+bool push_command(command_queue_t &queue, command_t &command) {
+	size_t tail = __atomic_load_n(&queue.tail,__ATOMIC_RELAXED);
 
-	c_this = jenv->GetObjectClass(jthis);
-	f_int = jenv->GetFieldID(c_this,name,"I");
+	if(tail - __atomic_load_n(&queue.head,__ATOMIC_ACQUIRE) == COMMAND_QUEUE_SIZE)
+		return false;
 
+	std::swap(queue.slots[tail%COMMAND_QUEUE_SIZE],command);
+	__atomic_store_n(&queue.tail,tail + 1,__ATOMIC_RELEASE);
+
+	return true;
+}
+
+// Take the oldest command, if there is one; only the worker may call this
+bool pop_command(command_queue_t &queue, command_t &command) {
+	size_t head = __atomic_load_n(&queue.head,__ATOMIC_RELAXED);
+
+	if(head == __atomic_load_n(&queue.tail,__ATOMIC_ACQUIRE))
+		return false;
+
+	std::swap(command,queue.slots[head%COMMAND_QUEUE_SIZE]);
+	__atomic_store_n(&queue.head,head + 1,__ATOMIC_RELEASE);
+
+	return true;
+}
+
+jint get_int(JNIEnv *jenv, jobject jthis, jfieldID f_int) {
 	return jenv->GetIntField(jthis,f_int);
 }
 
-std::string get_string(JNIEnv *jenv, jobject jthis, const char *name) {
-	jclass c_this;
+std::string get_string(JNIEnv *jenv, jobject jthis, jfieldID f_string) {
 	jstring s_string;
-	jfieldID f_string;
 	std::string string;
 	const char *cstring;
 
-	c_this = jenv->GetObjectClass(jthis);
-	f_string = jenv->GetFieldID(c_this,name,"Ljava/lang/String;");
 	s_string = (jstring) jenv->GetObjectField(jthis,f_string);
 	if(!s_string) return std::string();
 
 	cstring = jenv->GetStringUTFChars(s_string,NULL);
 	string = std::string(cstring);
 	jenv->ReleaseStringUTFChars(s_string,cstring);
+	jenv->DeleteLocalRef(s_string);
+
+	return string;
+}
+
+// A column vector as a flat array
+jsoncons::json mat_to_json(const cv::Mat &mat) {
+	jsoncons::json array(jsoncons::json::an_array);
+
+	for(int i = 0; i < mat.rows; i++)
+		array.add(mat.at<double>(i,0));
+
+	return array;
+}
+
+// The tracker's shape model, as {"mean": points, "modes": [points, ...]}
+// with points in the same [[x, y, z], ...] form as points3d
+jsoncons::json shape_basis_to_json(FACETRACKER::FaceTracker *tracker) {
+	jsoncons::json basis;
+	jsoncons::json modes(jsoncons::json::an_array);
+
+	// LoadFaceTracker() only ever makes myFaceTrackers
+	FACETRACKER::PDM3D &pdm = static_cast<FACETRACKER::myFaceTracker *>(tracker)->_clm._pdm;
+
+	// The model stores all the x coordinates, then the y, then the z
+	int n = pdm._M.rows/3;
+	auto shape = [n](const cv::Mat &mat, int col) {
+		jsoncons::json points(jsoncons::json::an_array);
+
+		for(int i = 0; i < n; i++) {
+			jsoncons::json point(jsoncons::json::an_array);
+			point.add(mat.at<double>(i,col));
+			point.add(mat.at<double>(i + n,col));
+			point.add(mat.at<double>(i + 2*n,col));
+			points.add(std::move(point));
+		}
+
+		return points;
+	};
+
+	basis["mean"] = shape(pdm._M,0);
+
+	for(int j = 0; j < pdm._V.cols; j++)
+		modes.add(shape(pdm._V,j));
+	basis["modes"] = std::move(modes);
+
+	return basis;
+}
+
+std::vector<std::string> get_string_array(JNIEnv *jenv, jobject jthis, jfieldID f_array) {
+	jobjectArray a_array;
+	std::vector<std::string> strings;
+
+	a_array = (jobjectArray) jenv->GetObjectField(jthis,f_array);
+	if(!a_array) return strings;
+
+	for(jsize i = 0; i < jenv->GetArrayLength(a_array); i++) {
+		jstring s_string = (jstring) jenv->GetObjectArrayElement(a_array,i);
+		if(!s_string) continue;
+
+		const char *cstring = jenv->GetStringUTFChars(s_string,NULL);
+		strings.push_back(std::string(cstring));
+		jenv->ReleaseStringUTFChars(s_string,cstring);
+
+		jenv->DeleteLocalRef(s_string);
+	}
+
+	return strings;
+}
+
+data_t *get_data(JNIEnv *jenv, jobject jthis) {
+	jobject o_data;
+	data_t *data;
+
+	o_data = jenv->GetObjectField(jthis,ids.f_data);
+	if(!o_data) return NULL;
+
+	data = (data_t *) jenv->GetDirectBufferAddress(o_data);
+	jenv->DeleteLocalRef(o_data);
+
+	return data;
+}
+
+void set_data(JNIEnv *jenv, jobject jthis, data_t *data) {
+	jobject o_data;
+
+	if(data) {
+		o_data = jenv->NewDirectByteBuffer(data,0);
+		jenv->SetObjectField(jthis,ids.f_data,o_data);
+		jenv->DeleteLocalRef(o_data);
+	} else jenv->SetObjectField(jthis,ids.f_data,NULL);
+}
+
+// Take a model loaded from path out of idle, if there is one
+template <typename T>
+std::unique_ptr<T> take_model(std::vector<std::pair<std::string,T *> > &idle, const std::string &path) {
+	T *model = NULL;
+
+	pthread_mutex_lock(&modelmutex);
+	for(size_t i = 0; i < idle.size(); i++) {
+		if(idle[i].first == path) {
+			model = idle[i].second;
+			idle.erase(idle.begin() + i);
+			break;
+		}
+	}
+	pthread_mutex_unlock(&modelmutex);
+
+	return std::unique_ptr<T>(model);
+}
+
+// Hand model back to idle for the next worker, or free it if idle is full
+template <typename T>
+void give_model(std::vector<std::pair<std::string,T *> > &idle, const std::string &path, std::unique_ptr<T> &model) {
+	if(!model) return;
+
+	pthread_mutex_lock(&modelmutex);
+	if(idle.size() < MODEL_CACHE_SIZE) {
+		idle.push_back(std::make_pair(path,model.get()));
+		model.release();
+	}
+	pthread_mutex_unlock(&modelmutex);
+
+	model.reset();
+}
+
+// Free every model in idle
+template <typename T>
+void free_models(std::vector<std::pair<std::string,T *> > &idle) {
+	std::vector<std::pair<std::string,T *> > models;
+
+	pthread_mutex_lock(&modelmutex);
+	models.swap(idle);
+	pthread_mutex_unlock(&modelmutex);
+
+	for(size_t i = 0; i < models.size(); i++)
+		delete models[i].second;
+}
+
+// Parse the model at path: a relative path names an asset, which is read
+// in place out of the APK, and anything else a file
+template <typename T>
+std::unique_ptr<T> read_model(AAssetManager *assets, const std::string &path, T *(*fromfile)(const char *),
+	T *(*fromstream)(std::istream &)) {
+	if(!path.empty() && path[0] != '/') {
+		asset_stream_t stream(assets,path.c_str());
+		if(!stream) {
+			LOGE(std::string("cannot open asset ").append(path).c_str());
+			return std::unique_ptr<T>();
+		}
+
+		return std::unique_ptr<T>(fromstream(stream));
+	}
+
+	return std::unique_ptr<T>(fromfile(path.c_str()));
+}
+
+// A tracker for path, ready to look for a face
+std::unique_ptr<FACETRACKER::FaceTracker> load_tracker(AAssetManager *assets, const std::string &path) {
+	std::unique_ptr<FACETRACKER::FaceTracker> tracker = take_model(idletrackers,path);
+
+	if(tracker)
+		tracker->Reset();
+	else tracker = read_model<FACETRACKER::FaceTracker>(assets,path,FACETRACKER::LoadFaceTracker,FACETRACKER::LoadFaceTracker);
+
+	return tracker;
+}
+
+std::unique_ptr<FACETRACKER::FaceTrackerParams> load_tracker_params(AAssetManager *assets, const std::string &path) {
+	std::unique_ptr<FACETRACKER::FaceTrackerParams> params = take_model(idleparams,path);
+
+	if(!params) {
+		params = read_model<FACETRACKER::FaceTrackerParams>(assets,path,FACETRACKER::LoadFaceTrackerParams,
+			FACETRACKER::LoadFaceTrackerParams);
+	}
+
+	return params;
+}
+
+// The avatar still needs calibrating with a face either way
+std::unique_ptr<AVATAR::Avatar> load_avatar(AAssetManager *assets, const std::string &path) {
+	std::unique_ptr<AVATAR::Avatar> avatar = take_model(idleavatars,path);
+
+	if(!avatar) {
+		avatar = read_model<AVATAR::Avatar>(assets,path,AVATAR::LoadAvatar,AVATAR::LoadAvatar);
+		if(avatar) avatar->setAvatar(2);
+	}
+
+	return avatar;
+}
+
+// Open the first video stream in path for decoding; close_video() cleans up
+// after a failure too
+bool open_video(video_t &video, const std::string &path) {
+	AVCodec *codec;
+
+	av_register_all();
+
+	// Open the video file
+	video.avformat = avformat_alloc_context();
+	if(avformat_open_input(&video.avformat,path.c_str(),NULL,NULL) < 0) {
+		LOGE(std::string("cannot open ").append(path).c_str());
+		return false;
+	}
+
+	// Get info about the file
+	if(avformat_find_stream_info(video.avformat,NULL) < 0) {
+		LOGE("cannot get video file info");
+		return false;
+	}
+
+	// Find the first video stream
+	video.avstream = NULL;
+	for(unsigned int i = 0; i < video.avformat->nb_streams; i++) {
+		AVCodecContext *codec = video.avformat->streams[i]->codec;
+		if(codec->codec_type == AVMEDIA_TYPE_VIDEO) {
+			video.avstream = video.avformat->streams[i];
+			break;
+		}
+	}
+
+	// Abort if there isn't one
+	if(!video.avstream) {
+		LOGE("cannot find video stream");
+		return false;
+	}
+
+	// Find a decoder for the stream
+	codec = avcodec_find_decoder(video.avstream->codec->codec_id);
+	if(!codec) {
+		LOGE(std::string("cannot find decoder for codec ID ")
+			.append(to_string(video.avstream->codec->codec_id)).c_str());
+		return false;
+	}
+
+	video.avcodec = avcodec_alloc_context3(codec);
+	video.avcodec->extradata = video.avstream->codec->extradata;
+	video.avcodec->extradata_size = video.avstream->codec->extradata_size;
+
+	if(avcodec_open2(video.avcodec,codec,NULL) < 0) {
+		LOGE("cannot open codec");
+		return false;
+	}
+
+	// Prepare for decoding
+	av_init_packet(&video.avpacket);
+	video.avpacketoffset = 0;
+
+	video.avframe = av_frame_alloc();
+
+	return true;
+}
+
+void close_video(video_t &video) {
+	if(video.swscontext) {
+		sws_freeContext(video.swscontext);
+		video.swscontext = NULL;
+	}
+
+	if(video.avpicture.data[0])
+		avpicture_free(&video.avpicture);
+
+	if(video.avframe)
+		av_frame_free(&video.avframe);
+
+	if(video.avpacket.data)
+		av_free_packet(&video.avpacket);
+
+	if(video.avcodec) {
+		if(avcodec_is_open(video.avcodec))
+			avcodec_close(video.avcodec);
+
+		av_freep(&video.avcodec->subtitle_header);
+		av_freep(&video.avcodec);
+	}
+
+	if(video.avformat)
+		avformat_close_input(&video.avformat);
+}
+
+// Continue decoding from the keyframe at or before pts
+bool seek_video(video_t &video, int64_t pts) {
+	if(av_seek_frame(video.avformat,video.avstream->index,pts,AVSEEK_FLAG_BACKWARD) < 0) {
+		LOGE("cannot seek video");
+		return false;
+	}
+
+	avcodec_flush_buffers(video.avcodec);
+
+	if(video.avpacket.data)
+		av_free_packet(&video.avpacket);
+	video.avpacketoffset = 0;
+
+	return true;
+}
+
+// Decode the next frame into video.avframe; returns false at the end
+bool decode_video_frame(video_t &video) {
+	int gotframe;
+	do {
+		// Demux a packet from the stream
+		if(video.avpacketoffset >= video.avpacket.size) {
+			video.avpacketoffset = 0;
+
+			do {
+				av_free_packet(&video.avpacket);
+
+				if(av_read_frame(video.avformat,&video.avpacket) < 0)
+					return false; // EOF
+			} while(video.avpacket.stream_index != video.avstream->index);
+		}
+
+		AVPacket packet;
+		av_init_packet(&packet);
+		packet.data = video.avpacket.data + video.avpacketoffset;
+		packet.size = video.avpacket.size - video.avpacketoffset;
+
+		// Decode a frame from the packet, if we can
+		int nbytes = avcodec_decode_video2(video.avcodec,video.avframe,&gotframe,&packet);
+		if(nbytes < 0) {
+			LOGE("cannot decode frame");
+			return false;
+		}
+		video.avpacketoffset += nbytes;
+	} while(!gotframe);
+
+	return true;
+}
+
+// Export the last decoded frame as BGR or gray; frame shares the video's
+// buffer, which the next conversion overwrites
+void convert_video_frame(video_t &video, AVPixelFormat format, cv::Mat &frame) {
+	// Make sure we have a destination
+	if(!video.avpicture.data[0])
+		avpicture_alloc(&video.avpicture,format,video.avframe->width,video.avframe->height);
+
+	// Transform from YUV to BGR or gray
+	video.swscontext = sws_getCachedContext(video.swscontext,video.avframe->width,video.avframe->height,
+		(AVPixelFormat) video.avframe->format,video.avframe->width,video.avframe->height,
+		format,SWS_POINT,NULL,NULL,NULL);
+	sws_scale(video.swscontext,video.avframe->data,video.avframe->linesize,0,video.avframe->height,
+		video.avpicture.data,video.avpicture.linesize);
+
+	frame = cv::Mat(video.avframe->height,video.avframe->width,format == PIX_FMT_GRAY8 ? CV_8UC1 : CV_8UC3,
+		video.avpicture.data[0],video.avpicture.linesize[0]);
+}
+
+bool get_frame(data_t *data, cv::Mat &frame) {
+	int64_t start;
+
+	switch(data->mode) {
+	case MODE_CAMERA:
+		// The preview callback supplies these
+		return false;
+
+	case MODE_FILE:
+	case MODE_BATCH:
+		start = stats_clock();
+		if(!decode_video_frame(data->video))
+			return false;
+		time_stage(data,STAGE_DECODE,start);
+
+		// Batch mode only ever needs the brightness
+		start = stats_clock();
+		convert_video_frame(data->video,data->mode == MODE_BATCH ? PIX_FMT_GRAY8 : PIX_FMT_BGR24,frame);
+		time_stage(data,STAGE_CONVERT,start);
+		break;
+	}
+
+	data->framecount++;
+
+	return true;
+}
+
+// Rotate and mirror src into dst to match the view
+void orient_frame(const cv::Mat &src, cv::Mat &dst, int orientation) {
+	switch(orientation) {
+	case 0:
+		cv::flip(src,dst,1);
+		break;
+
+	case 90:
+		cv::transpose(src,dst);
+		break;
+
+	case 180:
+		cv::flip(src,dst,0);
+		break;
+
+	case 270:
+		cv::transpose(src,dst);
+		cv::flip(dst,dst,-1);
+		break;
+	}
+}
+
+// Where orient_frame() takes each pixel from: oriented pixel (x, y) is
+// source pixel (sx + sxx*x + sxy*y, sy + syx*x + syy*y)
+struct orientation_map_t {
+	int width, height; // Oriented size
+	int sx, sxx, sxy;
+	int sy, syx, syy;
+};
+
+orientation_map_t map_orientation(int width, int height, int orientation) {
+	orientation_map_t map;
+
+	map.width = orientation == 90 || orientation == 270 ? height : width;
+	map.height = orientation == 90 || orientation == 270 ? width : height;
+
+	switch(orientation) {
+	case 0:   map.sx = width - 1; map.sxx = -1; map.sxy =  0; map.sy = 0;          map.syx =  0; map.syy =  1; break;
+	case 90:  map.sx = 0;         map.sxx =  0; map.sxy =  1; map.sy = 0;          map.syx =  1; map.syy =  0; break;
+	case 180: map.sx = 0;         map.sxx =  1; map.sxy =  0; map.sy = height - 1; map.syx =  0; map.syy = -1; break;
+	case 270: map.sx = width - 1; map.sxx =  0; map.sxy = -1; map.sy = height - 1; map.syx = -1; map.syy =  0; break;
+	default:  map.sx = 0;         map.sxx =  1; map.sxy =  0; map.sy = 0;          map.syx =  0; map.syy =  1; break;
+	}
+
+	return map;
+}
+
+// Size of src once oriented; NV21 frames are 3/2 as tall as their picture
+cv::Size oriented_size(const cv::Mat &src, bool nv21, int orientation) {
+	orientation_map_t map = map_orientation(src.cols,nv21 ? 2*src.rows/3 : src.rows,orientation);
+	return cv::Size(map.width,map.height);
+}
+
+static inline uint8_t clamp_byte(int value) {
+	return value < 0 ? 0 : value > 0xFF ? 0xFF : value;
+}
+
+// BT.601 in 20-bit fixed point, as CV_YUV2BGR_NV21 does it
+static inline void nv21_pixel(const cv::Mat &nv21, int height, int x, int y, uint8_t *b, uint8_t *g, uint8_t *r) {
+	const uint8_t *vu = nv21.ptr(height + y/2) + (x & ~1);
+	int luma = std::max(0,nv21.ptr(y)[x] - 16)*1220542 + (1 << 19);
+	int v = vu[0] - 128;
+	int u = vu[1] - 128;
+
+	*r = clamp_byte((luma + 1673527*v) >> 20);
+	*g = clamp_byte((luma - 852492*v - 409993*u) >> 20);
+	*b = clamp_byte((luma + 2116026*u) >> 20);
+}
+
+// orient_frame() and CV_BGR2GRAY in one pass; gray frames are just oriented
+void orient_gray(const cv::Mat &src, cv::Mat &gray, int orientation) {
+	if(src.channels() == 1) {
+		orient_frame(src,gray,orientation);
+		return;
+	}
+
+	orientation_map_t map = map_orientation(src.cols,src.rows,orientation);
+	ptrdiff_t step = map.syx*(ptrdiff_t) src.step + 3*map.sxx;
+
+	gray.create(map.height,map.width,CV_8UC1);
+
+	for(int y = 0; y < map.height; y++) {
+		const uint8_t *s = src.ptr(map.sy + map.syy*y) + 3*(map.sx + map.sxy*y);
+		uint8_t *d = gray.ptr(y);
+
+		for(int x = 0; x < map.width; x++, s += step)
+			d[x] = (s[0]*1868 + s[1]*9617 + s[2]*4899 + (1 << 13)) >> 14;
+	}
+}
+
+// CV_YUV2BGR_NV21 and orient_frame() in one pass
+void orient_nv21_bgr(const cv::Mat &nv21, cv::Mat &bgr, int orientation) {
+	int height = 2*nv21.rows/3;
+	orientation_map_t map = map_orientation(nv21.cols,height,orientation);
+
+	bgr.create(map.height,map.width,CV_8UC3);
+
+	for(int y = 0; y < map.height; y++) {
+		int sx = map.sx + map.sxy*y;
+		int sy = map.sy + map.syy*y;
+		uint8_t *d = bgr.ptr(y);
+
+		for(int x = 0; x < map.width; x++, sx += map.sxx, sy += map.syx, d += 3)
+			nv21_pixel(nv21,height,sx,sy,d,d + 1,d + 2);
+	}
+}
+
+// Orient, scale (nearest neighbor) and convert src to RGBA in one pass, into
+// all of dst; only the pixels that end up in dst are ever converted, so it
+// costs the same however big src is. src is BGR or NV21.
+void blit_rgba(const cv::Mat &src, bool nv21, int orientation, cv::Mat &dst) {
+	int height = nv21 ? 2*src.rows/3 : src.rows;
+	orientation_map_t map = map_orientation(src.cols,height,orientation);
+	std::vector<int> columns(dst.cols);
+
+	for(int x = 0; x < dst.cols; x++)
+		columns[x] = x*map.width/dst.cols;
+
+	for(int y = 0; y < dst.rows; y++) {
+		int oy = y*map.height/dst.rows;
+		uint8_t *d = dst.ptr(y);
+
+		for(int x = 0; x < dst.cols; x++, d += 4) {
+			int sx = map.sx + map.sxx*columns[x] + map.sxy*oy;
+			int sy = map.sy + map.syx*columns[x] + map.syy*oy;
+
+			if(nv21)
+				nv21_pixel(src,height,sx,sy,d + 2,d + 1,d);
+			else {
+				const uint8_t *s = src.ptr(sy) + 3*sx;
+				d[0] = s[2];
+				d[1] = s[1];
+				d[2] = s[0];
+			}
+
+			d[3] = 0xFF;
+		}
+	}
+}
+
+// The source rectangle that orients to r, an oriented rectangle
+cv::Rect source_rect(const orientation_map_t &map, cv::Rect r) {
+	int x0 = map.sx + map.sxx*r.x + map.sxy*r.y;
+	int y0 = map.sy + map.syx*r.x + map.syy*r.y;
+	int x1 = map.sx + map.sxx*(r.x + r.width - 1) + map.sxy*(r.y + r.height - 1);
+	int y1 = map.sy + map.syx*(r.x + r.width - 1) + map.syy*(r.y + r.height - 1);
+
+	return cv::Rect(std::min(x0,x1),std::min(y0,y1),std::abs(x1 - x0) + 1,std::abs(y1 - y0) + 1);
+}
+
+// What the tracker gives up at each governor level, from full quality at 0:
+// first everything but the face, then the appearance model and half its
+// iterations, then resolution. Crops only move the face around, which the
+// tracker follows like any other motion, but a new scale means starting over.
+struct governor_level_t {
+	bool crop;
+	bool light;
+	double scale;
+};
+
+const governor_level_t governor_levels[GOVERNOR_LEVELS] = {
+	{false, false, 1},
+	{true,  false, 1},
+	{true,  true,  1},
+	{true,  true,  0.75},
+	{true,  true,  0.5}
+};
+
+tracking_view_t whole_view(cv::Size size) {
+	tracking_view_t view;
+
+	view.roi = cv::Rect(0,0,size.width,size.height);
+	view.scale = 1;
+
+	return view;
+}
+
+// Move points the tracker found into the coordinates of the oriented frame
+void view_to_frame(const tracking_view_t &view, FACETRACKER::PointVector &points) {
+	for(unsigned int i = 0; i < points.size(); i++) {
+		points[i].x = points[i].x/view.scale + view.roi.x;
+		points[i].y = points[i].y/view.scale + view.roi.y;
+	}
+}
+
+// Bounding box of shape; empty if it is
+cv::Rect shape_bounds(const FACETRACKER::PointVector &shape) {
+	double xmin, ymin, xmax, ymax;
+
+	if(shape.empty())
+		return cv::Rect();
+
+	xmin = xmax = shape[0].x;
+	ymin = ymax = shape[0].y;
+	for(unsigned int i = 1; i < shape.size(); i++) {
+		xmin = std::min(xmin,shape[i].x);
+		ymin = std::min(ymin,shape[i].y);
+		xmax = std::max(xmax,shape[i].x);
+		ymax = std::max(ymax,shape[i].y);
+	}
+
+	return cv::Rect(std::floor(xmin),std::floor(ymin),std::ceil(xmax - xmin) + 1,std::ceil(ymax - ymin) + 1);
+}
+
+// What part of an oriented frame of size to track, and at what scale, at the
+// governor's current level; crops need a face to crop to
+tracking_view_t choose_tracking_view(const governor_t &governor, cv::Size size) {
+	const governor_level_t &level = governor_levels[governor.level];
+	tracking_view_t view = whole_view(size);
+	cv::Rect face = governor.face;
+	int margin;
+
+	view.scale = level.scale;
+
+	if(level.crop && face.area() > 0) {
+		margin = GOVERNOR_CROP_MARGIN*std::max(face.width,face.height);
+		view.roi &= cv::Rect(face.x - margin,face.y - margin,face.width + 2*margin,face.height + 2*margin);
+
+		// The face has left the frame
+		if(view.roi.area() == 0)
+			view.roi = cv::Rect(0,0,size.width,size.height);
+	}
+
+	return view;
+}
+
+// Start the governor over at full quality with budget seconds per frame, or
+// turn it off with 0; needs the tracker parameters loaded
+void init_governor(data_t *data, double budget) {
+	governor_t &governor = data->governor;
+	FACETRACKER::myFaceTrackerParams *params;
+
+	governor.budget = budget;
+	governor.level = 0;
+	governor.average = 0;
+	std::fill(governor.cost,governor.cost + GOVERNOR_LEVELS,0);
+	governor.settle = 0;
+	governor.sinceforget = 0;
+	governor.face = cv::Rect();
+
+	// What it tracks with when it needs to save time
+	params = dynamic_cast<FACETRACKER::myFaceTrackerParams *>(data->facetrackerparams.get());
+	if(params) {
+		FACETRACKER::myFaceTrackerParams *light = new FACETRACKER::myFaceTrackerParams(*params);
+		light->track_type = 0;
+		light->itol = std::max(1,params->itol/2);
+		governor.lightparams = std::unique_ptr<FACETRACKER::FaceTrackerParams>(light);
+	} else governor.lightparams.reset();
+}
+
+// Weigh how long the last frame took to track against the budget: drop a
+// level as soon as the recent average is over, and climb back once it fits
+// comfortably, unless the level above was last seen to be over. What it has
+// seen of the other levels goes stale as the scene changes, so it is
+// forgotten every so often. Runs on the worker thread, like the tracker.
+void govern_tracking(data_t *data, double duration) {
+	governor_t &governor = data->governor;
+	int level = governor.level;
+
+	if(governor.budget <= 0)
+		return;
+
+	if(++governor.sinceforget == GOVERNOR_MEMORY_FRAMES) {
+		std::fill(governor.cost,governor.cost + GOVERNOR_LEVELS,0);
+		governor.sinceforget = 0;
+	}
+
+	// Changes take a few frames to show, especially when the tracker has
+	// to find the face again
+	if(governor.settle > 0) {
+		governor.settle--;
+		governor.average = duration;
+		return;
+	}
+
+	governor.average += GOVERNOR_SMOOTHING*(duration - governor.average);
+
+	if(governor.average > governor.budget && level + 1 < GOVERNOR_LEVELS)
+		level++;
+	else if(governor.average < GOVERNOR_HEADROOM*governor.budget && level > 0
+		&& governor.cost[level - 1] < governor.budget)
+		level--;
+
+	if(level == governor.level)
+		return;
+
+	LOGI(std::string("tracking at level ").append(to_string(level)).append(", was taking ")
+		.append(to_string(governor.average)).c_str());
+
+	governor.cost[governor.level] = governor.average;
+
+	// The trackers' idea of the faces is in pixels at the old scale
+	if(governor_levels[level].scale != governor_levels[governor.level].scale && data->facetracker) {
+		data->facetracker->Reset();
+		clear_faces(data);
+	}
+
+	governor.level = level;
+	governor.settle = GOVERNOR_SETTLE_FRAMES;
+}
+
+// Bit stream of a .bin block, least significant bit first
+struct bit_writer_t {
+	std::vector<uint8_t> &out;
+	uint64_t bits;
+	int nbits;
+};
+
+// Append the low n bits of value, n <= 32
+void write_bits(bit_writer_t &writer, uint32_t value, int n) {
+	writer.bits |= (uint64_t) value << writer.nbits;
+	writer.nbits += n;
+
+	while(writer.nbits >= 8) {
+		writer.out.push_back(writer.bits);
+		writer.bits >>= 8;
+		writer.nbits -= 8;
+	}
+}
+
+// The Rice parameter that codes every 3rd zigzag from axis the smallest, from
+// around the one the mean suggests
+int rice_parameter(const std::vector<uint32_t> &zigzags, size_t axis) {
+	uint64_t sum = 0;
+	size_t count = 0;
+	int guess, best = 0;
+	uint64_t bestcost = UINT64_MAX;
+
+	for(size_t v = axis; v < zigzags.size(); v += 3, count++)
+		sum += zigzags[v];
+
+	guess = 0;
+	for(uint64_t mean = sum/count; mean > 1; mean >>= 1)
+		guess++;
+
+	for(int k = std::max(0,guess - 1); k <= std::min(15,guess + 1); k++) {
+		uint64_t cost = 0;
+
+		for(size_t v = axis; v < zigzags.size(); v += 3) {
+			uint32_t quotient = zigzags[v] >> k;
+			cost += quotient >= EXPRESSION_RICE_ESCAPE ? EXPRESSION_RICE_ESCAPE + EXPRESSION_ZIGZAG_BITS : quotient + 1 + k;
+		}
+
+		if(cost < bestcost) {
+			best = k;
+			bestcost = cost;
+		}
+	}
+
+	return best;
+}
+
+// Quantize frames [0,nframes) of a block to 16 bits against the block's own
+// bounds; the first face is stored whole and the rest as Rice-coded zigzag
+// deltas from the face before, with a Rice parameter per axis per face. This
+// must match ExpressionFrames.java.
+void encode_expression_block(const float *points, uint64_t mask, size_t nframes, size_t stride, std::vector<uint8_t> &out) {
+	float min[3], step[3];
+	std::vector<int> previous(stride);
+	std::vector<uint32_t> zigzags(stride);
+	bit_writer_t bits = {out,0,0};
+	bool havekey = false;
+
+	for(size_t a = 0; a < 3; a++) {
+		float lo = std::numeric_limits<float>::infinity();
+		float hi = -std::numeric_limits<float>::infinity();
+
+		for(size_t f = 0; f < nframes; f++) {
+			if(!(mask & (uint64_t) 1 << f)) continue;
+
+			for(size_t k = f*stride + a; k < (f + 1)*stride; k += 3) {
+				lo = std::min(lo,points[k]);
+				hi = std::max(hi,points[k]);
+			}
+		}
+
+		min[a] = lo <= hi ? lo : 0;
+		step[a] = hi > lo ? (hi - lo)/0xffff : 1;
+	}
+
+	// Every Android ABI we build for is little-endian, like the file
+	out.insert(out.end(),(const uint8_t *) &mask,(const uint8_t *) (&mask + 1));
+	out.insert(out.end(),(const uint8_t *) min,(const uint8_t *) (min + 3));
+	out.insert(out.end(),(const uint8_t *) step,(const uint8_t *) (step + 3));
+
+	for(size_t f = 0; f < nframes; f++) {
+		if(!(mask & (uint64_t) 1 << f)) continue;
+
+		for(size_t k = 0; k < stride; k++) {
+			int q = lroundf((points[f*stride + k] - min[k%3])/step[k%3]);
+			q = std::max(0,std::min(0xffff,q));
+
+			if(!havekey) {
+				out.push_back(q & 0xff);
+				out.push_back(q >> 8);
+			} else {
+				int delta = q - previous[k];
+				zigzags[k] = (uint32_t) delta << 1 ^ (uint32_t) (delta >> 31);
+			}
+
+			previous[k] = q;
+		}
+
+		if(havekey) {
+			for(size_t a = 0; a < 3; a++) {
+				int k = rice_parameter(zigzags,a);
+				write_bits(bits,k,4);
+
+				for(size_t v = a; v < stride; v += 3) {
+					uint32_t quotient = zigzags[v] >> k;
+
+					if(quotient >= EXPRESSION_RICE_ESCAPE) {
+						write_bits(bits,(1u << EXPRESSION_RICE_ESCAPE) - 1,EXPRESSION_RICE_ESCAPE);
+						write_bits(bits,zigzags[v],EXPRESSION_ZIGZAG_BITS);
+					} else {
+						write_bits(bits,(1u << quotient) - 1,quotient + 1);
+						write_bits(bits,zigzags[v] & ((1u << k) - 1),k);
+					}
+				}
+			}
+		}
+
+		havekey = true;
+	}
+
+	// Pad out the last byte
+	if(bits.nbits > 0)
+		out.push_back(bits.bits);
+}
+
+// Encode the pending frames as the next block of the .bin file
+void flush_expression_block(expression_writer_t &writer) {
+	size_t stride = 3*writer.header.num_points;
+
+	writer.encoded.clear();
+	encode_expression_block(writer.pending.data(),writer.pendingmask,writer.npending,stride,writer.encoded);
+
+	writer.offsets.push_back(writer.blockssize);
+	writer.blocks.write((const char *) writer.encoded.data(),writer.encoded.size());
+	writer.blockssize += writer.encoded.size();
+
+	writer.pendingmask = 0;
+	writer.npending = 0;
+
+	// Bound what a crash can lose
+	writer.blocks.flush();
+	writer.json.flush();
+}
+
+// Start a recording in basepath + ".expression.{json,bin}"; header holds
+// everything but the frames, and must include fps and the frame size
+bool open_expression_writer(expression_writer_t &writer, const std::string &basepath, jsoncons::json &header,
+	bool writebin) {
+	std::ostringstream headerstream;
+	std::string headertext;
+
+	writer.basepath = basepath;
+	writer.nframes = 0;
+	writer.writebin = writebin;
+
+	// Until this recording is finished, an old .bin file would shadow it
+	remove((basepath + ".expression.bin").c_str());
+
+	writer.json.open(basepath + ".expression.json",std::ios::trunc);
+	if(!writer.json) {
+		LOGE(std::string("cannot open ").append(basepath).append(".expression.json").c_str());
+		return false;
+	}
+
+	// Leave the header open for the frames
+	headerstream << header;
+	headertext = headerstream.str();
+	headertext.erase(headertext.find_last_of('}'));
+	writer.json << headertext << (header.size() > 0 ? "," : "") << "\"frames\":[";
+
+	if(writebin) {
+		writer.blocks.open(basepath + ".expression.bin.part",std::ios::binary | std::ios::trunc);
+		if(!writer.blocks) {
+			LOGE("cannot open expression block file");
+			writer.json.close();
+			return false;
+		}
+
+		memset(&writer.header,0,sizeof writer.header);
+		memcpy(writer.header.magic,EXPRESSION_BIN_MAGIC,sizeof writer.header.magic);
+		writer.header.version = EXPRESSION_BIN_VERSION;
+		writer.header.fps = header["fps"].as<double>();
+		writer.header.frame_width = header["frame_width"].as<int>();
+		writer.header.frame_height = header["frame_height"].as<int>();
+		writer.header.max_coord = 1;
+		writer.header.keyframe_interval = EXPRESSION_KEYFRAME_INTERVAL;
+
+		writer.offsets.clear();
+		writer.blockssize = 0;
+
+		writer.pending.clear();
+		writer.pendingmask = 0;
+		writer.npending = 0;
+	}
+
+	writer.open = true;
+
+	return true;
+}
+
+void write_expression_frame(expression_writer_t &writer, jsoncons::json frame) {
+	if(!writer.open)
+		return;
+
+	writer.json << (writer.nframes > 0 ? ",\n" : "\n") << frame;
+	writer.nframes++;
+
+	if(!writer.writebin)
+		return;
+
+	bool hasface = frame["has_face"].as<bool>();
+
+	// Every frame gets the stride of the first face
+	if(hasface && !writer.header.num_points) {
+		writer.header.num_points = frame["points3d"].size();
+		writer.pending.resize(EXPRESSION_KEYFRAME_INTERVAL*3*writer.header.num_points);
+	}
+
+	if(hasface && frame["points3d"].size() == writer.header.num_points) {
+		jsoncons::json &points3d = frame["points3d"];
+		float *points = writer.pending.data() + writer.npending*3*writer.header.num_points;
+
+		writer.pendingmask |= (uint64_t) 1 << writer.npending;
+
+		for(size_t j = 0; j < writer.header.num_points; j++) {
+			for(size_t k = 0; k < 3; k++) {
+				float coord = points3d[j][k].as<double>();
+				writer.header.max_coord = std::max(writer.header.max_coord,coord);
+				points[3*j + k] = coord;
+			}
+		}
+	}
+
+	if(++writer.npending == EXPRESSION_KEYFRAME_INTERVAL)
+		flush_expression_block(writer);
+}
+
+// Close off the .json file and assemble the .bin file, if there is one
+void close_expression_writer(expression_writer_t &writer) {
+	std::string binpath, partpath, tmppath;
+	bool ok;
+
+	if(!writer.open)
+		return;
+
+	writer.open = false;
+
+	writer.json << "\n]}" << std::endl;
+	writer.json.close();
+
+	LOGI(std::string("recorded ").append(to_string(writer.nframes)).append(" frames to ")
+		.append(writer.basepath).append(".expression.json").c_str());
+
+	if(!writer.writebin)
+		return;
+
+	if(writer.npending > 0)
+		flush_expression_block(writer);
+	writer.blocks.close();
+
+	writer.header.num_frames = writer.nframes;
+
+	binpath = writer.basepath + ".expression.bin";
+	partpath = binpath + ".part";
+	tmppath = binpath + ".tmp";
+
+	// The loader prefers the .bin over the .json, so it only takes the
+	// final name once it is whole
+	std::ofstream file(tmppath,std::ios::binary | std::ios::trunc);
+	std::ifstream blocks(partpath,std::ios::binary);
+	ok = writer.blocks && file && blocks;
+	if(ok) {
+		file.write((const char *) &writer.header,sizeof writer.header);
+		file.write((const char *) writer.offsets.data(),writer.offsets.size()*sizeof(uint32_t));
+		if(writer.blockssize > 0)
+			file << blocks.rdbuf();
+	}
+	blocks.close();
+	file.close();
+
+	ok = ok && file && rename(tmppath.c_str(),binpath.c_str()) == 0;
+
+	remove(partpath.c_str());
+
+	if(!ok) {
+		LOGE(std::string("cannot write ").append(binpath).c_str());
+
+		// Leave nothing that could be mistaken for this recording
+		remove(tmppath.c_str());
+		remove(binpath.c_str());
+		return;
+	}
+
+	LOGI(std::string("compressed ").append(to_string(writer.nframes)).append(" frames to ")
+		.append(to_string(writer.blockssize)).append(" bytes").c_str());
+}
+
+// Open the expression files for the current video, with everything that is
+// known before the first frame
+bool init_expression_recording(data_t *data) {
+	jsoncons::json header;
+
+	// Parameters are meaningless without the model they belong to
+	if(data->recordformat == RECORD_PARAMETERS && data->facetracker)
+		header["basis"] = shape_basis_to_json(data->facetracker.get());
+
+	// Frames also list every face they have, up to this many
+	if(data->maxfaces > 1)
+		header["max_faces"] = data->maxfaces;
+
+	// Save some information about this file
+	header["source"] = data->videopath;
+	header["frame_width"] = data->video.avcodec->width;
+	header["frame_height"] = data->video.avcodec->height;
+	header["fps"] = av_q2d(data->video.avstream->avg_frame_rate);
+
+	// The binary format only holds points
+	return open_expression_writer(data->writer,
+		std::string(data->videopath.data(),data->videopath.find_last_of('.')),header,
+		data->recordformat != RECORD_PARAMETERS);
+}
+
+// Fill in expression with the face the tracker was left on by NewFrame()
+// view is how the tracker saw the frame; what gets recorded is in the
+// frame's own coordinates
+void face_to_json(jsoncons::json &expression, FACETRACKER::FaceTracker *tracker, const tracking_view_t &view,
+	int recordformat, int facestrength) {
+	expression["has_face"] = false;
+
+	if(facestrength < MIN_FACE_STRENGTH)
+		return;
+
+	expression["has_face"] = true;
+
+	if(recordformat == RECORD_PARAMETERS) {
+		cv::Mat pose = tracker->getPoseParameters();
+
+		// Scale, then x and y translation
+		if(pose.rows >= 6) {
+			pose.at<double>(0) /= view.scale;
+			pose.at<double>(4) = pose.at<double>(4)/view.scale + view.roi.x;
+			pose.at<double>(5) = pose.at<double>(5)/view.scale + view.roi.y;
+		}
+
+		expression["shape_params"] = mat_to_json(tracker->getShapeParameters());
+		expression["pose_params"] = mat_to_json(pose);
+	} else {
+		FACETRACKER::PointVector faceshape = tracker->getShape();
+		view_to_frame(view,faceshape);
+		std::vector<cv::Point3_<double> > faceshape3d = tracker->get3DShape();
+
+		jsoncons::json points2d(jsoncons::json::an_array);
+		jsoncons::json points3d(jsoncons::json::an_array);
+
+		for(unsigned int i = 0; i < faceshape3d.size(); i++) {
+			jsoncons::json point2d(jsoncons::json::an_array);
+			jsoncons::json point3d(jsoncons::json::an_array);
+
+			point2d.add(faceshape[i].x);
+			point2d.add(faceshape[i].y);
+			points2d.add(std::move(point2d));
+
+			point3d.add(faceshape3d[i].x);
+			point3d.add(faceshape3d[i].y);
+			point3d.add(faceshape3d[i].z);
+			points3d.add(std::move(point3d));
+		}
+
+		expression["points2d"] = std::move(points2d);
+		expression["points3d"] = std::move(points3d);
+	}
+}
+
+// The expression recording entry for a frame, from the state the tracker was
+// left in by NewFrame()
+jsoncons::json expression_to_json(FACETRACKER::FaceTracker *tracker, const tracking_view_t &view, int recordformat,
+	int number, int facestrength) {
+	jsoncons::json expression;
+	expression["frame"] = number;
+	face_to_json(expression,tracker,view,recordformat,facestrength);
+
+	return expression;
+}
+
+// The same for multi-face mode: the oldest face goes where the only face
+// would, so that the entry reads the same to anything that only knows one,
+// and every face goes in "faces" along with its id
+jsoncons::json faces_to_json(data_t *data, const tracking_view_t &view, int number) {
+	jsoncons::json expression;
+	jsoncons::json faces(jsoncons::json::an_array);
+
+	expression["frame"] = number;
+
+	if(data->faces.empty())
+		expression["has_face"] = false;
+	else {
+		face_to_json(expression,data->faces[0].tracker.get(),view,data->recordformat,
+			data->faces[0].facestrength);
+	}
+
+	for(size_t i = 0; i < data->faces.size(); i++) {
+		jsoncons::json face;
+		face["id"] = data->faces[i].id;
+		face_to_json(face,data->faces[i].tracker.get(),view,data->recordformat,data->faces[i].facestrength);
+		faces.add(std::move(face));
+	}
+
+	expression["faces"] = std::move(faces);
+
+	return expression;
+}
+
+// Take every face from the pool's current round until there are none left;
+// called with the pool's mutex held, which is let go while tracking
+void track_pool_faces(face_pool_t *pool) {
+	while(pool->next < pool->faces.size()) {
+		face_t *face = pool->faces[pool->next++];
+
+		pthread_mutex_unlock(&pool->mutex);
+		face->facestrength = face->tracker->NewFrame(pool->image,pool->params);
+		pthread_mutex_lock(&pool->mutex);
+
+		if(++pool->done == pool->faces.size())
+			pthread_cond_signal(&pool->finish);
+	}
+}
+
+void *face_pool_thread(face_pool_t *pool) {
+	int round = 0;
+
+	pthread_mutex_lock(&pool->mutex);
+
+	for(;;) {
+		while(!pool->closed && pool->round == round)
+			pthread_cond_wait(&pool->start,&pool->mutex);
+		if(pool->closed) break;
+
+		round = pool->round;
+		track_pool_faces(pool);
+	}
+
+	pthread_mutex_unlock(&pool->mutex);
+
+	return NULL;
+}
+
+// Start threads - 1 helpers; the worker makes up the last thread
+void init_face_pool(face_pool_t &pool, int threads) {
+	pthread_mutex_init(&pool.mutex,NULL);
+	pthread_cond_init(&pool.start,NULL);
+	pthread_cond_init(&pool.finish,NULL);
+	pool.closed = false;
+	pool.round = 0;
+
+	pool.threads.resize(std::max(0,threads - 1));
+	for(size_t i = 0; i < pool.threads.size(); i++)
+		pthread_create(&pool.threads[i],NULL,(void *(*)(void *)) face_pool_thread,(void *) &pool);
+}
+
+void destroy_face_pool(face_pool_t &pool) {
+	pthread_mutex_lock(&pool.mutex);
+	pool.closed = true;
+	pthread_cond_broadcast(&pool.start);
+	pthread_mutex_unlock(&pool.mutex);
+
+	for(size_t i = 0; i < pool.threads.size(); i++)
+		pthread_join(pool.threads[i],NULL);
+	pool.threads.clear();
+
+	pthread_cond_destroy(&pool.finish);
+	pthread_cond_destroy(&pool.start);
+	pthread_mutex_destroy(&pool.mutex);
+}
+
+// Run every face's tracker on image, spread over the pool; returns once
+// they are all done
+void track_faces_parallel(data_t *data, cv::Mat &image, FACETRACKER::FaceTrackerParams *params) {
+	face_pool_t &pool = data->facepool;
+
+	pthread_mutex_lock(&pool.mutex);
+
+	pool.faces.clear();
+	for(size_t i = 0; i < data->faces.size(); i++)
+		pool.faces.push_back(&data->faces[i]);
+	pool.next = 0;
+	pool.done = 0;
+	pool.image = image;
+	pool.params = params;
+
+	pool.round++;
+	pthread_cond_broadcast(&pool.start);
+
+	track_pool_faces(&pool);
+	while(pool.done < pool.faces.size())
+		pthread_cond_wait(&pool.finish,&pool.mutex);
+
+	pool.image.release();
+
+	pthread_mutex_unlock(&pool.mutex);
+}
+
+// How much of the smaller of a and b the other covers
+double face_overlap(const cv::Rect &a, const cv::Rect &b) {
+	int smaller = std::min(a.area(),b.area());
+
+	return smaller > 0 ? (double) (a & b).area()/smaller : 0;
+}
+
+bool larger_rect(const cv::Rect &a, const cv::Rect &b) {
+	return a.area() > b.area();
+}
+
+// Every so often, and on every frame while there are none, start tracking
+// whatever faces in image nobody is tracking yet, largest first, until
+// there are maxfaces. Only this, on the worker thread, ever runs the
+// detector, which the face trackers share and which is not thread-safe.
+void find_new_faces(data_t *data, cv::Mat &image) {
+	FACETRACKER::myFaceTracker *model = dynamic_cast<FACETRACKER::myFaceTracker *>(data->facetracker.get());
+	std::vector<cv::Rect> found;
+
+	if(!model || (int) data->faces.size() >= data->maxfaces)
+		return;
+
+	if(!data->faces.empty() && ++data->sincedetect < FACES_DETECT_INTERVAL)
+		return;
+	data->sincedetect = 0;
+
+	count_stat(data,STATS_DETECTIONS);
+
+	found = model->_sinit.DetectAll(image);
+	std::sort(found.begin(),found.end(),larger_rect);
+
+	for(size_t i = 0; i < found.size() && (int) data->faces.size() < data->maxfaces; i++) {
+		FACETRACKER::myFaceTracker *tracker;
+		bool known = false;
+
+		for(size_t j = 0; j < data->faces.size() && !known; j++)
+			known = face_overlap(found[i],data->faces[j].bounds) > FACES_MAX_OVERLAP;
+		if(known) continue;
+
+		data->faces.push_back(face_t());
+		face_t &face = data->faces.back();
+
+		if(!data->sparetrackers.empty()) {
+			face.tracker = std::move(data->sparetrackers.back());
+			data->sparetrackers.pop_back();
+			tracker = static_cast<FACETRACKER::myFaceTracker *>(face.tracker.get());
+		} else {
+			tracker = new FACETRACKER::myFaceTracker();
+			tracker->Share(*model);
+			tracker->_reach = FACES_REACH;
+			face.tracker.reset(tracker);
+		}
+
+		tracker->Seed(found[i]);
+
+		face.id = data->nextfaceid++;
+		face.facestrength = 0;
+		face.bounds = found[i];
+
+		LOGI(std::string("found face ").append(to_string(face.id)).c_str());
+	}
+}
+
+// Drop the faces whose trackers lost them, since shared trackers never look
+// for a face again themselves, and the newer of any two that have ended up
+// on the same face
+void prune_faces(data_t *data) {
+	for(size_t i = 0; i < data->faces.size(); i++) {
+		face_t &face = data->faces[i];
+
+		if(will_detect(face.tracker.get())) {
+			drop_face(data,i--);
+			continue;
+		}
+
+		face.bounds = shape_bounds(face.tracker->getShape());
+	}
+
+	for(size_t i = 0; i < data->faces.size(); i++) {
+		for(size_t j = i + 1; j < data->faces.size(); j++) {
+			if(face_overlap(data->faces[i].bounds,data->faces[j].bounds) > FACES_MAX_OVERLAP)
+				drop_face(data,j--);
+		}
+	}
+}
+
+// Multi-face counterpart of the tracking in track_frame(): find new faces,
+// track them all at once, and give the frame the oldest as its face
+void track_faces(data_t *data, frame_t &frame, cv::Mat &tracked, const tracking_view_t &view,
+	FACETRACKER::FaceTrackerParams *params) {
+	int64_t start;
+
+	find_new_faces(data,tracked);
+
+	start = stats_clock();
+	track_faces_parallel(data,tracked,params);
+	time_stage(data,STAGE_TRACK,start);
+
+	prune_faces(data);
+
+	frame.facestrength = data->faces.empty() ? (int) FACETRACKER::FaceTracker::TRACKER_FAILED
+		: data->faces[0].facestrength;
+	data->facestrength = frame.facestrength;
+	count_face_strength(data,frame.facestrength);
+
+	frame.faces.resize(data->faces.size());
+	for(size_t i = 0; i < data->faces.size(); i++) {
+		face_shape_t &shape = frame.faces[i];
+
+		shape.id = data->faces[i].id;
+		shape.facestrength = data->faces[i].facestrength;
+		shape.shape.clear();
+
+		if(shape.facestrength >= MIN_FACE_STRENGTH) {
+			shape.shape = data->faces[i].tracker->getShape();
+			view_to_frame(view,shape.shape);
+		}
+	}
+
+	if(!frame.faces.empty())
+		frame.shape = frame.faces[0].shape;
+
+	// If this is a video, have an entry for every frame
+	if(data->mode != MODE_CAMERA)
+		write_expression_frame(data->writer,faces_to_json(data,view,frame.number));
+}
+
+// Orient the frame and track the face in it, as much of it and at whatever
+// scale the governor says; runs on the worker thread
+void track_frame(data_t *data, frame_t &frame) {
+	governor_t &governor = data->governor;
+	const governor_level_t &level = governor_levels[governor.level];
+	FACETRACKER::FaceTrackerParams *params;
+	cv::Mat &input = frame.input;
+	cv::Mat source, tracked;
+	int orientation = data->orientation;
+	tracking_view_t view;
+	int64_t start;
+
+	frame.orientation = orientation;
+
+	// The tracker only needs the brightness, which is the Y plane of camera
+	// frames; color is left for the presenter, which only needs all of it
+	// when there is an avatar to draw. Batch mode decodes straight to gray.
+	source = frame.preview >= 0 ? input(cv::Rect(0,0,input.cols,2*input.rows/3)) : input;
+
+	// Only the part that gets tracked is oriented
+	start = stats_clock();
+	view = choose_tracking_view(governor,oriented_size(source,false,orientation));
+	orient_gray(source(source_rect(map_orientation(source.cols,source.rows,orientation),view.roi)),
+		data->orientedgray,orientation);
+
+	if(view.scale == 1)
+		tracked = data->orientedgray;
+	else {
+		cv::resize(data->orientedgray,data->scaledgray,cv::Size(),view.scale,view.scale,cv::INTER_LINEAR);
+		tracked = data->scaledgray;
+	}
+	time_stage(data,STAGE_ORIENT,start);
+
+	params = level.light && governor.lightparams ? governor.lightparams.get() : data->facetrackerparams.get();
+
+	frame.facestrength = 0;
+	frame.shape.clear();
+	frame.faces.clear();
+
+	// Hand it off to the CI2CV SDK
+	if(data->facetracker && data->maxfaces > 1)
+		track_faces(data,frame,tracked,view,params);
+	else if(data->facetracker) {
+		if(will_detect(data->facetracker.get()))
+			count_stat(data,STATS_DETECTIONS);
+
+		start = stats_clock();
+		frame.facestrength = data->facetracker->NewFrame(tracked,params);
+		data->facestrength = frame.facestrength;
+		time_stage(data,STAGE_TRACK,start);
+		count_face_strength(data,frame.facestrength);
+
+		if(frame.facestrength >= MIN_FACE_STRENGTH) {
+			frame.shape = data->facetracker->getShape();
+			view_to_frame(view,frame.shape);
+		}
+
+		// If this is a video, have an entry for every frame
+		if(data->mode != MODE_CAMERA) {
+			write_expression_frame(data->writer,expression_to_json(data->facetracker.get(),view,data->recordformat,
+				frame.number,frame.facestrength));
+		}
+	}
+
+	// With several faces there is no one face to crop to
+	governor.view = view;
+	governor.face = data->maxfaces > 1 ? cv::Rect() : shape_bounds(frame.shape);
+
+	// Anything asked of the frames since the last one goes along with this
+	frame.calibration = data->calibration;
+	frame.saves.swap(data->saves);
+	data->saves.clear();
+}
+
+bool has_face(const frame_t &frame) {
+	return frame.facestrength >= MIN_FACE_STRENGTH && !frame.shape.empty();
+}
+
+// Whether the avatar goes on this frame
+bool should_animate(data_t *data, const frame_t &frame) {
+	return data->avatar && has_face(frame);
+}
+
+// Outline and draw the avatar on the oriented color frame; runs on the
+// presenter thread
+void animate_frame(data_t *data, frame_t &frame) {
+	// The first face of each calibration is the neutral expression
+	if(frame.calibration != data->avatarcalibration) {
+		data->avatar->Initialise(frame.oriented,frame.shape);
+		data->avatarcalibration = frame.calibration;
+	}
+
+	for(unsigned int i = 0; i < frame.shape.size(); i++)
+		cv::circle(frame.oriented,frame.shape[i],1,cv::Scalar(0,0,0xFF));
+
+	// The avatar only goes on the oldest face, but the rest get outlined
+	for(unsigned int i = 1; i < frame.faces.size(); i++) {
+		for(unsigned int j = 0; j < frame.faces[i].shape.size(); j++)
+			cv::circle(frame.oriented,frame.faces[i].shape[j],1,cv::Scalar(0,0xFF,0));
+	}
+
+	data->avatar->Animate(frame.oriented,frame.oriented,frame.shape);
+}
+
+// The largest rectangle with frame's aspect ratio centered in width x height
+cv::Rect fit_frame(cv::Size frame, int width, int height) {
+	int w, h;
+
+	if(frame.width*height > width*frame.height) { // frame is wider
+		w = width;
+		h = frame.height*width/frame.width;
+	} else { // destination is wider
+		w = frame.width*height/frame.height;
+		h = height;
+	}
+
+	return cv::Rect((width - w)/2,(height - h)/2,w,h);
+}
+
+// Blit frame straight into the next buffer of the surface; returns false if
+// the surface cannot be drawn to
+bool draw_frame_window(data_t *data, const cv::Mat &frame, bool nv21, int orientation) {
+	ANativeWindow_Buffer buffer;
+	int64_t start, locked, posting;
+	cv::Rect fit;
+	ARect dirty;
+
+	fit = fit_frame(oriented_size(frame,nv21,orientation),ANativeWindow_getWidth(data->window),
+		ANativeWindow_getHeight(data->window));
+
+	dirty.left = fit.x;
+	dirty.top = fit.y;
+	dirty.right = fit.x + fit.width;
+	dirty.bottom = fit.y + fit.height;
+
+	start = stats_clock();
+	if(ANativeWindow_lock(data->window,&buffer,&dirty) < 0)
+		return false;
+	locked = stats_clock();
+
+	cv::Mat buffermat(buffer.height,buffer.width,CV_8UC4,buffer.bits,4*buffer.stride);
+
+	// The rest of the buffer may need redrawing too, such as when it is new
+	if(dirty.left < fit.x || dirty.top < fit.y || dirty.right > fit.x + fit.width || dirty.bottom > fit.y + fit.height) {
+		buffermat(cv::Rect(dirty.left,dirty.top,dirty.right - dirty.left,dirty.bottom - dirty.top))
+			.setTo(cv::Scalar(0,0,0,0xFF));
+	}
+
+	cv::Mat target = buffermat(fit & cv::Rect(0,0,buffer.width,buffer.height));
+	blit_rgba(frame,nv21,orientation,target);
+	time_stage(data,STAGE_BLIT,locked);
+
+	// Presenting is waiting for a buffer and handing it back
+	posting = stats_clock();
+	ANativeWindow_unlockAndPost(data->window);
+	time_stage(data,STAGE_PRESENT,start + posting - locked);
+
+	return true;
+}
+
+// Blit frame into the bitmap and have Java copy it to the surface
+void draw_frame_bitmap(data_t *data, const cv::Mat &frame, bool nv21, int orientation) {
+	void *pixels;
+	cv::Mat bitmapmat;
+	AndroidBitmapInfo info;
+	int64_t start;
+	cv::Rect fit;
+
+	AndroidBitmap_getInfo(data->jenv,data->bitmap,&info);
+
+	if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		LOGE("bitmap is not RGBA8888");
+		return;
+	}
+
+	fit = fit_frame(oriented_size(frame,nv21,orientation),info.width,info.height);
 
-	return string;
-}
+	start = stats_clock();
+	AndroidBitmap_lockPixels(data->jenv,data->bitmap,&pixels);
 
-data_t *get_data(JNIEnv *jenv, jobject jthis) {
-	jclass c_this;
-	jobject o_data;
-	jfieldID f_data;
+	bitmapmat = cv::Mat(fit.height,fit.width,CV_8UC4,(uint8_t *) pixels + fit.y*info.stride + fit.x*4,info.stride);
+	blit_rgba(frame,nv21,orientation,bitmapmat);
 
-	c_this = jenv->GetObjectClass(jthis);
-	f_data = jenv->GetFieldID(c_this,"data","Ljava/nio/ByteBuffer;");
-	o_data = jenv->GetObjectField(jthis,f_data);
+	AndroidBitmap_unlockPixels(data->jenv,data->bitmap);
+	time_stage(data,STAGE_BLIT,start);
 
-	return o_data ? (data_t *) jenv->GetDirectBufferAddress(o_data) : NULL;
+	start = stats_clock();
+	data->jenv->CallVoidMethod(data->jthis,ids.m_blitBitmap,fit.x,fit.y,fit.width,fit.height);
+	time_stage(data,STAGE_PRESENT,start);
 }
 
-void set_data(JNIEnv *jenv, jobject jthis, data_t *data) {
-	jclass c_this;
-	jobject o_data;
-	jfieldID f_data;
+// Show frame, which is BGR or NV21, oriented as given
+void draw_frame(data_t *data, const cv::Mat &frame, bool nv21, int orientation) {
+	if(data->window) {
+		if(draw_frame_window(data,frame,nv21,orientation))
+			return;
 
-	c_this = jenv->GetObjectClass(jthis);
-	f_data = jenv->GetFieldID(c_this,"data","Ljava/nio/ByteBuffer;");
+		// Give up on the surface for good
+		LOGE("cannot lock surface; drawing through the bitmap instead");
+		ANativeWindow_release(data->window);
+		data->window = NULL;
+	}
 
-	if(data) {
-		o_data = jenv->NewDirectByteBuffer(data,0);
-		jenv->SetObjectField(jthis,f_data,o_data);
-	} else jenv->SetObjectField(jthis,f_data,NULL);
+	if(data->bitmap)
+		draw_frame_bitmap(data,frame,nv21,orientation);
 }
 
-bool get_frame(data_t *data, cv::Mat &frame) {
+bool init_source(data_t *data) {
+	LOGI(std::string("initializing source, mode ").append(to_string(data->mode)).c_str());
+
 	switch(data->mode) {
 	case MODE_CAMERA:
-		*data->capture >> frame;
+		// VisualView runs the camera
 		break;
 
 	case MODE_FILE:
-		// Get a frame
-		int gotframe;
-		do {
-			// Demux a packet from the stream
-			if(data->avpacketoffset >= data->avpacket.size) {
-				data->avpacketoffset = 0;
-
-				do {
-					av_free_packet(&data->avpacket);
-
-					if(av_read_frame(data->avformat,&data->avpacket) < 0)
-						return false; // EOF
-				} while(data->avpacket.stream_index != data->avstream->index);
-			}
+	case MODE_BATCH:
+		if(!open_video(data->video,data->videopath)) {
+			close_video(data->video);
+			return false;
+		}
 
-			AVPacket packet;
-			av_init_packet(&packet);
-			packet.data = data->avpacket.data + data->avpacketoffset;
-			packet.size = data->avpacket.size - data->avpacketoffset;
+		// Prepare to record the facial expressions
+		if(!init_expression_recording(data)) {
+			close_video(data->video);
+			return false;
+		}
 
-			// Decode a frame from the packet, if we can
-			int nbytes = avcodec_decode_video2(data->avcodec,data->avframe,&gotframe,&packet);
-			if(nbytes < 0) {
-				LOGE("cannot decode frame");
-				return false;
-			}
-			data->avpacketoffset += nbytes;
-		} while(!gotframe);
-
-		// Make sure we have a destination
-		if(!data->avpicture.data[0])
-			avpicture_alloc(&data->avpicture,PIX_FMT_BGR24,data->avframe->width,data->avframe->height);
-
-		// Transform from YUV to BGR
-		data->swscontext = sws_getCachedContext(data->swscontext,data->avframe->width,data->avframe->height,
-			(AVPixelFormat) data->avframe->format,data->avframe->width,data->avframe->height,
-			(AVPixelFormat) PIX_FMT_BGR24,SWS_POINT,NULL,NULL,NULL);
-		sws_scale(data->swscontext,data->avframe->data,data->avframe->linesize,0,data->avframe->height,
-			data->avpicture.data,data->avpicture.linesize);
-
-		// Export it to frame
-		frame = cv::Mat(data->avframe->height,data->avframe->width,CV_8UC3,data->avpicture.data[0],
-			data->avpicture.linesize[0]);
+		// Only a guess for some containers, but good enough for progress
+		data->expectedframes = data->video.avstream->nb_frames;
+		if(data->expectedframes <= 0 && data->video.avformat->duration > 0)
+			data->expectedframes = data->video.avformat->duration*av_q2d(data->video.avstream->avg_frame_rate)/AV_TIME_BASE;
 		break;
 	}
 
-	data->framecount++;
+	data->framecount = 0;
+
+	// Face ids start over with each source
+	clear_faces(data);
+	data->nextfaceid = 1;
+
+	data->sourceinited = true;
 
 	return true;
 }
 
-void get_current_frame(data_t *data, cv::Mat &frame) {
+void uninit_source(data_t *data) {
+	if(!data->sourceinited)
+		return;
+
 	switch(data->mode) {
 	case MODE_CAMERA:
-		data->capture->retrieve(frame);
 		break;
 
 	case MODE_FILE:
-		// Transform from YUV to BGR
-		sws_scale(data->swscontext,data->avframe->data,data->avframe->linesize,0,data->avframe->height,
-			data->avpicture.data,data->avpicture.linesize);
+	case MODE_BATCH:
+		// Finish off the expression files
+		close_expression_writer(data->writer);
 
-		// Export it to frame
-		frame = cv::Mat(data->avframe->height,data->avframe->width,CV_8UC3,data->avpicture.data[0],
-			data->avpicture.linesize[0]);
+		close_video(data->video);
 		break;
 	}
+
+	data->sourceinited = false;
 }
 
-void process_frame(data_t *data, cv::Mat &input, cv::Mat &output) {
-	cv::Point facecenter;
-	cv::Size facesize, outsize;
-	std::vector<cv::Rect> faces;
-	FACETRACKER::PointVector faceshape;
-	std::vector<cv::Point3_<double> > faceshape3d;
+// Hand a preview buffer back to the camera, if frame still holds one
+void recycle_preview_buffer(data_t *data, JNIEnv *jenv, frame_t &frame) {
+	jbyteArray array;
+
+	if(frame.preview < 0)
+		return;
+
+	pthread_mutex_lock(&data->previewmutex);
+	array = data->previewbuffers[frame.preview].array;
+	pthread_mutex_unlock(&data->previewmutex);
 
-	output = cv::Mat(input.size(),CV_8UC4);
+	jenv->CallVoidMethod(data->jthis,ids.m_recyclePreviewBuffer,array);
 
-	// Make sure the matricies are ready
-	if(data->orientation == 0 || data->orientation == 180) {
-		if(input.rows != data->orientedframe.rows || input.cols != data->orientedframe.cols)
-			data->orientedframe = cv::Mat(input.rows,input.cols,CV_8UC3);
+	frame.preview = -1;
+}
 
-		if(input.rows != data->orientedgray.rows || input.cols != data->orientedgray.cols)
-			data->orientedgray = cv::Mat(input.rows,input.cols,CV_8UC1);
+// Block for as long as the worker is paused; returns false once it has been
+// told to stop
+bool wait_while_paused(data_t *data) {
+	pthread_mutex_lock(&data->pausemutex);
+	while(data->paused && data->enabled)
+		pthread_cond_wait(&data->pausecond,&data->pausemutex);
+	pthread_mutex_unlock(&data->pausemutex);
 
-		if(input.rows != output.rows || input.cols != output.cols)
-			output = cv::Mat(input.rows,input.cols,CV_8UC3);
-	} else {
-		if(input.rows != data->orientedframe.cols || input.cols != data->orientedframe.rows)
-			data->orientedframe = cv::Mat(input.cols,input.rows,CV_8UC3);
+	return data->enabled;
+}
+
+// Decode frames as fast as the worker takes them
+void *capture_thread(data_t *data) {
+	frame_t frame;
+	cv::Mat input;
+
+	while(wait_while_paused(data)) {
+		if(!get_frame(data,input)) {
+			LOGI("no more frames");
+			break;
+		}
 
-		if(input.rows != data->orientedgray.cols || input.cols != data->orientedgray.rows)
-			data->orientedgray = cv::Mat(input.cols,input.rows,CV_8UC1);
+		// The decoder reuses its own buffers, so take a copy
+		frame.number = data->framecount;
+		input.copyTo(frame.input);
 
-		if(input.rows != output.cols || input.cols != output.rows)
-			output = cv::Mat(input.cols,input.rows,CV_8UC3);
+		if(!push_frame(data->captured,frame))
+			break;
 	}
 
-	// Orient the frame properly
-	switch(data->orientation) {
-	case 0:
-		cv::flip(input,data->orientedframe,1);
-		break;
+	close_queue(data->captured);
 
-	case 90:
-		cv::transpose(input,data->orientedframe);
-		break;
+	return NULL;
+}
 
-	case 180:
-		cv::flip(input,data->orientedframe,0);
-		break;
+// Save the face in frame, whose oriented color image must be ready if it has
+// one, for each request it carries, and tell Java how each went
+void save_face_images(data_t *data, frame_t &frame) {
+	cv::Rect face;
 
-	case 270:
-		cv::transpose(input,data->orientedframe);
-		cv::flip(data->orientedframe,data->orientedframe,-1);
-		break;
+	if(has_face(frame))
+		face = shape_bounds(frame.shape) & cv::Rect(0,0,frame.oriented.cols,frame.oriented.rows);
+
+	for(size_t i = 0; i < frame.saves.size(); i++) {
+		bool saved = face.area() > 0 && imwrite(frame.saves[i].filename,cv::Mat(frame.oriented,face));
+
+		data->jenv->CallVoidMethod(data->jthis,ids.m_reportFaceImage,(jint) frame.saves[i].request,(jboolean) saved);
 	}
 
-	// Get a grayscale version
-	cv::cvtColor(data->orientedframe,data->orientedgray,CV_BGR2GRAY);
+	frame.saves.clear();
+}
+
+// The presenter holds presenting while it draws, so that pause_worker() can
+// wait for it to finish; returns false once the worker has been told to stop
+bool begin_presenting(data_t *data) {
+	bool enabled;
 
-	// Hand it off to the CI2CV SDK
-	if(data->facetracker) {
-		jsoncons::json expression;
-		expression["frame"] = data->framecount;
-		expression["has_face"] = false;
+	pthread_mutex_lock(&data->pausemutex);
+	while(data->paused && data->enabled)
+		pthread_cond_wait(&data->pausecond,&data->pausemutex);
+	enabled = data->enabled;
+	data->presenting = enabled;
+	pthread_mutex_unlock(&data->pausemutex);
+
+	return enabled;
+}
+
+void end_presenting(data_t *data) {
+	pthread_mutex_lock(&data->pausemutex);
+	data->presenting = false;
+	pthread_cond_broadcast(&data->pausecond);
+	pthread_mutex_unlock(&data->pausemutex);
+}
+
+// Stop capturing and presenting; returns once nothing is being drawn, after
+// which the surface is free to change until resume_worker()
+void pause_worker(data_t *data) {
+	pthread_mutex_lock(&data->pausemutex);
+	data->paused = true;
+	while(data->presenting)
+		pthread_cond_wait(&data->pausecond,&data->pausemutex);
+	pthread_mutex_unlock(&data->pausemutex);
+}
+
+void resume_worker(data_t *data) {
+	pthread_mutex_lock(&data->pausemutex);
+	data->paused = false;
+	pthread_cond_broadcast(&data->pausecond);
+	pthread_mutex_unlock(&data->pausemutex);
+}
+
+// Draw and show tracked frames; the only thread that talks to Java while
+// the worker is running
+void *present_thread(data_t *data) {
+	frame_t frame;
+	int64_t start;
 
-		data->facestrength = data->facetracker->NewFrame(data->orientedgray,data->facetrackerparams.get());
+	data->jvm->AttachCurrentThread(&data->jenv,NULL);
+
+	while(pop_frame(data->tracked,frame)) {
+		bool nv21 = frame.preview >= 0;
+		bool animate = should_animate(data,frame);
 
-		// Outline and draw the avatar if the tracking quality is good enough
-		if(data->facestrength >= MIN_FACE_STRENGTH) {
-			faceshape = data->facetracker->getShape();
-			faceshape3d = data->facetracker->get3DShape();
+		// Wait out any pause; once told to stop, just let the frames go,
+		// and Java gives up on any saves itself
+		if(!begin_presenting(data)) {
+			recycle_preview_buffer(data,data->jenv,frame);
+			frame.saves.clear();
+			continue;
+		}
 
-			if(!data->calibrated) {
-				data->avatar->Initialise(data->orientedframe,faceshape);
-				data->calibrated = true;
+		// The avatar and saved faces need the whole frame oriented and in
+		// color; otherwise the frame goes to the screen in one pass, and only
+		// the pixels that are shown get converted. Camera buffers go back once
+		// read.
+		if(animate || has_face(frame) && !frame.saves.empty()) {
+			start = stats_clock();
+			if(nv21)
+				orient_nv21_bgr(frame.input,frame.oriented,frame.orientation);
+			else
+				orient_frame(frame.input,frame.oriented,frame.orientation);
+			time_stage(data,STAGE_COLOR,start);
+			recycle_preview_buffer(data,data->jenv,frame);
+
+			save_face_images(data,frame);
+
+			if(animate) {
+				start = stats_clock();
+				animate_frame(data,frame);
+				time_stage(data,STAGE_ANIMATE,start);
 			}
+			draw_frame(data,frame.oriented,false,ORIENTATION_NONE);
+		} else {
+			save_face_images(data,frame);
+
+			draw_frame(data,frame.input,nv21,frame.orientation);
+			recycle_preview_buffer(data,data->jenv,frame);
+		}
 
-			for(unsigned int i = 0; i < faceshape.size(); i++)
-				cv::circle(data->orientedframe,faceshape[i],1,cv::Scalar(0,0,0xFF));
+		end_presenting(data);
+	}
 
-			data->avatar->Animate(data->orientedframe,data->orientedframe,faceshape);
+	data->jvm->DetachCurrentThread();
 
-			// If this is a video, save this frame's expression
-			if(data->mode == MODE_FILE) {
-				expression["has_face"] = true;
+	return NULL;
+}
 
-				jsoncons::json points2d(jsoncons::json::an_array);
-				jsoncons::json points3d(jsoncons::json::an_array);
+// Tell Java how far through the batch we are; eta is in seconds for the
+// whole batch, estimated from the rate so far
+void report_batch_progress(data_t *data, int framesdone, double elapsed) {
+	double rate, progress, eta;
+	int remaining;
 
-				for(unsigned int i = 0; i < faceshape3d.size(); i++) {
-					jsoncons::json point2d(jsoncons::json::an_array);
-					jsoncons::json point3d(jsoncons::json::an_array);
+	progress = data->expectedframes > 0 ? std::min(1.0,(double) framesdone/data->expectedframes) : 0;
 
-					point2d.add(faceshape[i].x);
-					point2d.add(faceshape[i].y);
-					points2d.add(std::move(point2d));
+	// Assume the rest of the videos are about as long as this one
+	rate = elapsed > 0 ? framesdone/elapsed : 0;
+	remaining = std::max(0,data->expectedframes - framesdone)
+		+ (data->videopaths.size() - data->batchindex - 1)*std::max(data->expectedframes,framesdone);
+	eta = rate > 0 ? remaining/rate : -1;
 
-					point3d.add(faceshape3d[i].x);
-					point3d.add(faceshape3d[i].y);
-					point3d.add(faceshape3d[i].z);
-					points3d.add(std::move(point3d));
-				}
+	data->jenv->CallVoidMethod(data->jthis,ids.m_reportBatchProgress,(jint) data->batchindex,
+		(jint) data->videopaths.size(),(jfloat) progress,(jfloat) eta);
+}
 
-				expression["points2d"] = std::move(points2d);
-				expression["points3d"] = std::move(points3d);
+// Demux, but do not decode, the whole video to find the timestamp of every
+// frame and every keyframe, each sorted into presentation order
+bool scan_video(const std::string &path, std::vector<int64_t> &pts, std::vector<int64_t> &keyframes) {
+	video_t video = video_t();
+	bool ok = open_video(video,path);
+
+	while(ok && av_read_frame(video.avformat,&video.avpacket) >= 0) {
+		if(video.avpacket.stream_index == video.avstream->index) {
+			// Frames cannot be placed without timestamps
+			if(video.avpacket.pts == AV_NOPTS_VALUE)
+				ok = false;
+			else {
+				pts.push_back(video.avpacket.pts);
+				if(video.avpacket.flags & AV_PKT_FLAG_KEY)
+					keyframes.push_back(video.avpacket.pts);
 			}
 		}
 
-		// Have an entry for every frame
-		if(data->mode == MODE_FILE) {
-			data->expressions["frames"].add(std::move(expression));
-		}
+		av_free_packet(&video.avpacket);
 	}
 
-	// Export the preview image
-	cv::cvtColor(data->orientedframe,output,CV_BGR2RGBA);
+	close_video(video);
+
+	std::sort(pts.begin(),pts.end());
+	std::sort(keyframes.begin(),keyframes.end());
+
+	return ok;
 }
 
-void draw_frame(data_t *data, cv::Mat &frame) {
-	LOGI("draw_frame()");
+// Rank of the frame with timestamp t, or -1 if there is none
+int frame_rank(const std::vector<int64_t> &pts, int64_t t) {
+	std::vector<int64_t>::const_iterator it = std::lower_bound(pts.begin(),pts.end(),t);
+	return it != pts.end() && *it == t ? it - pts.begin() : -1;
+}
 
-	void *pixels;
-	cv::Mat bitmapmat;
-	AndroidBitmapInfo info;
-	int w, h, xmargin, ymargin;
+// Split the video at keyframes into about one segment per tracking thread;
+// returns whether there was more than one segment
+bool plan_segments(data_t *data, const std::vector<int64_t> &pts, const std::vector<int64_t> &keyframes,
+	std::vector<segment_t> &segments) {
+	std::vector<int> starts(1,0);
+	int nframes = pts.size();
 
-	AndroidBitmap_getInfo(data->jenv,data->bitmap,&info);
+	if(keyframes.empty())
+		return false;
 
-	if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
-		LOGE("bitmap is not RGBA8888");
-		return;
-	}
+	for(int k = 1; k < data->trackingthreads; k++) {
+		int target = (int64_t) k*nframes/data->trackingthreads;
+
+		// Start at the first keyframe from target on
+		std::vector<int64_t>::const_iterator it = std::lower_bound(keyframes.begin(),keyframes.end(),pts[target]);
+		if(it == keyframes.end()) break;
 
-	// Fit frame to bitmap
-	if(frame.cols*info.height > info.width*frame.rows) { // frame is wider
-		w = info.width;
-		h = frame.rows*info.width/frame.cols;
-	} else { // bitmap is wider
-		w = frame.cols*info.height/frame.rows;
-		h = info.height;
+		int start = frame_rank(pts,*it);
+		if(start > starts.back() && start < nframes)
+			starts.push_back(start);
 	}
 
-	xmargin = (info.width - w)/2;
-	ymargin = (info.height - h)/2;
+	if(starts.size() < 2)
+		return false;
 
-	AndroidBitmap_lockPixels(data->jenv,data->bitmap,&pixels);
+	segments.resize(starts.size());
+	for(size_t i = 0; i < segments.size(); i++) {
+		segment_t &segment = segments[i];
 
-	bitmapmat = cv::Mat(h,w,CV_8UC4,(uint8_t *) pixels + ymargin*info.stride + xmargin*4,info.stride);
-	cv::resize(frame,bitmapmat,bitmapmat.size(),0,0,cv::INTER_NEAREST);
+		segment.data = data;
+		segment.pts = &pts;
+		segment.first = starts[i];
+		segment.end = i + 1 < starts.size() ? starts[i + 1] : nframes;
+		segment.warmup = std::max(0,segment.first - SEGMENT_WARMUP_FRAMES);
 
-	AndroidBitmap_unlockPixels(data->jenv,data->bitmap);
+		segment.tracked = 0;
+		segment.done = false;
+		segment.complete = false;
+		segment.framespath = data->writer.basepath + ".expression.json.part" + to_string(i);
+	}
 
-	data->jenv->CallVoidMethod(data->jthis,data->m_blitBitmap,xmargin,ymargin,w,h);
+	return true;
 }
 
-bool init_source(data_t *data) {
-	LOGI(std::string("initializing source, mode ").append(to_string(data->mode)).c_str());
+// Track one segment into its own list of expression frames
+void *segment_thread(segment_t *segment) {
+	data_t *data = segment->data;
+	video_t video = video_t();
+	cv::Mat input, gray;
+	int orientation = data->orientation;
+	int next = segment->warmup;
+	int64_t start;
+	bool ok;
+
+	// One compact frame per line, ready for the writer
+	std::ofstream frames(segment->framespath,std::ios::trunc);
+
+	// The first segment starts where a sequential pass would
+	ok = open_video(video,data->videopath)
+		&& (segment->first == 0 || seek_video(video,(*segment->pts)[segment->warmup]));
+
+	for(start = stats_clock(); ok && data->enabled && decode_video_frame(video); start = stats_clock()) {
+		int rank = frame_rank(*segment->pts,video.avframe->pkt_pts);
+
+		time_stage(data,STAGE_DECODE,start);
+
+		// The keyframe may be well before the warm-up
+		if(rank >= 0 && rank < segment->warmup) continue;
+		if(rank >= segment->end) break;
+
+		// Numbering only matches if every frame turns up, in order
+		if(rank != next) {
+			LOGE(std::string("segment expected frame ").append(to_string(next)).append(" but got ")
+				.append(to_string(rank)).c_str());
+			ok = false;
+			break;
+		}
+		next++;
 
-	AVCodec *codec;
+		start = stats_clock();
+		convert_video_frame(video,PIX_FMT_GRAY8,input);
+		time_stage(data,STAGE_CONVERT,start);
 
-	switch(data->mode) {
-	case MODE_CAMERA:
-		data->capture = std::unique_ptr<cv::VideoCapture>(new cv::VideoCapture(CV_CAP_ANDROID_FRONT));
-		if(!data->capture->isOpened()) {
-			LOGE("cannot open camera");
-			data->capture.reset();
-			return false;
+		start = stats_clock();
+		orient_frame(input,gray,orientation);
+		time_stage(data,STAGE_ORIENT,start);
+
+		if(will_detect(segment->tracker))
+			count_stat(data,STATS_DETECTIONS);
+
+		start = stats_clock();
+		int facestrength = segment->tracker->NewFrame(gray,data->facetrackerparams.get());
+		time_stage(data,STAGE_TRACK,start);
+		count_face_strength(data,facestrength);
+
+		if(rank >= segment->first) {
+			frames << expression_to_json(segment->tracker,whole_view(gray.size()),data->recordformat,rank + 1,facestrength) << '\n';
+			segment->tracked = next - segment->first;
 		}
+	}
 
-		// Adjust the camera dimensions
-		data->capture->set(CV_CAP_PROP_FRAME_WIDTH,CAMERA_WIDTH);
-		data->capture->set(CV_CAP_PROP_FRAME_HEIGHT,CAMERA_HEIGHT);
-		break;
+	// Decoding may stop a few frames short at the very end, as it does for
+	// a sequential pass
+	segment->complete = ok && data->enabled && frames
+		&& (next == segment->end || segment->end == (int) segment->pts->size());
 
-	case MODE_FILE:
-		// Prepare to record the facial expressions
-		data->expressions["frames"] = std::move(jsoncons::json(jsoncons::json::an_array));
+	frames.close();
 
-		av_register_all();
+	close_video(video);
 
-		// Open the video file
-		data->avformat = avformat_alloc_context();
-		if(avformat_open_input(&data->avformat,data->videopath.c_str(),NULL,NULL) < 0) {
-			LOGE(std::string("cannot open ").append(data->videopath).c_str());
-			return false;;
-		}
+	segment->done = true;
 
-		// Get info about the file
-		if(avformat_find_stream_info(data->avformat,NULL) < 0) {
-			LOGE("cannot get video file info");
-			return false;
-		}
+	return NULL;
+}
 
-		// Find the first video stream
-		data->avstream = NULL;
-		for(unsigned int i = 0; i < data->avformat->nb_streams; i++) {
-			AVCodecContext *codec = data->avformat->streams[i]->codec;
-			if(codec->codec_type == AVMEDIA_TYPE_VIDEO) {
-				data->avstream = data->avformat->streams[i];
-				break;
-			}
+// Track the current video in parallel segments and merge their frames in
+// order; returns false, having recorded nothing, if the video cannot be
+// split or the segments' frames do not line up, so that the caller can
+// fall back to a sequential pass
+bool track_segments(data_t *data) {
+	std::vector<int64_t> pts, keyframes;
+	std::vector<segment_t> segments;
+	struct timespec begin, now;
+	int tracked;
+	bool done, merged;
+
+	if(!data->facetracker || !scan_video(data->videopath,pts,keyframes)
+		|| !plan_segments(data,pts,keyframes,segments))
+		return false;
+
+	LOGI(std::string("tracking in ").append(to_string(segments.size())).append(" segments").c_str());
+
+	data->expectedframes = pts.size();
+
+	// The first segment borrows the main tracker
+	for(size_t i = 0; i < segments.size(); i++) {
+		if(i == 0) {
+			segments[i].tracker = data->facetracker.get();
+			continue;
 		}
 
-		// Abort if there isn't one
-		if(!data->avstream) {
-			LOGE("cannot find video stream");
-			return false;
-		}
+		segments[i].ownedtracker = load_tracker(data->assetmanager,data->modelpath);
+		segments[i].tracker = segments[i].ownedtracker.get();
 
-		// Find a decoder for the stream
-		codec = avcodec_find_decoder(data->avstream->codec->codec_id);
-		if(!codec) {
-			LOGE(std::string("cannot find decoder for codec ID ")
-				.append(to_string(data->avstream->codec->codec_id)).c_str());
+		if(!segments[i].tracker) {
+			LOGE("cannot load face tracker for segment");
 			return false;
 		}
+	}
 
-		data->avcodec = avcodec_alloc_context3(codec);
-		data->avcodec->extradata = data->avstream->codec->extradata;
-		data->avcodec->extradata_size = data->avstream->codec->extradata_size;
+	for(size_t i = 0; i < segments.size(); i++)
+		pthread_create(&segments[i].thread,NULL,(void *(*)(void *)) segment_thread,(void *) &segments[i]);
 
-		if(avcodec_open2(data->avcodec,codec,NULL) < 0) {
-			LOGE("cannot open codec");
-			return false;
+	// Report on everyone until they are all done
+	clock_gettime(CLOCK_MONOTONIC,&begin);
+	do {
+		struct timespec interval = {0, (long) (BATCH_REPORT_INTERVAL*1e9)};
+		nanosleep(&interval,NULL);
+
+		tracked = 0;
+		done = true;
+		for(size_t i = 0; i < segments.size(); i++) {
+			tracked += segments[i].tracked;
+			done = done && segments[i].done;
 		}
 
-		// Save some information about this file
-		data->expressions["source"] = data->videopath;
-		data->expressions["frame_width"] = data->avcodec->width;
-		data->expressions["frame_height"] = data->avcodec->height;
-		data->expressions["fps"] = av_q2d(data->avstream->avg_frame_rate);
+		clock_gettime(CLOCK_MONOTONIC,&now);
+		report_batch_progress(data,tracked,now.tv_sec - begin.tv_sec + (now.tv_nsec - begin.tv_nsec)/1e9);
+	} while(!done);
+
+	for(size_t i = 0; i < segments.size(); i++) {
+		pthread_join(segments[i].thread,NULL);
+		give_model(idletrackers,data->modelpath,segments[i].ownedtracker);
+	}
 
-		// Prepare for decoding
-		av_init_packet(&data->avpacket);
-		data->avpacketoffset = 0;
+	merged = true;
 
-		data->avframe = av_frame_alloc();
-		break;
+	// If we were stopped, keep whatever is complete from the start
+	for(size_t i = 0; i < segments.size() && data->enabled && merged; i++) {
+		if(!segments[i].complete) {
+			LOGE("segments do not line up; tracking sequentially instead");
+			data->facetracker->Reset();
+			merged = false;
+		}
 	}
 
-	data->framecount = 0;
+	for(size_t i = 0; i < segments.size(); i++) {
+		if(merged && segments[i].complete) {
+			std::ifstream frames(segments[i].framespath);
+			std::string line;
+			while(std::getline(frames,line))
+				write_expression_frame(data->writer,jsoncons::json::parse_string(line));
+		} else merged = false;
 
-	data->sourceinited = true;
+		remove(segments[i].framespath.c_str());
+	}
 
-	return true;
+	return merged || !data->enabled;
 }
 
-void uninit_source(data_t *data) {
-	std::string expressionfile;
+// Carry out whatever VisualView has asked for since the last frame; runs on
+// the worker thread, which owns the tracker. Calibrations and saves need a
+// frame with a face, so they wait for the presenter.
+void run_commands(data_t *data) {
+	command_t command;
+
+	while(pop_command(data->commands,command)) {
+		switch(command.type) {
+		case COMMAND_RESET_TRACKING:
+			LOGI("resetting face tracking");
+			if(data->facetracker)
+				data->facetracker->Reset();
+			clear_faces(data);
+			data->calibration++;
+			break;
+
+		case COMMAND_CALIBRATE_EXPRESSION:
+			LOGI("calibrating expression");
+			if(!data->avatar)
+				LOGE("cannot calibrate expression; no avatar loaded");
+			else if(data->facestrength < MIN_FACE_STRENGTH)
+				LOGE("cannot calibrate expression; face tracking too weak");
+			else data->calibration++;
+			break;
+
+		case COMMAND_SAVE_FACE_IMAGE:
+			data->saves.push_back(std::move(command.face));
+			break;
+		}
+	}
+}
 
-	if(!data->sourceinited)
+// Run the current source through the pipeline until it runs out or we are
+// told to stop; this thread tracks, while capture and presentation run
+// alongside on their own threads
+void run_source(data_t *data) {
+	frame_t frame;
+	double duration, sincereport;
+	struct timespec start, end, begin;
+
+	if(!init_source(data)) {
+		LOGE("cannot init video source");
 		return;
+	}
 
-	switch(data->mode) {
-	case MODE_CAMERA:
-		if(data->capture)
-			data->capture->release();
-		break;
+	// Headless videos can be split between several trackers, unless they
+	// are already tracking several faces at once
+	if(data->mode == MODE_BATCH && data->trackingthreads > 1 && data->maxfaces <= 1 && track_segments(data)) {
+		uninit_source(data);
+		return;
+	}
 
-	case MODE_FILE:
-		// Save the expression data
-		expressionfile = std::string(data->videopath.data(),data->videopath.find_last_of('.')).append(".expression.json");
-		LOGI(std::string("Expression file: ").append(expressionfile).c_str());
-		std::ofstream(expressionfile) << pretty_print(data->expressions) << std::endl;
+	// Camera frames are pushed by the preview callback instead
+	if(data->mode != MODE_CAMERA)
+		pthread_create(&data->capturer,NULL,(void *(*)(void *)) capture_thread,(void *) data);
 
-		// Free everything in data
-		if(data->swscontext) {
-			sws_freeContext(data->swscontext);
-			data->swscontext = NULL;
-		}
+	// Batch mode has nothing to show
+	if(data->mode != MODE_BATCH)
+		pthread_create(&data->presenter,NULL,(void *(*)(void *)) present_thread,(void *) data);
+
+	clock_gettime(CLOCK_MONOTONIC,&begin);
+	sincereport = 0;
 
-		if(data->avpicture.data[0])
-			avpicture_free(&data->avpicture);
+	while(pop_frame(data->captured,frame)) {
+		run_commands(data);
 
-		if(data->avframe)
-			av_frame_free(&data->avframe);
+		clock_gettime(CLOCK_MONOTONIC,&start);
 
-		if(data->avpacket.data)
-			av_free_packet(&data->avpacket);
+		track_frame(data,frame);
 
-		if(data->avcodec) {
-			if(avcodec_is_open(data->avcodec))
-				avcodec_close(data->avcodec);
+		clock_gettime(CLOCK_MONOTONIC,&end);
+		duration = end.tv_sec - start.tv_sec
+			+ (end.tv_nsec - start.tv_nsec)/1e9;
 
-			av_freep(&data->avcodec->subtitle_header);
-			av_freep(&data->avcodec);
+		if(data->mode == MODE_BATCH) {
+			sincereport += duration;
+			if(sincereport >= BATCH_REPORT_INTERVAL) {
+				report_batch_progress(data,frame.number,end.tv_sec - begin.tv_sec
+					+ (end.tv_nsec - begin.tv_nsec)/1e9);
+				sincereport = 0;
+			}
+			continue;
 		}
 
-		if(data->avformat)
-			avformat_close_input(&data->avformat);
-		break;
-	}
+		govern_tracking(data,duration);
 
-	data->sourceinited = false;
-}
+		if(!push_frame(data->tracked,frame))
+			break;
 
-void set_up_sigactions() {
-	struct sigaction sa;
+		// What came back was dropped if it still has saves, so they go out
+		// with the next frame instead
+		for(size_t i = 0; i < frame.saves.size(); i++)
+			data->saves.push_back(std::move(frame.saves[i]));
+		frame.saves.clear();
+	}
 
-	// Handle the friendly termination signal
-	sigemptyset(&sa.sa_mask);
-	sa.sa_flags = 0;
-	sa.sa_handler = [](int signum) {
-		pthread_exit(NULL);
-	};
-	sigaction(SIGINT,&sa,NULL);
-}
+	// Let the other stages run dry
+	close_queue(data->captured);
+	close_queue(data->tracked);
 
-void cleanup_processing_thread(data_t *data) {
-	uninit_source(data);
+	if(data->mode != MODE_CAMERA)
+		pthread_join(data->capturer,NULL);
+	if(data->mode != MODE_BATCH)
+		pthread_join(data->presenter,NULL);
 
-	LOGI("processing thread is dead");
+	if(data->captured.dropped || data->tracked.dropped) {
+		LOGI(std::string("dropped ").append(to_string(data->captured.dropped)).append(" captured and ")
+			.append(to_string(data->tracked.dropped)).append(" tracked frames").c_str());
+	}
 
-	data->jvm->DetachCurrentThread();
+	uninit_source(data);
 }
 
 void *processing_thread(data_t *data) {
-	jclass c_this;
-	double duration;
-	cv::Mat input, output;
-	struct timespec start, end;
+	LOGI("processing thread is alive");
 
-	pthread_cleanup_push((void (*)(void *)) cleanup_processing_thread,(void *) data);
+	if(data->mode != MODE_BATCH) {
+		run_source(data);
 
-	set_up_sigactions();
+		LOGI("processing thread is dead");
 
-	data->jvm->AttachCurrentThread(&data->jenv,NULL);
+		return NULL;
+	}
 
-	LOGI("processing thread is alive");
+	// Batch mode talks to Java from here, since nothing is presented
+	data->jvm->AttachCurrentThread(&data->jenv,NULL);
 
-	c_this = data->jenv->GetObjectClass(data->jthis);
-	data->m_blitBitmap = data->jenv->GetMethodID(c_this,"blitBitmap","(IIII)V");
+	for(data->batchindex = 0; data->batchindex < data->videopaths.size() && data->enabled; data->batchindex++) {
+		data->videopath = data->videopaths[data->batchindex];
+		LOGI(std::string("batch video ").append(to_string(data->batchindex + 1)).append(" of ")
+			.append(to_string(data->videopaths.size())).append(": ").append(data->videopath).c_str());
 
-	if(!init_source(data)) {
-		LOGE("cannot init video source");
-		pthread_exit(NULL);
-	}
+		// Each video starts from scratch
+		if(data->facetracker)
+			data->facetracker->Reset();
 
-	while(data->enabled) {
-		clock_gettime(CLOCK_MONOTONIC,&start);
+		reopen_queue(data->captured,data->enabled);
+		reopen_queue(data->tracked,data->enabled);
 
-		if(!get_frame(data,input)) {
-			LOGI("no more frames");
-			pthread_exit(NULL);
-		}
+		run_source(data);
+	}
 
-		process_frame(data,input,output);
-		draw_frame(data,output);
+	// A negative index means the batch is over
+	data->jenv->CallVoidMethod(data->jthis,ids.m_reportBatchProgress,(jint) -1,
+		(jint) data->videopaths.size(),(jfloat) 1,(jfloat) 0);
 
-		clock_gettime(CLOCK_MONOTONIC,&end);
-		duration = end.tv_sec - start.tv_sec
-			+ (end.tv_nsec - start.tv_nsec)/1e9;
-		LOGI(std::string("Frame time: ").append(to_string(duration)).c_str());
-	}
+	data->jvm->DetachCurrentThread();
 
-	pthread_cleanup_pop(true);
+	LOGI("processing thread is dead");
 
 	return NULL;
 }
 
+// Look up everything the native side uses of VisualView, so that no call
+// has to do it again; run from VisualView's static initializer
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_initIDs(JNIEnv *jenv, jclass c_this) {
+	ids.f_data = jenv->GetFieldID(c_this,"data","Ljava/nio/ByteBuffer;");
+
+	ids.f_mode = jenv->GetFieldID(c_this,"mode","I");
+	ids.f_recordFormat = jenv->GetFieldID(c_this,"recordFormat","I");
+	ids.f_pipelineDepth = jenv->GetFieldID(c_this,"pipelineDepth","I");
+	ids.f_pipelinePolicy = jenv->GetFieldID(c_this,"pipelinePolicy","I");
+	ids.f_frameBudget = jenv->GetFieldID(c_this,"frameBudget","I");
+	ids.f_trackingThreads = jenv->GetFieldID(c_this,"trackingThreads","I");
+	ids.f_maxFaces = jenv->GetFieldID(c_this,"maxFaces","I");
+
+	ids.f_statsBuffer = jenv->GetFieldID(c_this,"statsBuffer","Ljava/nio/ByteBuffer;");
+
+	ids.f_assets = jenv->GetFieldID(c_this,"assets","Landroid/content/res/AssetManager;");
+
+	ids.f_modelPath = jenv->GetFieldID(c_this,"modelPath","Ljava/lang/String;");
+	ids.f_paramsPath = jenv->GetFieldID(c_this,"paramsPath","Ljava/lang/String;");
+	ids.f_avatarPath = jenv->GetFieldID(c_this,"avatarPath","Ljava/lang/String;");
+	ids.f_videoPath = jenv->GetFieldID(c_this,"videoPath","Ljava/lang/String;");
+	ids.f_videoPaths = jenv->GetFieldID(c_this,"videoPaths","[Ljava/lang/String;");
+
+	ids.m_blitBitmap = jenv->GetMethodID(c_this,"blitBitmap","(IIII)V");
+	ids.m_recyclePreviewBuffer = jenv->GetMethodID(c_this,"recyclePreviewBuffer","([B)V");
+	ids.m_reportBatchProgress = jenv->GetMethodID(c_this,"reportBatchProgress","(IIFF)V");
+	ids.m_reportFaceImage = jenv->GetMethodID(c_this,"reportFaceImage","(IZ)V");
+}
+
 extern "C" void Java_com_kevinriehm_mobileface_VisualView_setViewOrientation(JNIEnv *jenv, jobject jthis, jint orientation) {
 	data_t *data;
 
@@ -595,63 +2870,122 @@ extern "C" void Java_com_kevinriehm_mobileface_VisualView_setViewOrientation(JNI
 	}
 }
 
-extern "C" void Java_com_kevinriehm_mobileface_VisualView_spawnWorker(JNIEnv *jenv, jobject jthis, jint mode, jobject bitmap) {
+// Draw into surface from now on, or through bitmap if it cannot be drawn
+// into directly; batch mode draws nothing
+void attach_surface(data_t *data, JNIEnv *jenv, jobject bitmap, jobject surface) {
+	data->bitmap = bitmap ? jenv->NewGlobalRef(bitmap) : NULL;
+
+	data->window = NULL;
+	if(surface && data->mode != MODE_BATCH) {
+		data->window = ANativeWindow_fromSurface(jenv,surface);
+		if(data->window && ANativeWindow_setBuffersGeometry(data->window,0,0,WINDOW_FORMAT_RGBA_8888) < 0) {
+			LOGE("cannot set surface format; drawing through the bitmap instead");
+			ANativeWindow_release(data->window);
+			data->window = NULL;
+		}
+	}
+}
+
+void detach_surface(data_t *data, JNIEnv *jenv) {
+	if(data->window)
+		ANativeWindow_release(data->window);
+	data->window = NULL;
+
+	if(data->bitmap)
+		jenv->DeleteGlobalRef(data->bitmap);
+	data->bitmap = NULL;
+}
+
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_spawnWorker(JNIEnv *jenv, jobject jthis, jint mode, jobject bitmap,
+	jobject surface) {
 	data_t *data;
-	jclass c_this;
-	jstring s_avatarpath, s_modelpath, s_paramspath;
-	const char *avatarpath, *modelpath, *paramspath;
-	jfieldID f_avatarpath, f_modelpath, f_paramspath;
 
 	// Is the worker already running?
 	if(data = get_data(jenv,jthis)) return;
 
-	c_this = jenv->GetObjectClass(jthis);
-
 	data = new data_t();
 
 	jenv->GetJavaVM(&data->jvm);
 	data->jthis = jenv->NewGlobalRef(jthis);
 
-	data->mode = get_int(jenv,jthis,"mode");
+	data->mode = get_int(jenv,jthis,ids.f_mode);
+	data->recordformat = get_int(jenv,jthis,ids.f_recordFormat);
 	data->enabled = true;
 
-	data->bitmap = jenv->NewGlobalRef(bitmap);
-	data->orientation = 0;
+	pthread_mutex_init(&data->pausemutex,NULL);
+	pthread_cond_init(&data->pausecond,NULL);
+	data->paused = false;
+	data->presenting = false;
+
+	// Every frame of a video has to be tracked, so only the preview may
+	// ever be dropped there
+	data->pipelinedepth = get_int(jenv,jthis,ids.f_pipelineDepth);
+	data->pipelinepolicy = get_int(jenv,jthis,ids.f_pipelinePolicy);
+
+	// Timings and counters go straight into Java's buffer
+	data->stats = NULL;
+	if(jobject statsbuffer = jenv->GetObjectField(jthis,ids.f_statsBuffer)) {
+		if(jenv->GetDirectBufferCapacity(statsbuffer) >= (jlong) (STATS_SIZE*sizeof(int32_t)))
+			data->stats = (int32_t *) jenv->GetDirectBufferAddress(statsbuffer);
+		jenv->DeleteLocalRef(statsbuffer);
+	}
+
+	// The camera cannot be made to wait, so its frames are always dropped
+	init_queue(data->captured,data->pipelinedepth,data->mode == MODE_CAMERA,
+		data->stats ? data->stats + STATS_DROPPED_CAPTURED : NULL);
+	init_queue(data->tracked,data->pipelinedepth,data->pipelinepolicy == PIPELINE_DROP_OLDEST,
+		data->stats ? data->stats + STATS_DROPPED_TRACKED : NULL);
+
+	pthread_mutex_init(&data->previewmutex,NULL);
 
-	// Load the CI2CV face tracker
-	f_modelpath = jenv->GetFieldID(c_this,"modelPath","Ljava/lang/String;");
-	s_modelpath = (jstring) jenv->GetObjectField(jthis,f_modelpath);
-	modelpath = jenv->GetStringUTFChars(s_modelpath,NULL);
+	attach_surface(data,jenv,bitmap,surface);
+	data->orientation = 0;
 
-	f_paramspath = jenv->GetFieldID(c_this,"paramsPath","Ljava/lang/String;");
-	s_paramspath = (jstring) jenv->GetObjectField(jthis,f_paramspath);
-	paramspath = jenv->GetStringUTFChars(s_paramspath,NULL);
+	// Models come straight out of the APK where they can
+	data->assets = NULL;
+	data->assetmanager = NULL;
+	if(jobject assets = jenv->GetObjectField(jthis,ids.f_assets)) {
+		data->assets = jenv->NewGlobalRef(assets);
+		data->assetmanager = AAssetManager_fromJava(jenv,data->assets);
+		jenv->DeleteLocalRef(assets);
+	}
 
-	data->facetracker = std::unique_ptr<FACETRACKER::FaceTracker>(FACETRACKER::LoadFaceTracker(modelpath));
+	// Load the CI2CV face tracker, unless an earlier worker left one behind
+	data->modelpath = get_string(jenv,jthis,ids.f_modelPath);
+	data->facetracker = load_tracker(data->assetmanager,data->modelpath);
 	if(!data->facetracker) LOGE("cannot load face tracker");
 
-	data->facetrackerparams = std::unique_ptr<FACETRACKER::FaceTrackerParams>(FACETRACKER::LoadFaceTrackerParams(paramspath));
+	data->paramspath = get_string(jenv,jthis,ids.f_paramsPath);
+	data->facetrackerparams = load_tracker_params(data->assetmanager,data->paramspath);
 	if(!data->facetrackerparams) LOGE("cannot load face tracker parameters");
 
-	jenv->ReleaseStringUTFChars(s_paramspath,paramspath);
-	jenv->ReleaseStringUTFChars(s_modelpath,modelpath);
-
 	data->facestrength = 0;
-	data->calibrated = false;
 
-	// Load the CI2CV avatar
-	f_avatarpath = jenv->GetFieldID(c_this,"avatarPath","Ljava/lang/String;");
-	s_avatarpath = (jstring) jenv->GetObjectField(jthis,f_avatarpath);
-	avatarpath = jenv->GetStringUTFChars(s_avatarpath,NULL);
+	// The first face the presenter sees calibrates the avatar
+	data->commands.head = 0;
+	data->commands.tail = 0;
+	data->calibration = 0;
+	data->avatarcalibration = -1;
+
+	// Load the CI2CV avatar; nothing gets animated in batch mode
+	data->avatarpath = get_string(jenv,jthis,ids.f_avatarPath);
+	if(data->mode != MODE_BATCH) {
+		data->avatar = load_avatar(data->assetmanager,data->avatarpath);
+		if(!data->avatar) LOGE("cannot load avatar");
+	}
 
-	data->avatar = std::unique_ptr<AVATAR::Avatar>(AVATAR::LoadAvatar(avatarpath));
-	if(!data->avatar) LOGE("cannot load avatar");
-	data->avatar->setAvatar(2);
+	// Miscellaneous info
+	data->videopath = get_string(jenv,jthis,ids.f_videoPath);
+	data->videopaths = get_string_array(jenv,jthis,ids.f_videoPaths);
+	data->trackingthreads = get_int(jenv,jthis,ids.f_trackingThreads);
 
-	jenv->ReleaseStringUTFChars(s_avatarpath,avatarpath);
+	// Several faces are tracked on a pool of the tracking threads
+	data->maxfaces = get_int(jenv,jthis,ids.f_maxFaces);
+	if(data->maxfaces > 1)
+		init_face_pool(data->facepool,std::min(data->trackingthreads,data->maxfaces));
 
-	// Miscellaneous info
-	data->videopath = get_string(jenv,jthis,"videoPath");
+	// Batch mode takes as long as it takes
+	init_governor(data,data->mode == MODE_BATCH ? 0 : get_int(jenv,jthis,ids.f_frameBudget)/1000.0);
 
 	// Store the data
 	set_data(jenv,jthis,data);
@@ -666,13 +3000,49 @@ extern "C" void Java_com_kevinriehm_mobileface_VisualView_terminateWorker(JNIEnv
 	// Is there even a worker to terminate?
 	if(data = get_data(jenv,jthis), !data) return;
 
-	// Terminate it
+	// Terminate it; closing the queues wakes any stage that is waiting, and
+	// the broadcast any that is paused
+	pthread_mutex_lock(&data->pausemutex);
 	data->enabled = false;
-	pthread_kill(data->worker,SIGINT);
+	pthread_cond_broadcast(&data->pausecond);
+	pthread_mutex_unlock(&data->pausemutex);
+
+	close_queue(data->captured);
+	close_queue(data->tracked);
 	pthread_join(data->worker,NULL);
 
+	destroy_queue(data->tracked);
+	destroy_queue(data->captured);
+
+	// The face trackers share the main tracker's models, so they go first
+	if(data->maxfaces > 1) {
+		destroy_face_pool(data->facepool);
+		clear_faces(data);
+		data->sparetrackers.clear();
+	}
+
+	// The next worker can skip loading these
+	give_model(idletrackers,data->modelpath,data->facetracker);
+	give_model(idleparams,data->paramspath,data->facetrackerparams);
+	give_model(idleavatars,data->avatarpath,data->avatar);
+
 	// Clean up data
-	jenv->DeleteGlobalRef(data->bitmap);
+	detach_surface(data,jenv);
+
+	// The camera has been stopped by now, so nothing needs these back
+	for(size_t i = 0; i < data->previewbuffers.size(); i++) {
+		preview_buffer_t &buffer = data->previewbuffers[i];
+		if(buffer.copy.empty())
+			jenv->ReleaseByteArrayElements(buffer.array,buffer.bytes,JNI_ABORT);
+		jenv->DeleteGlobalRef(buffer.array);
+	}
+	pthread_mutex_destroy(&data->previewmutex);
+
+	pthread_cond_destroy(&data->pausecond);
+	pthread_mutex_destroy(&data->pausemutex);
+
+	if(data->assets)
+		jenv->DeleteGlobalRef(data->assets);
 	jenv->DeleteGlobalRef(data->jthis);
 
 	delete data;
@@ -680,66 +3050,138 @@ extern "C" void Java_com_kevinriehm_mobileface_VisualView_terminateWorker(JNIEnv
 	set_data(jenv,jthis,NULL);
 }
 
-extern "C" void Java_com_kevinriehm_mobileface_VisualView_resetTracking(JNIEnv *jenv, jobject jthis) {
+// Stop drawing and capturing without letting go of anything; returns once
+// nothing is being drawn
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_pauseWorker(JNIEnv *jenv, jobject jthis) {
 	data_t *data;
 
-	if(data = get_data(jenv,jthis)) {
-		LOGI("resetting face tracking");
-		data->facetracker->Reset();
-		data->calibrated = false;
-	}
+	if(data = get_data(jenv,jthis)) pause_worker(data);
 }
 
-extern "C" bool Java_com_kevinriehm_mobileface_VisualView_calibrateExpression(JNIEnv *jenv, jobject jthis) {
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_resumeWorker(JNIEnv *jenv, jobject jthis) {
 	data_t *data;
-	cv::Mat frame;
-	FACETRACKER::PointVector shape;
 
-	if(data = get_data(jenv,jthis)) {
-		LOGI("calibrating expression");
+	if(data = get_data(jenv,jthis)) resume_worker(data);
+}
 
-		if(data->facestrength < MIN_FACE_STRENGTH) {
-			LOGE("cannot calibrate expression; face tracking too weak");
-			return false;
-		}
+// Draw into a new surface, or nothing while both are null; only while paused
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_setWorkerSurface(JNIEnv *jenv, jobject jthis, jobject bitmap,
+	jobject surface) {
+	data_t *data;
 
-		get_current_frame(data,frame);
-		shape = data->facetracker->getShape();
+	if(data = get_data(jenv,jthis), !data) return;
+
+	detach_surface(data,jenv);
+	attach_surface(data,jenv,bitmap,surface);
+}
+
+// Let go of every model no worker is using
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_releaseModels(JNIEnv *jenv, jclass c_this) {
+	free_models(idletrackers);
+	free_models(idleparams);
+	free_models(idleavatars);
+}
+
+// Where a preview buffer's bytes can be read, pinning it the first time it
+// turns up
+jbyte *get_preview_bytes(data_t *data, JNIEnv *jenv, jbyteArray array, int &index) {
+	jboolean iscopy;
+	jbyte *bytes;
+
+	pthread_mutex_lock(&data->previewmutex);
+
+	for(index = 0; index < (int) data->previewbuffers.size(); index++) {
+		if(jenv->IsSameObject(data->previewbuffers[index].array,array))
+			break;
+	}
 
-		data->avatar->Initialise(frame,shape);
+	if(index == (int) data->previewbuffers.size()) {
+		preview_buffer_t buffer;
+		buffer.array = (jbyteArray) jenv->NewGlobalRef(array);
+		buffer.bytes = jenv->GetByteArrayElements(array,&iscopy);
 
-		data->calibrated = true;
+		if(iscopy) {
+			jenv->ReleaseByteArrayElements(array,buffer.bytes,JNI_ABORT);
+			buffer.copy.resize(jenv->GetArrayLength(array));
+			buffer.bytes = buffer.copy.data();
+		}
 
-		return true;
+		data->previewbuffers.push_back(std::move(buffer));
 	}
 
-	return false;
+	preview_buffer_t &buffer = data->previewbuffers[index];
+	if(!buffer.copy.empty())
+		jenv->GetByteArrayRegion(array,0,buffer.copy.size(),buffer.bytes);
+	bytes = buffer.bytes;
+
+	pthread_mutex_unlock(&data->previewmutex);
+
+	return bytes;
 }
 
-// Save the face from the current frame into filename;
-// returns whether a face was actually saved
-extern "C" jboolean Java_com_kevinriehm_mobileface_VisualView_saveFaceImage(JNIEnv *jenv, jobject jthis, jstring filename) {
+// An NV21 preview frame from the camera; runs on the thread that opened it
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_submitPreviewFrame(JNIEnv *jenv, jobject jthis,
+	jbyteArray array, jint width, jint height) {
 	data_t *data;
-	cv::Mat face, frame;
-	const char *filestr;
+	int index;
 
-	if(data = get_data(jenv,jthis)) {
-		// Is there actually a face in this frame?
-		if(data->face.width == 0)
-			return false;
+	if(data = get_data(jenv,jthis), !data || data->mode != MODE_CAMERA) return;
+
+	frame_t &frame = data->previewframe;
+	frame.input = cv::Mat(height + height/2,width,CV_8UC1,get_preview_bytes(data,jenv,array,index));
+	frame.preview = index;
+	frame.number = ++data->framecount;
 
-		// Save the image of the face
-		filestr = jenv->GetStringUTFChars(filename,NULL);
+	push_frame(data->captured,frame);
 
-		get_current_frame(data,frame);
-		face = cv::Mat(frame,data->face);
-		imwrite(std::string(filestr),face);
+	// Whatever came back, such as a dropped frame, is done with its buffer;
+	// so is this frame if the queue was closed
+	recycle_preview_buffer(data,jenv,frame);
+}
+
+// Queue command for the worker, if there is one; the controls below all run
+// on the UI thread, which makes it the command queue's only producer
+bool queue_command(JNIEnv *jenv, jobject jthis, command_t &command) {
+	data_t *data;
 
-		jenv->ReleaseStringUTFChars(filename,filestr);
+	if(data = get_data(jenv,jthis), !data) return false;
 
-		return true;
+	if(!push_command(data->commands,command)) {
+		LOGE("command queue is full; dropping command");
+		return false;
 	}
 
-	return false;
+	return true;
+}
+
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_resetTracking(JNIEnv *jenv, jobject jthis) {
+	command_t command;
+
+	command.type = COMMAND_RESET_TRACKING;
+	queue_command(jenv,jthis,command);
 }
 
+extern "C" void Java_com_kevinriehm_mobileface_VisualView_calibrateExpression(JNIEnv *jenv, jobject jthis) {
+	command_t command;
+
+	command.type = COMMAND_CALIBRATE_EXPRESSION;
+	queue_command(jenv,jthis,command);
+}
+
+// Have the face from the next frame saved into filename; the answer comes
+// back through VisualView.reportFaceImage() with request. Returns false if
+// it could not be asked for.
+extern "C" jboolean Java_com_kevinriehm_mobileface_VisualView_queueSaveFaceImage(JNIEnv *jenv, jobject jthis, jint request,
+	jstring filename) {
+	command_t command;
+	const char *filestr;
+
+	command.type = COMMAND_SAVE_FACE_IMAGE;
+	command.face.request = request;
+
+	filestr = jenv->GetStringUTFChars(filename,NULL);
+	command.face.filename = filestr;
+	jenv->ReleaseStringUTFChars(filename,filestr);
+
+	return queue_command(jenv,jthis,command);
+}
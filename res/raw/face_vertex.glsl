@@ -1,8 +1,10 @@
 #version 100
 
 uniform mat4 u_camera;
+uniform float u_blend;
 
 attribute vec3 a_position;
+attribute vec3 a_next_position;
 attribute vec2 a_uv;
 
 varying vec2 v_uv;
@@ -10,6 +12,5 @@ varying vec2 v_uv;
 void main() {
 	v_uv = a_uv;
 
-	gl_Position = u_camera*vec4(a_position, 1);
+	gl_Position = u_camera*vec4(mix(a_position, a_next_position, u_blend), 1);
 }
-
@@ -0,0 +1,134 @@
+package com.kevinriehm.mobileface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+// Process-wide store for the things every ExpressionView needs but which
+// never change between views: shader sources, the parsed triangle list and
+// decoded avatars. Entries are charged by their size in bytes.
+final class AssetCache {
+	private static final String TAG = "MobileFace-AssetCache";
+
+	private static final int maxBytes = 8 << 20;
+
+	private static final LruCache<String, Object> cache = new LruCache<String, Object>(maxBytes) {
+		protected int sizeOf(String key, Object value) {
+			if(value instanceof String)
+				return 2*((String) value).length();
+			if(value instanceof ShortBuffer)
+				return 2*((ShortBuffer) value).capacity();
+			if(value instanceof Avatar)
+				return ((Avatar) value).sizeInBytes();
+			return 1;
+		}
+	};
+
+	// A decoded avatar texture and its texture coordinates; treat as immutable
+	static class Avatar {
+		final int width, height;
+		final Bitmap bitmap;
+		final FloatBuffer uvs;
+
+		Avatar(int _width, int _height, Bitmap _bitmap, FloatBuffer _uvs) {
+			width = _width;
+			height = _height;
+			bitmap = _bitmap;
+			uvs = _uvs;
+		}
+
+		// Each user gets their own position and limit
+		FloatBuffer getUVs() {
+			return uvs.duplicate();
+		}
+
+		int sizeInBytes() {
+			return 4*width*height + 4*uvs.capacity();
+		}
+	}
+
+	private AssetCache() {
+	}
+
+	// Source code of a raw text resource, such as a shader
+	static String getText(Resources resources, int resid) throws IOException {
+		String key = "text:" + resid;
+
+		String text = (String) cache.get(key);
+		if(text == null) {
+			text = new String(readResource(resources,resid),"UTF-8");
+			cache.put(key,text);
+		}
+
+		return text;
+	}
+
+	// Triangle index list in the face.tri format, ready to hand to GL; the
+	// number of triangles is capacity()/3
+	static ShortBuffer getTriangles(Resources resources, int resid) throws IOException {
+		String key = "tri:" + resid;
+
+		ShortBuffer tris = (ShortBuffer) cache.get(key);
+		if(tris == null) {
+			tris = RawResources.parseTriangles(readResource(resources,resid));
+			cache.put(key,tris);
+
+			Log.i(TAG,"parsed " + tris.capacity()/3 + " triangles");
+		}
+
+		return tris.duplicate();
+	}
+
+	// Avatars are keyed by path and modification time, so a replaced file is
+	// never served stale
+	static Avatar getAvatar(String path) {
+		return (Avatar) cache.get(avatarKey(path));
+	}
+
+	static void putAvatar(String path, Avatar avatar) {
+		cache.put(avatarKey(path),avatar);
+	}
+
+	static void evictAll() {
+		cache.evictAll();
+	}
+
+	// Hook for ComponentCallbacks2.onTrimMemory()
+	static void trimMemory(int level) {
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+			cache.evictAll();
+		else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+			cache.trimToSize(maxBytes/2);
+	}
+
+	// Helper functions
+
+	private static String avatarKey(String path) {
+		return "avatar:" + path + ":" + new File(path).lastModified();
+	}
+
+	private static byte[] readResource(Resources resources, int resid) throws IOException {
+		InputStream input = resources.openRawResource(resid);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		try {
+			int numBytes;
+			byte[] buf = new byte[8192];
+			while((numBytes = input.read(buf)) > 0)
+				output.write(buf,0,numBytes);
+		} finally {
+			input.close();
+		}
+
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,459 @@
+package com.kevinriehm.mobileface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Compressed, append-only store of expression frames. Frames are grouped
+// into blocks of keyframeInterval; each block is quantized to 16 bits
+// against its own bounds, the first face in it is stored whole and every
+// later face as Rice-coded zigzag deltas from the one before. This is also
+// the layout of the frame data in version 3 .expression.bin files (see
+// encode_expression_block() in visual_view.cpp).
+//
+// Frames are either 3D points, with one set of bounds per axis, or the
+// parameters of a ShapeModel, with bounds for each parameter; the latter
+// are turned into points as they are decoded.
+//
+// Block layout, little-endian:
+//   uint64 face mask (bit i set if frame i of the block has a face)
+//   float  min[numChannels], step[numChannels]
+//   first face: numValues uint16
+//   later faces: one bit stream, least significant bit first, padded to a
+//   byte at the end of the block. Values are grouped by axis for points and
+//   all in one group for parameters; each face has, per group, a 4-bit Rice
+//   parameter k and then the zigzag delta z of each value in the group as
+//   z >> k in unary (ones ended by a zero) and the low k bits of z. A
+//   quotient of riceEscape ones is instead followed by all 17 bits of z.
+final class ExpressionFrames {
+	static final int keyframeInterval = 64;
+
+	// Tracker jitter mostly moves a point by a few dozen steps a frame, so
+	// a Rice code gets each delta into about five bits; the escape bounds
+	// the cost of the occasional jump
+	private static final int riceEscape = 16;
+	private static final int zigzagBits = 17;
+	private static final int maxRiceBits = riceEscape + zigzagBits;
+
+	private final int numValues;
+	private final int numChannels;
+	private final int numGroups;
+	private final ShapeModel model;
+
+	// Published by the writer in this order, so readers must read
+	// numFrames first
+	private volatile ByteBuffer data;
+	private volatile int[] blockOffsets;
+	private volatile int numBlocks;
+	private volatile int numFrames;
+
+	private int dataSize;
+
+	// Frames waiting for their block to fill up
+	private float[] pending;
+	private long pendingMask;
+	private int numPending;
+
+	private int[] previous;
+	private int[] zigzags;
+
+	// Bit stream being written by flush()
+	private long outBits;
+	private int numOutBits;
+
+	// Frames of numPoints 3D points
+	ExpressionFrames(int numPoints) {
+		this(3*numPoints,3,null);
+	}
+
+	// Frames of parameters for model
+	ExpressionFrames(ShapeModel model) {
+		this(model.numModes,model.numModes,model);
+	}
+
+	private ExpressionFrames(int _numValues, int _numChannels, ShapeModel _model) {
+		numValues = _numValues;
+		numChannels = _numChannels;
+		numGroups = _model == null ? _numChannels : 1;
+		model = _model;
+
+		data = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		blockOffsets = new int[64];
+		numBlocks = 0;
+		numFrames = 0;
+
+		dataSize = 0;
+
+		pending = new float[keyframeInterval*numValues];
+		pendingMask = 0;
+		numPending = 0;
+
+		previous = new int[numValues];
+		zigzags = new int[numValues];
+	}
+
+	// Wrap point blocks that were encoded elsewhere, like those in a mapped
+	// file
+	ExpressionFrames(int numPoints, int _numFrames, ByteBuffer _data, int[] _blockOffsets) {
+		numValues = 3*numPoints;
+		numChannels = 3;
+		numGroups = 3;
+		model = null;
+
+		data = _data.order(ByteOrder.LITTLE_ENDIAN);
+		blockOffsets = _blockOffsets;
+		numBlocks = _blockOffsets.length;
+		numFrames = _numFrames;
+
+		dataSize = data.capacity();
+	}
+
+	int getNumFrames() {
+		return numFrames;
+	}
+
+	// Null for frames of points
+	ShapeModel getShapeModel() {
+		return model;
+	}
+
+	int sizeInBytes() {
+		return dataSize + 4*numBlocks;
+	}
+
+	// Writer side; only one thread may use these
+
+	// values holds the points or parameters, or is ignored if !hasFace
+	void append(boolean hasFace, float[] values) {
+		if(hasFace) {
+			System.arraycopy(values,0,pending,numPending*numValues,numValues);
+			pendingMask |= 1L << numPending;
+		}
+
+		if(++numPending == keyframeInterval)
+			flush();
+	}
+
+	// Make any frames in a partial block visible
+	void finish() {
+		if(numPending > 0)
+			flush();
+	}
+
+	private void flush() {
+		float[] min = new float[numChannels];
+		float[] step = new float[numChannels];
+
+		// Find this block's bounds
+		for(int a = 0; a < numChannels; a++) {
+			float lo = Float.POSITIVE_INFINITY;
+			float hi = Float.NEGATIVE_INFINITY;
+
+			for(int f = 0; f < numPending; f++) {
+				if((pendingMask & 1L << f) == 0) continue;
+
+				for(int k = f*numValues + a; k < (f + 1)*numValues; k += numChannels) {
+					lo = Math.min(lo,pending[k]);
+					hi = Math.max(hi,pending[k]);
+				}
+			}
+
+			min[a] = lo <= hi ? lo : 0;
+			step[a] = hi > lo ? (hi - lo)/0xffff : 1;
+		}
+
+		// Make room for the worst case
+		ensureCapacity(dataSize + 8 + 8*numChannels + 2*numValues
+			+ keyframeInterval*(4*numGroups + numValues*maxRiceBits + 7)/8 + 1);
+
+		ByteBuffer out = data;
+		int pos = dataSize;
+
+		out.putLong(pos,pendingMask);
+		pos += 8;
+		for(int a = 0; a < numChannels; a++, pos += 4) out.putFloat(pos,min[a]);
+		for(int a = 0; a < numChannels; a++, pos += 4) out.putFloat(pos,step[a]);
+
+		boolean haveKey = false;
+		outBits = 0;
+		numOutBits = 0;
+
+		for(int f = 0; f < numPending; f++) {
+			if((pendingMask & 1L << f) == 0) continue;
+
+			for(int k = 0; k < numValues; k++) {
+				int q = Math.round((pending[f*numValues + k] - min[k%numChannels])/step[k%numChannels]);
+				q = Math.max(0,Math.min(0xffff,q));
+
+				if(!haveKey) {
+					out.putShort(pos,(short) q);
+					pos += 2;
+				} else {
+					int delta = q - previous[k];
+					zigzags[k] = delta << 1 ^ delta >> 31;
+				}
+
+				previous[k] = q;
+			}
+
+			if(haveKey) {
+				for(int g = 0; g < numGroups; g++) {
+					int k = riceParameter(g);
+					pos = writeBits(out,pos,k,4);
+
+					for(int v = g; v < numValues; v += numGroups) {
+						int quotient = zigzags[v] >>> k;
+
+						if(quotient >= riceEscape) {
+							pos = writeBits(out,pos,(1 << riceEscape) - 1,riceEscape);
+							pos = writeBits(out,pos,zigzags[v],zigzagBits);
+						} else {
+							pos = writeBits(out,pos,(1 << quotient) - 1,quotient + 1);
+							pos = writeBits(out,pos,zigzags[v] & (1 << k) - 1,k);
+						}
+					}
+				}
+			}
+
+			haveKey = true;
+		}
+
+		// Pad out the last byte
+		if(numOutBits > 0)
+			out.put(pos++,(byte) outBits);
+
+		// Publish the block
+		int[] offsets = blockOffsets;
+		if(numBlocks == offsets.length) {
+			int[] grown = new int[2*offsets.length];
+			System.arraycopy(offsets,0,grown,0,numBlocks);
+			blockOffsets = offsets = grown;
+		}
+
+		offsets[numBlocks] = dataSize;
+		dataSize = pos;
+
+		numBlocks++;
+		numFrames += numPending;
+
+		pendingMask = 0;
+		numPending = 0;
+	}
+
+	// The Rice parameter that codes group g of zigzags the smallest, from
+	// around the one the mean suggests
+	private int riceParameter(int g) {
+		long sum = 0;
+		int count = 0;
+		for(int v = g; v < numValues; v += numGroups, count++)
+			sum += zigzags[v];
+
+		int guess = Math.max(0,32 - Integer.numberOfLeadingZeros((int) (sum/count)) - 1);
+
+		int best = 0;
+		long bestCost = Long.MAX_VALUE;
+		for(int k = Math.max(0,guess - 1); k <= Math.min(15,guess + 1); k++) {
+			long cost = 0;
+			for(int v = g; v < numValues; v += numGroups) {
+				int quotient = zigzags[v] >>> k;
+				cost += quotient >= riceEscape ? maxRiceBits : quotient + 1 + k;
+			}
+
+			if(cost < bestCost) {
+				best = k;
+				bestCost = cost;
+			}
+		}
+
+		return best;
+	}
+
+	// Append the low n bits of value, n <= 32, to the bit stream; returns
+	// the new end of out
+	private int writeBits(ByteBuffer out, int pos, int value, int n) {
+		outBits |= (value & 0xffffffffL) << numOutBits;
+		numOutBits += n;
+
+		while(numOutBits >= 8) {
+			out.put(pos++,(byte) outBits);
+			outBits >>>= 8;
+			numOutBits -= 8;
+		}
+
+		return pos;
+	}
+
+	private void ensureCapacity(int size) {
+		ByteBuffer current = data;
+		if(current.capacity() >= size)
+			return;
+
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(size,2*current.capacity()))
+			.order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteBuffer used = current.duplicate();
+		used.position(0);
+		used.limit(dataSize);
+		grown.put(used);
+
+		data = grown;
+	}
+
+	// Reader side
+
+	Decoder newDecoder() {
+		return new Decoder();
+	}
+
+	// Decodes single frames, cheaply when moving forwards through a block;
+	// each thread needs its own
+	class Decoder {
+		private final int[] q = new int[numValues];
+		private final float[] min = new float[numChannels];
+		private final float[] step = new float[numChannels];
+		private final float[] values = model != null ? new float[numValues] : null;
+
+		private int block = -1;
+		private int frame;
+		private long mask;
+		private int pos;
+		private boolean haveKey;
+
+		// Bits read from the stream but not yet used
+		private long bits;
+		private int numBits;
+
+		ExpressionFrames getFrames() {
+			return ExpressionFrames.this;
+		}
+
+		// Put the points of frame index into out at offset; returns whether
+		// it has a face
+		boolean decode(int index, float[] out, int offset) {
+			if(index < 0 || index >= numFrames)
+				return false;
+
+			ByteBuffer in = data;
+
+			int b = index/keyframeInterval;
+			int j = index%keyframeInterval;
+
+			// Blocks can only be read forwards from their start
+			if(b != block || j < frame)
+				seek(in,b);
+
+			if((mask & 1L << j) == 0)
+				return false;
+
+			for(int f = frame + 1; f <= j; f++) {
+				if((mask & 1L << f) == 0) continue;
+
+				if(!haveKey) {
+					for(int k = 0; k < numValues; k++) {
+						q[k] = in.getShort(pos) & 0xffff;
+						pos += 2;
+					}
+				} else {
+					for(int g = 0; g < numGroups; g++) {
+						int k = readBits(in,4);
+
+						for(int v = g; v < numValues; v += numGroups) {
+							fill(in);
+							int quotient = Math.min(riceEscape,Long.numberOfTrailingZeros(~bits));
+
+							int zigzag;
+							if(quotient == riceEscape) {
+								skipBits(riceEscape);
+								zigzag = readBits(in,zigzagBits);
+							} else {
+								skipBits(quotient + 1);
+								zigzag = quotient << k | readBits(in,k);
+							}
+
+							q[v] += zigzag >>> 1 ^ -(zigzag & 1);
+						}
+					}
+				}
+
+				haveKey = true;
+			}
+			frame = j;
+
+			if(model == null) {
+				for(int k = 0; k < numValues; k++)
+					out[offset + k] = min[k%numChannels] + q[k]*step[k%numChannels];
+			} else {
+				for(int k = 0; k < numValues; k++)
+					values[k] = min[k] + q[k]*step[k];
+				model.reconstruct(values,out,offset);
+			}
+
+			return true;
+		}
+
+		private void seek(ByteBuffer in, int b) {
+			block = b;
+			frame = -1;
+			haveKey = false;
+
+			pos = blockOffsets[b];
+
+			mask = in.getLong(pos);
+			pos += 8;
+			for(int a = 0; a < numChannels; a++, pos += 4) min[a] = in.getFloat(pos);
+			for(int a = 0; a < numChannels; a++, pos += 4) step[a] = in.getFloat(pos);
+
+			bits = 0;
+			numBits = 0;
+		}
+
+		// Top up bits to at least maxRiceBits, unless the data runs out
+		private void fill(ByteBuffer in) {
+			while(numBits <= 56 && pos < in.limit()) {
+				bits |= (in.get(pos++) & 0xffL) << numBits;
+				numBits += 8;
+			}
+		}
+
+		private void skipBits(int n) {
+			bits >>>= n;
+			numBits -= n;
+		}
+
+		private int readBits(ByteBuffer in, int n) {
+			if(numBits < n)
+				fill(in);
+
+			int value = (int) (bits & (1L << n) - 1);
+			skipBits(n);
+			return value;
+		}
+	}
+
+	// Linear point distribution model from the face tracker: the points of
+	// a face are mean + modes*params
+	static class ShapeModel {
+		final int numPoints;
+		final int numModes;
+
+		// mean is 3*numPoints coordinates; modes is 3*numPoints rows of
+		// numModes weights, one row per coordinate
+		private final float[] mean;
+		private final float[] modes;
+
+		ShapeModel(int _numPoints, int _numModes, float[] _mean, float[] _modes) {
+			numPoints = _numPoints;
+			numModes = _numModes;
+			mean = _mean;
+			modes = _modes;
+		}
+
+		void reconstruct(float[] params, float[] out, int offset) {
+			for(int k = 0, m = 0; k < 3*numPoints; k++) {
+				float coord = mean[k];
+				for(int j = 0; j < numModes; j++)
+					coord += modes[m++]*params[j];
+				out[offset + k] = coord;
+			}
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package com.kevinriehm.mobileface;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.util.JsonReader;
+
+// Decodes an .expression.json recording one token at a time, publishing each
+// frame as soon as it is complete so that playback can start before the
+// whole file is in. Apart from JsonReader, nothing here touches Android, so
+// that it can be benchmarked on a desktop JVM (see bench/jmh).
+final class ExpressionReader {
+	private static final int bufferSize = 1 << 16;
+
+	// How many frames to decode between progress reports
+	private static final int progressInterval = 64;
+
+	// Called on the reading thread as the file is parsed
+	interface Listener {
+		void onFps(double fps);
+
+		// The store the frames are going into; replaced when the recording
+		// turns out to be of shape parameters
+		void onFrames(ExpressionFrames frames);
+
+		// Largest coordinate seen so far
+		void onMaxCoord(float maxCoord);
+
+		// Fraction of the file parsed
+		void onProgress(float fraction);
+
+		// The frame rate and at least one frame are known; may be called
+		// more than once
+		void onFirstFrame();
+	}
+
+	private final int numPoints;
+	private final Listener listener;
+
+	private ExpressionFrames frames;
+	private double fps;
+	private float maxCoord;
+
+	ExpressionReader(int _numPoints, Listener _listener) {
+		numPoints = _numPoints;
+		listener = _listener;
+	}
+
+	// Read all of input, which is length bytes long, and close it. Returns
+	// false if the file ends partway through the frames, as one left behind
+	// by a crash does; every whole frame before that is kept.
+	boolean read(InputStream input, long length) throws IOException, InterruptedException {
+		CountingInputStream counter = new CountingInputStream(input);
+		JsonReader reader = new JsonReader(new InputStreamReader(
+			new BufferedInputStream(counter,bufferSize),"UTF-8"));
+
+		frames = new ExpressionFrames(numPoints);
+		fps = 0;
+		maxCoord = Float.NEGATIVE_INFINITY;
+
+		listener.onFrames(frames);
+
+		try {
+			reader.beginObject();
+			while(reader.hasNext()) {
+				String name = reader.nextName();
+
+				if(name.equals("fps")) {
+					fps = reader.nextDouble();
+					listener.onFps(fps);
+					if(frames.getNumFrames() > 0) listener.onFirstFrame();
+				} else if(name.equals("basis")) {
+					// Parameter recordings; the header is always written
+					// before the frames
+					frames = new ExpressionFrames(readShapeModel(reader));
+					listener.onFrames(frames);
+				} else if(name.equals("frames")) {
+					if(!readFrames(reader,counter,length)) return false;
+				} else reader.skipValue();
+			}
+			reader.endObject();
+		} finally {
+			reader.close();
+		}
+
+		return true;
+	}
+
+	ExpressionFrames getFrames() {
+		return frames;
+	}
+
+	// {"mean": [[x, y, z], ...], "modes": [[[x, y, z], ...], ...]}
+	private ExpressionFrames.ShapeModel readShapeModel(JsonReader reader) throws IOException {
+		float[] mean = null;
+		float[][] modes = new float[0][];
+		int numModes = 0;
+
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String name = reader.nextName();
+
+			if(name.equals("mean"))
+				mean = readPoints(reader);
+			else if(name.equals("modes")) {
+				reader.beginArray();
+				while(reader.hasNext()) {
+					if(numModes == modes.length) {
+						float[][] grown = new float[Math.max(16,2*numModes)][];
+						System.arraycopy(modes,0,grown,0,numModes);
+						modes = grown;
+					}
+
+					modes[numModes++] = readPoints(reader);
+				}
+				reader.endArray();
+			} else reader.skipValue();
+		}
+		reader.endObject();
+
+		if(mean == null || mean.length != 3*numPoints)
+			throw new IOException("shape model does not have " + numPoints + " points");
+
+		// Row-major, so that reconstruction walks straight through it
+		float[] weights = new float[mean.length*numModes];
+		for(int j = 0; j < numModes; j++) {
+			if(modes[j].length != mean.length)
+				throw new IOException("shape model mode " + j + " is the wrong size");
+
+			for(int k = 0; k < mean.length; k++)
+				weights[k*numModes + j] = modes[j][k];
+		}
+
+		return new ExpressionFrames.ShapeModel(numPoints,numModes,mean,weights);
+	}
+
+	// [[x, y, z], ...] as a flat array
+	private float[] readPoints(JsonReader reader) throws IOException {
+		float[] points = new float[3*numPoints];
+		int numCoords = 0;
+
+		reader.beginArray();
+		while(reader.hasNext()) {
+			reader.beginArray();
+			for(int j = 0; j < 3; j++) {
+				if(numCoords == points.length) {
+					float[] grown = new float[2*points.length];
+					System.arraycopy(points,0,grown,0,numCoords);
+					points = grown;
+				}
+
+				points[numCoords++] = (float) reader.nextDouble();
+			}
+			reader.endArray();
+		}
+		reader.endArray();
+
+		if(numCoords == points.length) return points;
+
+		float[] trimmed = new float[numCoords];
+		System.arraycopy(points,0,trimmed,0,numCoords);
+		return trimmed;
+	}
+
+	// Frames hold either "points3d" or, after a "basis", "shape_params"
+	private boolean readFrames(JsonReader reader, CountingInputStream counter, long length) throws IOException, InterruptedException {
+		ExpressionFrames loaded = frames;
+		ExpressionFrames.ShapeModel model = loaded.getShapeModel();
+
+		float[] points = new float[3*numPoints];
+		float[] params = model != null ? new float[model.numModes] : null;
+
+		int numRead = 0;
+
+		boolean complete = true;
+
+		try {
+			reader.beginArray();
+			while(reader.hasNext()) {
+				if(Thread.interrupted())
+					throw new InterruptedException();
+
+				if(numRead++%progressInterval == 0)
+					listener.onProgress((float) counter.count/Math.max(1,length));
+
+				boolean hasFace = false;
+				int numCoords = 0;
+				int numParams = 0;
+
+				reader.beginObject();
+				while(reader.hasNext()) {
+					String name = reader.nextName();
+
+					if(name.equals("has_face"))
+						hasFace = reader.nextBoolean();
+					else if(name.equals("points3d") && model == null) {
+						reader.beginArray();
+						while(reader.hasNext()) {
+							reader.beginArray();
+							for(int j = 0; j < 3; j++) {
+								float coord = (float) reader.nextDouble();
+								if(coord > maxCoord) {
+									maxCoord = coord;
+									listener.onMaxCoord(maxCoord);
+								}
+								if(numCoords < points.length)
+									points[numCoords] = coord;
+								numCoords++;
+							}
+							reader.endArray();
+						}
+						reader.endArray();
+					} else if(name.equals("shape_params") && model != null) {
+						reader.beginArray();
+						while(reader.hasNext()) {
+							float param = (float) reader.nextDouble();
+							if(numParams < params.length)
+								params[numParams] = param;
+							numParams++;
+						}
+						reader.endArray();
+					} else reader.skipValue();
+				}
+				reader.endObject();
+
+				// Only whole faces can be drawn
+				if(model == null)
+					addFrame(loaded,hasFace && numCoords == points.length,points);
+				else {
+					hasFace = hasFace && numParams == params.length;
+
+					// The camera still needs to know how big the faces get
+					if(hasFace) {
+						model.reconstruct(params,points,0);
+						for(int k = 0; k < points.length; k++) {
+							if(points[k] > maxCoord) {
+								maxCoord = points[k];
+								listener.onMaxCoord(maxCoord);
+							}
+						}
+					}
+
+					addFrame(loaded,hasFace,params);
+				}
+			}
+			reader.endArray();
+		} catch(EOFException e) {
+			// JsonReader ran out of input mid-frame, so the file was cut off;
+			// anything else wrong with it still fails the load
+			complete = false;
+		}
+
+		loaded.finish();
+		if(loaded.getNumFrames() > 0 && fps > 0) listener.onFirstFrame();
+
+		return complete;
+	}
+
+	// Hand a decoded frame over to the renderer; it becomes visible once its
+	// block is complete
+	private void addFrame(ExpressionFrames loaded, boolean hasFace, float[] values) {
+		int before = loaded.getNumFrames();
+
+		loaded.append(hasFace,values);
+
+		if(before == 0 && loaded.getNumFrames() > 0 && fps > 0) listener.onFirstFrame();
+	}
+
+	// Keeps track of how far through a file we are
+	private static class CountingInputStream extends FilterInputStream {
+		volatile long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) count++;
+			return b;
+		}
+
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			int numBytes = super.read(buf,offset,length);
+			if(numBytes > 0) count += numBytes;
+			return numBytes;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
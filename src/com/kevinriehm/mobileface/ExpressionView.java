@@ -1,70 +1,135 @@
 package com.kevinriehm.mobileface;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Random;
-import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.app.Activity;
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.view.View;
-import android.view.ViewGroup;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import android.view.Choreographer;
 
 public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Renderer {
 	private static final String TAG = "MobileFace-ExpressionView";
 
 	private static final int numExpressionPoints = 66;
 
+	// How many frames to decode between progress reports
+	private static final int progressInterval = 64;
+
+	// Expression file formats
+	private static final String jsonSuffix = ".expression.json";
+	private static final String binarySuffix = ".expression.bin";
+
+	// Must match expression_bin_header_t in visual_view.cpp
+	private static final String binaryMagic = "MFEX";
+	private static final int binaryVersion = 3;
+	private static final int binaryHeaderSize = 40;
+
+	// Version 1 files hold raw floats; they are still read, but get
+	// compressed on the way in
+	private static final int legacyBinaryVersion = 1;
+
+	// Loading stages, for progress reporting
+	private static final int STAGE_IO     = 0;
+	private static final int STAGE_PARSE  = 1;
+	private static final int STAGE_DECODE = 2;
+	private static final int numStages   = 3;
+
+	// Everything but the final GL upload happens on these threads
+	private static final ExecutorService loadExecutor = Executors.newFixedThreadPool(2,new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,"ExpressionLoader");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
 	private String avatarPath;
-	private String expressionPath;
 
-	private boolean avatarReady;
-	private boolean framesReady;
-	private boolean dataReady;
+	private volatile boolean avatarReady;
+	private volatile boolean dataReady;
+	private Future<?> avatarTask;
+
+	// Guards the avatar* fields and the two flags above against a load
+	// that was superseded; each setAvatarFilePath() starts a new generation
+	private final Object avatarLock = new Object();
+	private int avatarGeneration;
+
+	private LoadListener loadListener;
+	private boolean loadReported;
+	private final float[] stageProgress = new float[numStages];
+	private int reportedPercent;
 
-	private long startTime;
+	// Everything being played, in grid order; replaced as a whole by
+	// setExpressionFilePaths()
+	private volatile Clip[] clips;
 
-	private double fps;
-	private Frame[] frames;
+	// Playback is clocked by the scheduler on the UI thread, which hands the
+	// renderer a time in seconds shared by every clip; between frames, the
+	// fraction of a frame is the blend towards the next when interpolating
+	private PlaybackScheduler scheduler;
+	private volatile boolean interpolate;
+	private volatile double displayTime;
 
 	private int faceVertexShader;
 	private int faceFragmentShader;
 	private int faceProgram;
 
-	private float maxCoord;
-
 	private int numTris;
 	private ShortBuffer triBuffer;
 
 	private int avatarWidth, avatarHeight;
 	private Bitmap avatarBitmap;
 	private int avatarTexture;
+	private Bitmap uploadedBitmap;
 	private FloatBuffer avatarUVs;
 
-	private float[] camera;
+	// pointsVBO has two frameStride-sized slots per clip: the current frame
+	// and the one being blended towards
+	private static final int frameStride = 3*4*numExpressionPoints;
+
+	private int pointsVBO;
+	private int uvVBO;
+	private int triIBO;
+
+	private int vboClips;
+
+	// Staging area for the slots that changed since the last draw
+	private float[] decodedPoints;
+	private FloatBuffer decodedBuffer;
+
+	private int surfaceWidth, surfaceHeight;
 
 	// Shader input locations
 	private int uCamera;
 	private int uTexture;
+	private int uBlend;
 
 	private int aPosition;
+	private int aNextPosition;
 	private int aUV;
 
 	static {
@@ -75,235 +140,826 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 		super(context,attrs);
 
 		avatarReady = false;
-		framesReady = false;
 		dataReady = false;
-		expressionPath = null;
+		avatarTask = null;
+		avatarGeneration = 0;
+
+		loadListener = null;
+		loadReported = false;
+		reportedPercent = -1;
 
-		startTime = 0;
+		clips = new Clip[0];
 
-		maxCoord = 1;
+		scheduler = new PlaybackScheduler();
+		interpolate = false;
+		displayTime = 0;
 
 		setEGLContextClientVersion(2);
 
 		setRenderer(this);
+		setRenderMode(RENDERMODE_WHEN_DIRTY);
 	}
 
 	// Public stuff
 
+	// Gets told how loading is going; both methods are called on the UI thread
+	public interface LoadListener {
+		void onLoadProgress(float progress);
+		void onLoadReady();
+	}
+
+	public void setLoadListener(LoadListener listener) {
+		loadListener = listener;
+	}
+
+	// Loading starts straight away, in the background; a relative path names
+	// an asset
 	public void setAvatarFilePath(String path) {
-		avatarReady = false;
-		dataReady = false;
+		if(avatarTask != null)
+			avatarTask.cancel(true);
+
+		final int generation;
+		synchronized(avatarLock) {
+			generation = ++avatarGeneration;
+
+			avatarReady = false;
+			dataReady = false;
+		}
+		loadReported = false;
 
 		avatarPath = path;
+
+		reportProgress(STAGE_DECODE,0);
+
+		if(path != null) {
+			final String taskPath = path;
+			avatarTask = loadExecutor.submit(new Runnable() {
+				public void run() {
+					readAvatarFile(taskPath,generation);
+				}
+			});
+		}
 	}
 
 	public void setExpressionFilePath(String path) {
-		framesReady = false;
+		setExpressionFilePaths(path != null ? new String[] {path} : new String[0]);
+	}
+
+	// Play several expressions at once, tiled in a grid and sharing one
+	// clock; they appear left to right, top to bottom
+	public void setExpressionFilePaths(String[] paths) {
+		// Abandon whatever we were loading before
+		for(Clip clip : clips) {
+			if(clip.task != null)
+				clip.task.cancel(true);
+		}
+
 		dataReady = false;
+		loadReported = false;
+
+		scheduler.reset();
+		displayTime = 0;
 
-		expressionPath = path;
+		Clip[] newClips = new Clip[paths.length];
+		for(int i = 0; i < paths.length; i++)
+			newClips[i] = new Clip(paths[i]);
+		clips = newClips;
+
+		reportProgress(STAGE_IO,0);
+		reportProgress(STAGE_PARSE,0);
+
+		for(final Clip clip : newClips) {
+			clip.task = loadExecutor.submit(new Runnable() {
+				public void run() {
+					loadExpression(clip,clip.path);
+				}
+			});
+		}
+	}
+
+	// Blend between neighbouring frames instead of snapping to the nearest
+	public void setInterpolation(boolean _interpolate) {
+		interpolate = _interpolate;
+		scheduler.invalidate();
+	}
+
+	// GLSurfaceView overrides
+
+	public void onPause() {
+		scheduler.pause();
+
+		super.onPause();
+	}
+
+	public void onResume() {
+		super.onResume();
+
+		scheduler.resume();
 	}
 
 	// GLSurfaceView.Renderer implementation
 
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
 		dataReady = false;
+
+		// Anything from an old context is gone
+		avatarTexture = 0;
+		uploadedBitmap = null;
+		pointsVBO = 0;
+		vboClips = 0;
+
+		// The program only depends on the context
+		setupProgram();
 	}
 
 	public void onSurfaceChanged(GL10 gl, int width, int height) {
-		GLES20.glViewport(0,0,width,height);
-
-		updateCamera();
+		surfaceWidth = width;
+		surfaceHeight = height;
 	}
 
 	public void onDrawFrame(GL10 gl) {
-		// Make sure we can render
-		if(!avatarReady) readAvatarFile();
-		if(!avatarReady) return;
+		Clip[] playing = clips;
 
-		if(!framesReady) readExpressionFile();
-		if(!framesReady) return;
+		// Make sure we can render; the loaders request a render when they
+		// have something for us
+		if(!avatarReady || !framesReady(playing)) return;
 
-		if(!dataReady) setupGLData();
+		if(!dataReady) setupGLData(playing.length);
 		if(!dataReady) return;
 
-		// Which frame are we on?
-		long now = System.currentTimeMillis();
-		if(startTime == 0)
-			startTime = now;
+		// Lay the clips out in as square a grid as possible
+		int columns = (int) Math.ceil(Math.sqrt(playing.length));
+		int rows = (playing.length + columns - 1)/columns;
+
+		int tileWidth = surfaceWidth/columns;
+		int tileHeight = surfaceHeight/rows;
+
+		// Decode every clip's frames first, so they go up in one upload
+		double time = displayTime;
+		boolean wantsInterpolation = interpolate;
+
+		int dirtyStart = playing.length, dirtyEnd = 0;
+
+		for(int i = 0; i < playing.length; i++) {
+			if(playing[i].seek(time,wantsInterpolation,decodedPoints,2*i*3*numExpressionPoints)) {
+				dirtyStart = Math.min(dirtyStart,i);
+				dirtyEnd = i + 1;
+			}
+		}
+
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,pointsVBO);
+
+		if(dirtyStart < dirtyEnd) {
+			int start = 2*dirtyStart*3*numExpressionPoints;
+			int count = 2*(dirtyEnd - dirtyStart)*3*numExpressionPoints;
 
-		int currentFrame = (int) ((now - startTime)*fps/1000);
-		currentFrame = Math.max(0,Math.min(frames.length - 1,currentFrame));
+			decodedBuffer.position(0);
+			decodedBuffer.put(decodedPoints,start,count);
+			decodedBuffer.position(0);
 
-		Frame frame = frames[currentFrame];
+			GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER,4*start,4*count,decodedBuffer);
+		}
 
+		GLES20.glViewport(0,0,surfaceWidth,surfaceHeight);
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-		if(frame != null && frame.pointsBuffer != null) {
-			// Set up the texture
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,avatarTexture);
+		// Set up the texture
+		GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,avatarTexture);
+
+		// Set up the shader
+		GLES20.glUseProgram(faceProgram);
+
+		GLES20.glUniform1i(uTexture,0);
 
-			// Set up the shader
-			GLES20.glUseProgram(faceProgram);
+		// Everything but the camera and slots is shared, so each tile is
+		// just one draw call
+		for(int i = 0; i < playing.length; i++) {
+			Clip clip = playing[i];
+			if(!clip.hasFace) continue;
 
-			// Set up the shader inputs
-			GLES20.glUniformMatrix4fv(uCamera,1,false,camera,0);
+			if(clip.cameraMaxCoord != clip.maxCoord || clip.cameraWidth != tileWidth
+				|| clip.cameraHeight != tileHeight)
+				updateCamera(clip,tileWidth,tileHeight);
 
-			GLES20.glUniform1i(uTexture,0);
+			GLES20.glViewport(i%columns*tileWidth,surfaceHeight - (i/columns + 1)*tileHeight,tileWidth,tileHeight);
 
-			GLES20.glEnableVertexAttribArray(aPosition);
-			GLES20.glVertexAttribPointer(aPosition,3,GLES20.GL_FLOAT,false,0,frame.pointsBuffer);
+			GLES20.glUniformMatrix4fv(uCamera,1,false,clip.camera,0);
 
-			GLES20.glEnableVertexAttribArray(aUV);
-			GLES20.glVertexAttribPointer(aUV,2,GLES20.GL_FLOAT,false,0,avatarUVs);
+			GLES20.glVertexAttribPointer(aPosition,3,GLES20.GL_FLOAT,false,0,2*i*frameStride);
+			GLES20.glVertexAttribPointer(aNextPosition,3,GLES20.GL_FLOAT,false,0,(2*i + clip.nextSlot)*frameStride);
+
+			GLES20.glUniform1f(uBlend,clip.blend);
 
 			// Render!
-			GLES20.glDrawElements(GLES20.GL_TRIANGLES,3*numTris,GLES20.GL_UNSIGNED_SHORT,triBuffer);
+			GLES20.glDrawElements(GLES20.GL_TRIANGLES,3*numTris,GLES20.GL_UNSIGNED_SHORT,0);
 		}
 	}
 
 	// Helper classes and functions
 
-	private class Frame {
+	// One expression file and everything needed to play it
+	private class Clip {
+		final String path;
+		Future<?> task;
+
+		// Written by the loader, read by the renderer; frames are kept
+		// compressed and only decoded when they are about to be drawn
+		volatile double fps;
+		volatile ExpressionFrames frames;
+		volatile float maxCoord;
+		volatile boolean framesReady;
+		volatile boolean framesComplete;
+
+		final float[] stageProgress = new float[numStages];
+
+		// Render thread only
+		final float[] camera = new float[16];
+		float cameraMaxCoord;
+		int cameraWidth, cameraHeight;
+
+		ExpressionFrames.Decoder decoder;
+		int decodedFrame, decodedNextFrame;
+		boolean decodedHasFace, decodedNextHasFace;
+
 		boolean hasFace;
+		int nextSlot;
+		float blend;
+
+		Clip(String _path) {
+			path = _path;
+
+			fps = 0;
+			frames = new ExpressionFrames(numExpressionPoints);
+			maxCoord = 1;
+			framesReady = false;
+			framesComplete = false;
+		}
+
+		// Frame number at time, clamped to what has been loaded so far
+		double position(double time, int loadedFrames) {
+			return Math.max(0,Math.min(loadedFrames - 1,time*fps));
+		}
+
+		// Work out what to draw at time, decoding into the clip's two slots of
+		// out when they change; returns whether they did
+		boolean seek(double time, boolean interpolate, float[] out, int offset) {
+			ExpressionFrames loaded = frames;
+			int loadedFrames = loaded.getNumFrames();
+
+			hasFace = false;
+			if(loadedFrames == 0) return false;
+
+			double position = position(time,loadedFrames);
+			if(!interpolate) position = Math.floor(position);
+
+			int frame = (int) position;
+			int next = Math.min(loadedFrames - 1,frame + 1);
+			blend = (float) (position - frame);
+
+			if(blend <= 0) next = frame;
+
+			boolean changed = false;
 
-		int numPoints;
-		FloatBuffer pointsBuffer;
+			if(decoder == null || decoder.getFrames() != loaded) {
+				decoder = loaded.newDecoder();
+				decodedFrame = decodedNextFrame = -1;
+			}
+
+			if(frame != decodedFrame || next != decodedNextFrame) {
+				// Decode in order; that is the cheap direction
+				decodedHasFace = decoder.decode(frame,out,offset);
+				decodedNextHasFace = next != frame
+					&& decoder.decode(next,out,offset + 3*numExpressionPoints);
+
+				decodedFrame = frame;
+				decodedNextFrame = next;
+
+				changed = decodedHasFace;
+			}
+
+			hasFace = decodedHasFace;
+
+			// Only blend towards a frame that actually has a face in it
+			nextSlot = 1;
+			if(next == frame || !decodedNextHasFace) {
+				nextSlot = 0;
+				blend = 0;
+			}
+
+			return changed;
+		}
 	}
 
-	private void readAvatarFile() {
-		if(avatarPath == null)
-			return;
+	// Runs on loadExecutor
+	private void readAvatarFile(String path, int generation) {
+		AssetCache.Avatar avatar = AssetCache.getAvatar(path);
 
-		int[] size = new int[2];
-		if(!getAvatarSize(avatarPath,size))
-			return;
+		if(avatar == null) {
+			long handle = openAvatar(getContext().getAssets(),path);
+			if(handle == 0)
+				return;
 
-		avatarWidth = size[0];
-		avatarHeight = size[1];
+			reportProgress(STAGE_DECODE,0.5f);
 
-		avatarBitmap = Bitmap.createBitmap(avatarWidth,avatarHeight,Bitmap.Config.ARGB_8888);
-		avatarUVs = ByteBuffer.allocateDirect(2*4*numExpressionPoints)
-			.order(ByteOrder.nativeOrder())
-			.asFloatBuffer();
+			try {
+				int[] size = new int[2];
+				if(!getAvatarSize(handle,size))
+					return;
 
-		if(!getAvatarImage(avatarPath,avatarBitmap,avatarUVs))
-			return;
+				Bitmap bitmap = Bitmap.createBitmap(size[0],size[1],Bitmap.Config.ARGB_8888);
+				FloatBuffer uvs = ByteBuffer.allocateDirect(2*4*numExpressionPoints)
+					.order(ByteOrder.nativeOrder())
+					.asFloatBuffer();
+
+				if(!getAvatarImage(handle,bitmap,uvs))
+					return;
+
+				avatar = new AssetCache.Avatar(size[0],size[1],bitmap,uvs);
+				AssetCache.putAvatar(path,avatar);
+			} finally {
+				closeAvatar(handle);
+			}
+		}
+
+		// Cancelling does not stop a task this far along, so a newer avatar
+		// may already be loading
+		synchronized(avatarLock) {
+			if(generation != avatarGeneration)
+				return;
+
+			avatarWidth = avatar.width;
+			avatarHeight = avatar.height;
+			avatarBitmap = avatar.bitmap;
+			avatarUVs = avatar.getUVs();
+
+			avatarReady = true;
+			dataReady = false;
+		}
 
-		avatarReady = true;
+		reportProgress(STAGE_DECODE,1);
+		checkReady();
 	}
 
-	private native boolean getAvatarSize(String path, int[] size);
-	private native boolean getAvatarImage(String path, Bitmap bitmap, FloatBuffer uvs);
+	// The avatar is parsed once by openAvatar() and then queried through the
+	// returned handle until closeAvatar()
+	private native long openAvatar(AssetManager assets, String path);
+	private native boolean getAvatarSize(long avatar, int[] size);
+	private native boolean getAvatarImage(long avatar, Bitmap bitmap, FloatBuffer uvs);
+	private native void closeAvatar(long avatar);
+
+	// Runs on loadExecutor
+	private void loadExpression(Clip clip, String path) {
+		clip.maxCoord = 1;
 
-	public void readExpressionFile() {
-		if(expressionPath == null)
+		clip.frames = new ExpressionFrames(numExpressionPoints);
+
+		// The triangle list and shaders are needed before anything can be
+		// drawn; fetching them here keeps resource I/O off the GL thread.
+		// Without them the clip stays unready, as nothing could be drawn
+		try {
+			readTriangleList();
+			AssetCache.getText(getContext().getResources(),R.raw.face_vertex);
+			AssetCache.getText(getContext().getResources(),R.raw.face_fragment);
+		} catch(Exception e) {
+			Log.e(TAG,"cannot load face resources: " + e.toString());
+			e.printStackTrace();
 			return;
+		}
+
+		try {
+			// Prefer the binary version of a recording when there is one
+			String binaryPath = path;
+			if(path.endsWith(jsonSuffix))
+				binaryPath = path.substring(0,path.length() - jsonSuffix.length()) + binarySuffix;
+
+			if(binaryPath.endsWith(binarySuffix) && new File(binaryPath).isFile())
+				mapExpressionFile(clip,binaryPath);
+			else readExpressionFile(clip,path);
+
+			ExpressionFrames loaded = clip.frames;
+			Log.i(TAG,"read " + loaded.getNumFrames() + " frames from '" + path + "' into "
+				+ loaded.sizeInBytes() + " bytes");
+
+			clip.framesComplete = true;
 
-		maxCoord = 1;
+			reportProgress(clip,STAGE_IO,1);
+			reportProgress(clip,STAGE_PARSE,1);
+		} catch(InterruptedException e) {
+			Log.i(TAG,"abandoned '" + path + "'");
+		} catch(Exception e) {
+			Log.e(TAG,e.toString());
+			e.printStackTrace();
+
+			// Don't hold the rest of the grid up
+			clip.framesComplete = true;
+			checkReady();
+		}
+	}
+
+	// Map a .expression.bin file; version 3 frames are decoded straight
+	// from the mapping
+	private void mapExpressionFile(Clip clip, String path) throws Exception {
+		FileInputStream stream = new FileInputStream(path);
 
 		try {
-			// Read in and parse the entire file
-			String fileString = "";
-			FileInputStream fileStream = new FileInputStream(expressionPath);
+			FileChannel channel = stream.getChannel();
+			ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size())
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+			reportProgress(clip,STAGE_IO,1);
 
-			int numBytes;
-			byte[] buf = new byte[100000];
-			while((numBytes = fileStream.read(buf)) >= 0)
-				fileString += new String(buf,0,numBytes);
+			// Check out the header
+			byte[] magic = new byte[4];
+			map.get(magic);
+			int version = map.getInt();
+			if(!new String(magic,"US-ASCII").equals(binaryMagic)
+				|| (version != binaryVersion && version != legacyBinaryVersion))
+				throw new IOException("'" + path + "' is not an expression file");
 
-			JSONObject jsonExpression = new JSONObject(fileString);
+			double fileFps = map.getDouble();
+			map.getInt(); // frame_width
+			map.getInt(); // frame_height
+			int numPoints = map.getInt();
+			int fileFrames = map.getInt();
+			float fileMaxCoord = map.getFloat();
+			int keyframeInterval = map.getInt();
 
-			// Get general info about the animation
-			fps = jsonExpression.getDouble("fps");
+			if(numPoints != numExpressionPoints)
+				throw new IOException("'" + path + "' has " + numPoints + " points per face");
 
-			JSONArray jsonFrames = jsonExpression.getJSONArray("frames");
+			if(fileFrames == 0) return;
 
-			int numFrames = jsonFrames.length();
+			if(version == legacyBinaryVersion)
+				readLegacyFrames(clip,path,map,fileFrames);
+			else {
+				if(keyframeInterval != ExpressionFrames.keyframeInterval)
+					throw new IOException("'" + path + "' has keyframes every " + keyframeInterval + " frames");
 
-			// Abort if there aren't any frames
-			if(numFrames == 0) return;
+				if(fileFrames < 0)
+					throw new IOException("'" + path + "' has " + fileFrames + " frames");
 
-			// Import each frame
-			Log.i(TAG,"reading " + numFrames + " frames from '" + expressionPath + "'");
-			frames = new Frame[numFrames];
-			for(int i = 0; i < numFrames; i++) {
-				Frame frame = new Frame();
-				JSONObject jsonFrame = jsonFrames.getJSONObject(i);
+				int numBlocks = (fileFrames + keyframeInterval - 1)/keyframeInterval;
+				long blocksOffset = binaryHeaderSize + 4L*numBlocks;
 
-				// Import the points of the face
-				if(frame.hasFace = jsonFrame.getBoolean("has_face")) {
-					JSONArray points = jsonFrame.getJSONArray("points3d");
+				if(blocksOffset > map.capacity())
+					throw new IOException("'" + path + "' is truncated");
 
-					frame.numPoints = points.length();
-					frame.pointsBuffer = ByteBuffer.allocateDirect(3*4*points.length())
-						.order(ByteOrder.nativeOrder())
-						.asFloatBuffer();
+				int[] blockOffsets = new int[numBlocks];
+				map.position(binaryHeaderSize);
+				map.asIntBuffer().get(blockOffsets);
 
-					for(int j = 0; j < frame.numPoints; j++) {
-						JSONArray point = points.getJSONArray(j);
+				map.position((int) blocksOffset);
+				checkBlockOffsets(path,map.slice().order(ByteOrder.LITTLE_ENDIAN),blockOffsets,numPoints);
 
-						float x = (float) point.getDouble(0);
-						float y = (float) point.getDouble(1);
-						float z = (float) point.getDouble(2);
+				map.position((int) blocksOffset);
+				clip.frames = new ExpressionFrames(numPoints,fileFrames,map.slice(),blockOffsets);
+			}
 
-						maxCoord = Math.max(maxCoord,Math.max(x,Math.max(y,z)));
+			clip.maxCoord = fileMaxCoord;
+			clip.fps = fileFps;
 
-						frame.pointsBuffer.put(x);
-						frame.pointsBuffer.put(y);
-						frame.pointsBuffer.put(z);
-					}
+			showFirstFrame(clip);
+		} finally {
+			stream.close();
+		}
+	}
 
-					frame.pointsBuffer.rewind();
-				}
+	// The decoder trusts the offset table, so make sure every block at least
+	// holds its header and, if it has any faces, a key face
+	private void checkBlockOffsets(String path, ByteBuffer blocks, int[] offsets, int numPoints) throws IOException {
+		for(int b = 0; b < offsets.length; b++) {
+			int start = offsets[b];
+			int end = b + 1 < offsets.length ? offsets[b + 1] : blocks.capacity();
+
+			if(start < 0 || start > end || end > blocks.capacity())
+				throw new IOException("'" + path + "' has a bad offset for block " + b);
+
+			int size = 8 + 2*3*4;
+			if(end - start >= 8 && blocks.getLong(start) != 0)
+				size += 2*3*numPoints;
+
+			if(end - start < size)
+				throw new IOException("'" + path + "' is truncated in block " + b);
+		}
+	}
+
+	// Version 1: a has-face bitmap, then every frame as raw floats
+	private void readLegacyFrames(Clip clip, String path, ByteBuffer map, int fileFrames) throws Exception {
+		int bitmapOffset = binaryHeaderSize;
+		int framesOffset = bitmapOffset + (fileFrames + 31)/32*4;
+
+		if((long) framesOffset + (long) fileFrames*frameStride > map.capacity())
+			throw new IOException("'" + path + "' is truncated");
+
+		ExpressionFrames loaded = clip.frames;
+		float[] points = new float[3*numExpressionPoints];
+
+		for(int i = 0; i < fileFrames; i++) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+
+			if(i%progressInterval == 0)
+				reportProgress(clip,STAGE_PARSE,(float) i/fileFrames);
+
+			boolean hasFace = (map.get(bitmapOffset + i/8) & 1 << i%8) != 0;
+
+			if(hasFace) {
+				map.position(framesOffset + i*frameStride);
+				map.asFloatBuffer().get(points);
+			}
+
+			loaded.append(hasFace,points);
+		}
+
+		loaded.finish();
+	}
 
-				frames[i] = frame;
+	// Stream the frames of an expression file into clip as they are decoded
+	private void readExpressionFile(final Clip clip, String path) throws Exception {
+		ExpressionReader reader = new ExpressionReader(numExpressionPoints,new ExpressionReader.Listener() {
+			public void onFps(double fps) {
+				clip.fps = fps;
 			}
 
-			// Also read in the triangle list
-			InputStream triStream = getContext().getResources().openRawResource(R.raw.face_tri);
-			Scanner triScanner = new Scanner(triStream);
+			public void onFrames(ExpressionFrames frames) {
+				clip.frames = frames;
 
-			triScanner.skip("n_tri:");
-			numTris = triScanner.nextInt();
-			triScanner.skip("\\s*\\{\\s*");
+				ExpressionFrames.ShapeModel model = frames.getShapeModel();
+				if(model != null) Log.i(TAG,"shape model has " + model.numModes + " modes");
+			}
 
-			triBuffer = ByteBuffer.allocateDirect(3*2*numTris)
-				.order(ByteOrder.nativeOrder())
-				.asShortBuffer();
+			public void onMaxCoord(float maxCoord) {
+				clip.maxCoord = Math.max(clip.maxCoord,maxCoord);
+			}
 
-			for(int i = 0; i < numTris; i++) {
-				triBuffer.put(triScanner.nextShort());
-				triBuffer.put(triScanner.nextShort());
-				triBuffer.put(triScanner.nextShort());
+			public void onProgress(float fraction) {
+				reportProgress(clip,STAGE_PARSE,fraction);
 			}
 
-			triBuffer.rewind();
+			public void onFirstFrame() {
+				showFirstFrame(clip);
+			}
+		});
 
-			framesReady = true;
-		} catch(Exception e) {
-			Log.e(TAG,e.toString());
-			e.printStackTrace();
+		reportProgress(clip,STAGE_IO,1);
+
+		Log.i(TAG,"reading frames from '" + path + "'");
+		if(!reader.read(new FileInputStream(path),new File(path).length()))
+			Log.w(TAG,"recording is truncated; kept " + reader.getFrames().getNumFrames() + " frames");
+	}
+
+	private void readTriangleList() throws Exception {
+		triBuffer = AssetCache.getTriangles(getContext().getResources(),R.raw.face_tri);
+		numTris = triBuffer.capacity()/3;
+	}
+
+	// Playback can begin as soon as there is something to play
+	private void showFirstFrame(Clip clip) {
+		clip.framesReady = true;
+
+		checkReady();
+	}
+
+	// Every clip has either something to show or nothing more to come
+	private static boolean framesReady(Clip[] playing) {
+		if(playing.length == 0)
+			return false;
+
+		for(Clip clip : playing) {
+			if(!clip.framesReady && !clip.framesComplete)
+				return false;
 		}
 
-		updateCamera();
+		return true;
+	}
+
+	// Once both the avatar and some frames are in, start playing
+	private void checkReady() {
+		if(!avatarReady || !framesReady(clips))
+			return;
 
 		((Activity) getContext()).runOnUiThread(new Runnable() {
 			public void run() {
-				ViewGroup parent = (ViewGroup) getParent();
-				View throbber = parent.findViewById(R.id.expression_throbber);
-				if(throbber != null) parent.removeView(throbber);
+				if(loadReported || !avatarReady || !framesReady(clips))
+					return;
+				loadReported = true;
+
+				if(loadListener != null)
+					loadListener.onLoadReady();
+
+				scheduler.start();
+				requestRender();
 			}
 		});
 	}
 
-	private void updateCamera() {
-		// Projection matrix
-		camera = new float[16];
+	// Loading progress of a whole stage is the average over the clips
+	private void reportProgress(Clip clip, int stage, float fraction) {
+		Clip[] playing = clips;
+		float total = 0;
+
+		synchronized(stageProgress) {
+			clip.stageProgress[stage] = fraction;
+
+			for(Clip other : playing)
+				total += other.stageProgress[stage];
+		}
+
+		reportProgress(stage,total/Math.max(1,playing.length));
+	}
+
+	// Pass progress on to the listener, but only when the visible
+	// percentage actually changes
+	private void reportProgress(int stage, float fraction) {
+		int percent;
+
+		synchronized(stageProgress) {
+			stageProgress[stage] = fraction;
+
+			float total = 0;
+			for(int i = 0; i < numStages; i++)
+				total += stageProgress[i];
+
+			percent = (int) (100*total/numStages);
+			if(percent == reportedPercent)
+				return;
+			reportedPercent = percent;
+		}
+
+		final float progress = percent/100f;
+		((Activity) getContext()).runOnUiThread(new Runnable() {
+			public void run() {
+				if(loadListener != null)
+					loadListener.onLoadProgress(progress);
+			}
+		});
+	}
+
+	// Advances playback once per vsync and only asks for a render when the
+	// picture would actually change; lives on the UI thread
+	private class PlaybackScheduler implements Runnable {
+		private static final long fallbackTickMillis = 16;
+
+		private boolean running;
+		private boolean paused;
+		private boolean dirty;
+
+		private long startTime;
+		private long pauseTime;
+
+		private int[] shownFrames = new int[0];
+
+		private Object vsyncCallback;
+
+		PlaybackScheduler() {
+			if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+				vsyncCallback = Vsync.callbackFor(this);
+		}
+
+		void start() {
+			if(running) return;
+			running = true;
+			dirty = true;
+
+			if(!paused) post();
+		}
+
+		void reset() {
+			cancel();
+			running = false;
+			startTime = 0;
+		}
+
+		void invalidate() {
+			dirty = true;
+		}
+
+		void pause() {
+			if(paused) return;
+			paused = true;
+			pauseTime = System.nanoTime();
+
+			cancel();
+		}
+
+		void resume() {
+			if(!paused) return;
+			paused = false;
+
+			// Pick up where we left off
+			if(startTime != 0)
+				startTime += System.nanoTime() - pauseTime;
+
+			dirty = true;
+			if(running) post();
+		}
+
+		// Fallback for platforms without Choreographer
+		public void run() {
+			tick(System.nanoTime());
+		}
+
+		void tick(long now) {
+			if(!running || paused)
+				return;
+
+			Clip[] playing = clips;
+
+			if(startTime == 0)
+				startTime = now;
+
+			double time = (now - startTime)/1e9;
+
+			// If we have caught up with a clip that is still loading, hold
+			// everything instead of skipping ahead once more frames arrive;
+			// stop once the longest clip is over
+			double holdTime = Double.POSITIVE_INFINITY;
+			double endTime = 0;
+
+			for(Clip clip : playing) {
+				int loadedFrames = clip.frames.getNumFrames();
+				double clipEnd = clip.fps > 0 ? Math.max(0,loadedFrames - 1)/clip.fps : 0;
+
+				if(!clip.framesComplete)
+					holdTime = Math.min(holdTime,clipEnd);
+				endTime = Math.max(endTime,clipEnd);
+			}
+
+			if(time > holdTime) {
+				time = holdTime;
+				startTime = now - (long) (time*1e9);
+			} else if(time > endTime) {
+				time = endTime;
+				running = false;
+			}
+
+			// Only render when some clip would actually change
+			boolean changed = dirty || interpolate && time != displayTime;
+
+			if(shownFrames.length != playing.length)
+				shownFrames = new int[playing.length];
+
+			for(int i = 0; i < playing.length; i++) {
+				Clip clip = playing[i];
+
+				int frame = (int) clip.position(time,clip.frames.getNumFrames());
+				if(frame != shownFrames[i]) {
+					shownFrames[i] = frame;
+					changed = true;
+				}
+			}
+
+			if(changed) {
+				displayTime = time;
+				dirty = false;
+				requestRender();
+			}
+
+			if(running) post();
+		}
+
+		private void post() {
+			if(vsyncCallback != null)
+				Vsync.post(vsyncCallback);
+			else postDelayed(this,fallbackTickMillis);
+		}
+
+		private void cancel() {
+			if(vsyncCallback != null)
+				Vsync.remove(vsyncCallback);
+			else removeCallbacks(this);
+		}
+	}
+
+	// Kept apart so that older platforms never have to load Choreographer
+	private static class Vsync {
+		static Object callbackFor(final PlaybackScheduler scheduler) {
+			return new Choreographer.FrameCallback() {
+				public void doFrame(long frameTimeNanos) {
+					scheduler.tick(frameTimeNanos);
+				}
+			};
+		}
+
+		static void post(Object callback) {
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+		}
 
-		int width = getWidth();
-		int height = getHeight();
+		static void remove(Object callback) {
+			Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+		}
+	}
+
+	// Projection matrix for a clip drawn in a width x height tile
+	private void updateCamera(Clip clip, int width, int height) {
+		float[] camera = clip.camera;
+
+		clip.cameraMaxCoord = clip.maxCoord;
+		clip.cameraWidth = width;
+		clip.cameraHeight = height;
+
+		float scale = 1f/clip.cameraMaxCoord;
 
 		float scalew, scaleh;
 		if(width > height) {
@@ -315,7 +971,7 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 		}
 
 		Matrix.setIdentityM(camera,0);
-		Matrix.scaleM(camera,0,1f/maxCoord,1f/maxCoord,1f/maxCoord);
+		Matrix.scaleM(camera,0,scale,scale,scale);
 		Matrix.scaleM(camera,0,1f/scalew,1f/scaleh,1);
 		Matrix.scaleM(camera,0,1,-1,1);
 	}
@@ -325,12 +981,7 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 
 		// Get the shader's source code
 		try {
-			InputStream input = getContext().getResources().openRawResource(resid);
-
-			int numBytes;
-			byte[] buf = new byte[1024];
-			while((numBytes = input.read(buf)) > 0)
-				source += new String(buf,0,numBytes);
+			source = AssetCache.getText(getContext().getResources(),resid);
 		} catch(Exception e) {
 			Log.e(TAG,e.toString());
 			e.printStackTrace();
@@ -349,11 +1000,8 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 		return shader;
 	}
 
-	// Do everything necessary to be ready for rendering
-	private void setupGLData() {
-		if(!avatarReady || !framesReady || dataReady)
-			return;
-
+	// Build the shading program; once per context
+	private void setupProgram() {
 		// Shaders
 		faceVertexShader = compileShaderFromResource(R.raw.face_vertex,GLES20.GL_VERTEX_SHADER);
 		faceFragmentShader = compileShaderFromResource(R.raw.face_fragment,GLES20.GL_FRAGMENT_SHADER);
@@ -367,14 +1015,82 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 		// Input locations
 		uCamera = GLES20.glGetUniformLocation(faceProgram,"u_camera");
 		uTexture = GLES20.glGetUniformLocation(faceProgram,"u_texture");
+		uBlend = GLES20.glGetUniformLocation(faceProgram,"u_blend");
 
 		aPosition = GLES20.glGetAttribLocation(faceProgram,"a_position");
+		aNextPosition = GLES20.glGetAttribLocation(faceProgram,"a_next_position");
 		aUV = GLES20.glGetAttribLocation(faceProgram,"a_uv");
 
-		// Textures
-		int[] texs = new int[1];
-		GLES20.glGenTextures(1,texs,0);
-		avatarTexture = texs[0];
+		// The shaders live on in the program
+		GLES20.glDeleteShader(faceVertexShader);
+		GLES20.glDeleteShader(faceFragmentShader);
+	}
+
+	// Do everything necessary to be ready for rendering numClips clips
+	private void setupGLData(int numClips) {
+		// Holding the lock means a new avatar is either uploaded here or
+		// clears dataReady after we are done
+		synchronized(avatarLock) {
+			if(!avatarReady || dataReady)
+				return;
+
+			setupGLDataLocked(numClips);
+		}
+	}
+
+	private void setupGLDataLocked(int numClips) {
+
+		// Buffers
+		if(pointsVBO == 0) {
+			int[] bufs = new int[3];
+			GLES20.glGenBuffers(3,bufs,0);
+			pointsVBO = bufs[0];
+			uvVBO = bufs[1];
+			triIBO = bufs[2];
+		}
+
+		// Room for the two frames being drawn of each clip; they are
+		// replaced whenever playback moves on
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,pointsVBO);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,2*numClips*frameStride,null,GLES20.GL_DYNAMIC_DRAW);
+
+		if(vboClips != numClips) {
+			vboClips = numClips;
+			decodedPoints = new float[2*numClips*3*numExpressionPoints];
+			decodedBuffer = ByteBuffer.allocateDirect(2*numClips*frameStride)
+				.order(ByteOrder.nativeOrder())
+				.asFloatBuffer();
+		}
+
+		// Everything has to go up again
+		for(Clip clip : clips)
+			clip.decoder = null;
+
+		// Only a new avatar needs its texture replacing
+		if(uploadedBitmap != avatarBitmap)
+			uploadAvatar();
+
+		// The UVs and triangles never change, so they can stay bound
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,uvVBO);
+		GLES20.glEnableVertexAttribArray(aUV);
+		GLES20.glVertexAttribPointer(aUV,2,GLES20.GL_FLOAT,false,0,0);
+
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,triIBO);
+
+		GLES20.glEnableVertexAttribArray(aPosition);
+		GLES20.glEnableVertexAttribArray(aNextPosition);
+
+		dataReady = true;
+	}
+
+	// Put the avatar's texture, UVs and triangles into the existing objects,
+	// creating the texture the first time
+	private void uploadAvatar() {
+		if(avatarTexture == 0) {
+			int[] texs = new int[1];
+			GLES20.glGenTextures(1,texs,0);
+			avatarTexture = texs[0];
+		}
 
 		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,avatarTexture);
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_NEAREST);
@@ -383,7 +1099,14 @@ public class ExpressionView extends GLSurfaceView implements GLSurfaceView.Rende
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
 		GLUtils.texImage2D(GLES20.GL_TEXTURE_2D,0,avatarBitmap,0);
 
-		dataReady = true;
+		avatarUVs.rewind();
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER,uvVBO);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER,4*avatarUVs.capacity(),avatarUVs,GLES20.GL_STATIC_DRAW);
+
+		triBuffer.rewind();
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,triIBO);
+		GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,2*triBuffer.capacity(),triBuffer,GLES20.GL_STATIC_DRAW);
+
+		uploadedBitmap = avatarBitmap;
 	}
 }
-
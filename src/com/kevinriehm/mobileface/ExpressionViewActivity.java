@@ -2,16 +2,62 @@ package com.kevinriehm.mobileface;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.view.ViewGroup;
+import android.widget.ProgressBar;
+
+public class ExpressionViewActivity extends Activity implements ExpressionView.LoadListener {
+	private ExpressionView view;
+	private ProgressBar throbber;
 
-public class ExpressionViewActivity extends Activity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
 		setContentView(R.layout.expression_view);
 
-		ExpressionView view = (ExpressionView) findViewById(R.id.expression_surface);
-		view.setExpressionFilePath(getIntent().getData().getPath());
+		throbber = (ProgressBar) findViewById(R.id.expression_throbber);
+
+		view = (ExpressionView) findViewById(R.id.expression_surface);
+		view.setLoadListener(this);
+		view.setInterpolation(getIntent().getBooleanExtra("com.kevinriehm.mobileface.Interpolate",false));
+
+		// Several expressions get played side by side
+		String[] paths = getIntent().getStringArrayExtra("com.kevinriehm.mobileface.ExpressionPaths");
+		if(paths != null)
+			view.setExpressionFilePaths(paths);
+		else view.setExpressionFilePath(getIntent().getData().getPath());
+
 		view.setAvatarFilePath(getIntent().getStringExtra("com.kevinriehm.mobileface.AvatarPath"));
 	}
-}
 
+	protected void onPause() {
+		super.onPause();
+
+		view.onPause();
+	}
+
+	protected void onResume() {
+		super.onResume();
+
+		view.onResume();
+	}
+
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+
+		AssetCache.trimMemory(level);
+	}
+
+	// ExpressionView.LoadListener implementation
+
+	public void onLoadProgress(float progress) {
+		if(throbber != null)
+			throbber.setProgress((int) (progress*throbber.getMax()));
+	}
+
+	public void onLoadReady() {
+		if(throbber != null) {
+			((ViewGroup) throbber.getParent()).removeView(throbber);
+			throbber = null;
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package com.kevinriehm.mobileface;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
@@ -52,12 +51,15 @@ public class MainActivity extends Activity {
 	private static final int REQUEST_VIDEO_FILE      = 1;
 	private static final int REQUEST_EXPRESSION_FILE = 2;
 
+	// Models, read in place out of the APK's assets
+	private static final String faceModelPath  = "face.mytracker.binary";
+	private static final String faceParamsPath = "face.mytrackerparams.binary";
+	private static final String avatarPath     = "ci2cv.avatar.binary";
+
 	private VisualView visualView;
+	private StatsOverlay statsOverlay;
 
 	private String faceFilePath;
-	private String faceModelPath;
-	private String faceParamsPath;
-	private String avatarPath;
 
 	private String twitterConsumerKey;
 	private String twitterConsumerSecret;
@@ -75,14 +77,12 @@ public class MainActivity extends Activity {
 
 		setContentView(R.layout.main);
 
-		// Export some resources to actual files
-		faceModelPath = copyResourceToFile(R.raw.face_mytracker_binary,"face.mytracker.binary").getAbsolutePath();
-		faceParamsPath = copyResourceToFile(R.raw.face_mytrackerparams_binary,"face.mytrackerparams.binary").getAbsolutePath();
-		avatarPath = copyResourceToFile(R.raw.ci2cv_avatar_binary,"ci2cv.avatar.binary").getAbsolutePath();
-
 		// Set up the camera view
 		visualView = (VisualView) findViewById(R.id.visual_view);
 
+		statsOverlay = (StatsOverlay) findViewById(R.id.stats_overlay);
+		statsOverlay.setVisualView(visualView);
+
 		// Un-obfuscate the Twitter credentials
 		twitterConsumerKey = getObfuscatedData(R.raw.twitter_consumer_key);
 		twitterConsumerSecret = getObfuscatedData(R.raw.twitter_consumer_secret);
@@ -94,7 +94,8 @@ public class MainActivity extends Activity {
 	public void onPause() {
 		super.onPause();
 
-		visualView.disable();
+		// Coming back should not mean loading everything again
+		visualView.pause();
 	}
 
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -127,7 +128,7 @@ public class MainActivity extends Activity {
 					Log.i(TAG,"Expression file path: " + path);
 
 					// Abort if this isn't an expression file
-					if(!path.endsWith(".expression.json")) {
+					if(!path.endsWith(".expression.json") && !path.endsWith(".expression.bin")) {
 						Toast.makeText(this,R.string.not_expression_file,Toast.LENGTH_SHORT);
 						break;
 					}
@@ -178,6 +179,14 @@ public class MainActivity extends Activity {
 		visualView.disable();
 	}
 
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+
+		// The models are only kept around to make coming back quick
+		if(level >= TRIM_MEMORY_COMPLETE) visualView.disable();
+		if(level >= TRIM_MEMORY_MODERATE) VisualView.releaseModels();
+	}
+
 	// UI callbacks
 
 	public void tweetSelfie(View view) {
@@ -191,7 +200,17 @@ public class MainActivity extends Activity {
 			return;
 		}
 
-		if(!visualView.saveFaceImage(faceFile.getAbsolutePath())) { // Didn't find any faces?
+		// The face comes from the next frame
+		visualView.saveFaceImage(faceFile.getAbsolutePath(),new VisualView.FaceImageListener() {
+			public void onFaceImageSaved(String filename, boolean saved) {
+				tweetFace(new File(filename),saved);
+			}
+		});
+	}
+
+	// Tweet the face saved for tweetSelfie(), if there was one
+	private void tweetFace(File faceFile, boolean saved) {
+		if(!saved) { // Didn't find any faces?
 			AlertDialog.Builder builder = new AlertDialog.Builder(this);
 
 			builder.setTitle(R.string.no_faces_title);
@@ -261,6 +280,10 @@ public class MainActivity extends Activity {
 		visualView.calibrateExpression();
 	}
 
+	public void toggleStats(View view) {
+		statsOverlay.setVisibility(statsOverlay.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE);
+	}
+
 	public void viewExpression(View view) {
 		Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
 		intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
@@ -272,33 +295,6 @@ public class MainActivity extends Activity {
 
 	// Helper classes/functions
 
-	// Copy the data in resid to filename
-	private File copyResourceToFile(int resid, String filename) {
-		File file = null;
-
-		try {
-			InputStream resStream = getResources().openRawResource(resid);
-
-			file = new File(getDir("resources",Context.MODE_PRIVATE),filename);
-			FileOutputStream fileStream = new FileOutputStream(file);
-
-			try {
-				int numBytes;
-				byte[] buf = new byte[1024];
-				while((numBytes = resStream.read(buf)) > 0)
-					fileStream.write(buf,0,numBytes);
-			} finally {
-				resStream.close();
-				fileStream.close();
-			}
-		} catch(Exception e) {
-			Log.e(TAG,e.toString());
-			e.printStackTrace();
-		}
-
-		return file;
-	}
-
 	// De-obfuscate whatever data resid refers to
 	private String getObfuscatedData(int resid) {
 		String data = "";
@@ -306,9 +302,7 @@ public class MainActivity extends Activity {
 		InputStream stream = getResources().openRawResource(resid);
 
 		try {
-			byte buf[] = new byte[2];
-			while(stream.read(buf,0,2) == 2)
-				data += (char) (buf[0] ^ buf[1]);
+			data = RawResources.deobfuscate(stream);
 		} catch(Exception e) {
 			Log.e(TAG,e.toString());
 			e.printStackTrace();
@@ -0,0 +1,140 @@
+package com.kevinriehm.mobileface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+// Timings and counters from VisualView's native pipeline since it was last
+// enabled. Each stage has a histogram of how long it took, where bucket b
+// counts times of [2^b,2^(b+1)) microseconds and the last bucket also counts
+// anything longer.
+//
+// The worker writes them into a shared direct buffer of ints, laid out as
+// the STATS_* constants in visual_view.cpp say; these must match:
+//   int stage histograms[numStages][numBuckets]
+//   int face strengths[numFaceStrengths], from minFaceStrength up
+//   int detections, dropped captured frames, dropped tracked frames
+public final class PipelineStats {
+	public static final int STAGE_DECODE  = 0; // Demuxing and decoding video
+	public static final int STAGE_CONVERT = 1; // swscale to BGR or gray
+	public static final int STAGE_ORIENT  = 2; // The tracker's oriented gray image
+	public static final int STAGE_TRACK   = 3;
+	public static final int STAGE_COLOR   = 4; // The oriented color frame for the avatar
+	public static final int STAGE_ANIMATE = 5;
+	public static final int STAGE_BLIT    = 6; // Scaling and converting to RGBA
+	public static final int STAGE_PRESENT = 7; // Getting the frame onto the screen
+	public static final int numStages = 8;
+
+	public static final int numBuckets = 20;
+
+	// From the face being out of frame, through tracking failure, to the
+	// tracker's quality rating of 0 to 10
+	public static final int minFaceStrength = -2;
+	public static final int numFaceStrengths = 13;
+
+	private static final String[] stageNames = {
+		"decode", "convert", "orient", "track", "color", "animate", "blit", "present"
+	};
+
+	private static final int faceStrengthOffset = numStages*numBuckets;
+	private static final int detectionsOffset = faceStrengthOffset + numFaceStrengths;
+	private static final int droppedCapturedOffset = detectionsOffset + 1;
+	private static final int droppedTrackedOffset = droppedCapturedOffset + 1;
+	private static final int numInts = droppedTrackedOffset + 1;
+
+	private final int[] counts;
+
+	// Snapshot of buffer, which the worker may still be writing to
+	PipelineStats(ByteBuffer buffer) {
+		counts = new int[numInts];
+		buffer.asIntBuffer().get(counts);
+	}
+
+	static ByteBuffer allocateBuffer() {
+		return ByteBuffer.allocateDirect(4*numInts).order(ByteOrder.nativeOrder());
+	}
+
+	// Only while nothing is writing to buffer
+	static void clearBuffer(ByteBuffer buffer) {
+		IntBuffer ints = buffer.asIntBuffer();
+		while(ints.hasRemaining())
+			ints.put(0);
+	}
+
+	public static String getStageName(int stage) {
+		return stageNames[stage];
+	}
+
+	// How many times stage has run
+	public int getCount(int stage) {
+		int count = 0;
+		for(int b = 0; b < numBuckets; b++)
+			count += counts[stage*numBuckets + b];
+		return count;
+	}
+
+	public int getBucketCount(int stage, int bucket) {
+		return counts[stage*numBuckets + bucket];
+	}
+
+	// Upper bound, in milliseconds, of the bucket holding the given fraction
+	// of stage's times; 0 if it has not run
+	public float getPercentile(int stage, float fraction) {
+		int count = getCount(stage);
+		if(count == 0)
+			return 0;
+
+		int b = 0;
+		for(int seen = counts[stage*numBuckets]; b < numBuckets - 1 && seen < fraction*count; seen += counts[stage*numBuckets + b])
+			b++;
+
+		return (1 << b + 1)/1000f;
+	}
+
+	// How many tracked frames got strength
+	public int getFaceStrengthCount(int strength) {
+		return counts[faceStrengthOffset + strength - minFaceStrength];
+	}
+
+	// How many times the tracker had to look for a face from scratch
+	public int getDetections() {
+		return counts[detectionsOffset];
+	}
+
+	public int getDroppedCaptured() {
+		return counts[droppedCapturedOffset];
+	}
+
+	public int getDroppedTracked() {
+		return counts[droppedTrackedOffset];
+	}
+
+	// One line per stage that has run, then the counters
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+
+		for(int stage = 0; stage < numStages; stage++) {
+			int count = getCount(stage);
+			if(count == 0) continue;
+
+			builder.append(String.format("%-8s %6d  p50 %7.3f  p95 %7.3f ms\n",getStageName(stage),count,
+				getPercentile(stage,0.5f),getPercentile(stage,0.95f)));
+		}
+
+		int tracked = 0, strengths = 0, frames = 0;
+		for(int strength = minFaceStrength; strength < minFaceStrength + numFaceStrengths; strength++) {
+			int count = getFaceStrengthCount(strength);
+			frames += count;
+			if(strength >= 0) {
+				tracked += count;
+				strengths += strength*count;
+			}
+		}
+
+		builder.append(String.format("tracked %d/%d, mean strength %.1f, %d detections\n",tracked,frames,
+			tracked > 0 ? (float) strengths/tracked : 0f,getDetections()));
+		builder.append(String.format("dropped %d captured, %d tracked",getDroppedCaptured(),getDroppedTracked()));
+
+		return builder.toString();
+	}
+}
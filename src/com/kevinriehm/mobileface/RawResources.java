@@ -0,0 +1,61 @@
+package com.kevinriehm.mobileface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+// What the app does with the bytes of its raw resources, apart from where
+// they come from. Nothing here touches Android, so that it can be
+// benchmarked on a desktop JVM (see bench/jmh).
+final class RawResources {
+	private RawResources() {
+	}
+
+	// Undo obfuscate_twitter_keys.pl: each character is stored as a pair of
+	// bytes that XOR to it
+	static String deobfuscate(InputStream stream) throws IOException {
+		String data = "";
+
+		byte buf[] = new byte[2];
+		while(stream.read(buf,0,2) == 2)
+			data += (char) (buf[0] ^ buf[1]);
+
+		return data;
+	}
+
+	// Pull every integer out of "n_tri: N { a b c ... }"; the result is a
+	// direct buffer ready to hand to GL
+	static ShortBuffer parseTriangles(byte[] data) throws IOException {
+		ShortBuffer tris = null;
+
+		int value = -1;
+		for(int i = 0; i <= data.length; i++) {
+			int c = i < data.length ? data[i] : ' ';
+
+			if(c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : 10*value) + c - '0';
+				continue;
+			}
+
+			if(value < 0) continue;
+
+			if(tris == null) {
+				tris = ByteBuffer.allocateDirect(3*2*value)
+					.order(ByteOrder.nativeOrder())
+					.asShortBuffer();
+			} else if(tris.hasRemaining())
+				tris.put((short) value);
+
+			value = -1;
+		}
+
+		if(tris == null || tris.hasRemaining())
+			throw new IOException("truncated triangle list");
+
+		tris.rewind();
+
+		return tris;
+	}
+}
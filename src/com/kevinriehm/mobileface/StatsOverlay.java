@@ -0,0 +1,59 @@
+package com.kevinriehm.mobileface;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.View;
+import android.widget.TextView;
+
+// Shows a VisualView's PipelineStats on top of it, refreshed a couple of
+// times a second while the overlay is shown
+public class StatsOverlay extends TextView {
+	private static final int refreshMillis = 500;
+
+	private VisualView visualView;
+
+	private final Runnable refresh = new Runnable() {
+		public void run() {
+			if(visualView != null)
+				setText(visualView.getStats().toString());
+
+			postDelayed(this,refreshMillis);
+		}
+	};
+
+	public StatsOverlay(Context context, AttributeSet attrs) {
+		super(context,attrs);
+
+		setTypeface(Typeface.MONOSPACE);
+	}
+
+	public void setVisualView(VisualView view) {
+		visualView = view;
+	}
+
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+
+		updateRefresh();
+	}
+
+	protected void onDetachedFromWindow() {
+		removeCallbacks(refresh);
+
+		super.onDetachedFromWindow();
+	}
+
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		super.onVisibilityChanged(changedView,visibility);
+
+		updateRefresh();
+	}
+
+	// Only poll while someone can see the result
+	private void updateRefresh() {
+		removeCallbacks(refresh);
+		if(isShown())
+			post(refresh);
+	}
+}
@@ -1,16 +1,21 @@
 package com.kevinriehm.mobileface;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.OrientationEventListener;
 import android.view.Surface;
@@ -25,27 +30,104 @@ import org.opencv.core.Mat;
 public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 	private static final String TAG = "MobileFace-VisualView";
 
+	// The tracker works best near this preview size
+	private static final int previewWidth  = 640;
+	private static final int previewHeight = 480;
+
 	public static final int MODE_CAMERA = 0;
 	public static final int MODE_FILE   = 1;
+	public static final int MODE_BATCH  = 2;
+
+	// What goes into an expression recording: every 3D point, or just the
+	// tracker's shape and pose parameters plus its shape model
+	public static final int RECORD_POINTS     = 0;
+	public static final int RECORD_PARAMETERS = 1;
+
+	// What the processing pipeline does when a stage falls behind: wait for
+	// it, or throw away the oldest frame waiting for it (the freshest frame
+	// then always gets shown); videos are never dropped before tracking
+	public static final int PIPELINE_BLOCK       = 0;
+	public static final int PIPELINE_DROP_OLDEST = 1;
 
 	private int mode;
+	private int recordFormat;
+
+	private int pipelineDepth;
+	private int pipelinePolicy;
+
+	private int frameBudget;
 
 	private boolean enabled;
 	private boolean shouldEnable;
 
+	// A paused worker keeps its models and frames, but neither captures nor
+	// draws; pauseRequested is whether pause() asked for it, rather than the
+	// surface going away
+	private boolean paused;
+	private boolean pauseRequested;
+
+	// Relative paths name assets, which the worker reads in place
+	private final AssetManager assets;
 	private String modelPath;
 	private String paramsPath;
 	private String avatarPath;
 
 	private String videoPath;
 
+	private String[] videoPaths;
+	private int trackingThreads;
+	private BatchListener batchListener;
+
+	private int maxFaces;
+
 	private Bitmap bitmap;
 	private Matrix matrix;
 
 	private ByteBuffer data;
 
+	// The worker's timings and counters; see PipelineStats
+	private final ByteBuffer statsBuffer = PipelineStats.allocateBuffer();
+
+	// Face images asked for with saveFaceImage() that have not been answered
+	private final SparseArray<FaceImageRequest> faceImageRequests = new SparseArray<FaceImageRequest>();
+	private int nextFaceImageRequest;
+
 	private OrientationEventListener orientListener;
 
+	// Camera mode feeds the worker NV21 preview frames from these
+	private Camera camera;
+	private SurfaceTexture previewTexture;
+
+	// The worker pins every preview buffer it sees, so the same ones are
+	// handed to each camera until it is gone; held marks those it has not
+	// given back yet. Guarded by previewLock, as is camera being set.
+	private final Object previewLock = new Object();
+	private byte[][] previewBuffers;
+	private boolean[] previewBufferHeld;
+
+	// Hears about a batch started with processVideos(), on the UI thread
+	public interface BatchListener {
+		// video is the index into the batch; etaSeconds is a rough guess at
+		// the time left for the whole batch, or negative if unknown
+		public void onBatchProgress(int video, int numVideos, float progress, float etaSeconds);
+		public void onBatchFinished();
+	}
+
+	// Hears whether saveFaceImage() found a face to save, on the UI thread
+	public interface FaceImageListener {
+		public void onFaceImageSaved(String filename, boolean saved);
+	}
+
+	private static class FaceImageRequest {
+		final String filename;
+		final FaceImageListener listener;
+
+		FaceImageRequest(String _filename, FaceImageListener _listener) {
+			filename = _filename;
+			listener = _listener;
+		}
+	}
+
 	static {
 		System.loadLibrary("gnustl_shared");
 		System.loadLibrary("opencv_java");
@@ -54,6 +136,8 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 		System.loadLibrary("avformat");
 		System.loadLibrary("swscale");
 		System.loadLibrary("mobileface");
+
+		initIDs();
 	}
 
 	public VisualView(Context context, AttributeSet attrs) {
@@ -62,8 +146,15 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 		enabled = false;
 		shouldEnable = false;
 
+		assets = context.getAssets();
+
 		// Default to the camera
 		setMode(MODE_CAMERA);
+		setRecordFormat(RECORD_POINTS);
+		setPipeline(2,PIPELINE_DROP_OLDEST);
+		setTrackingThreads(Runtime.getRuntime().availableProcessors());
+		setFrameBudget(33);
+		setMaxFaces(1);
 
 		// Get notifications about the surface
 		getHolder().addCallback(this);
@@ -93,6 +184,43 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 		mode = _mode;
 	}
 
+	public void setRecordFormat(int format) {
+		recordFormat = format;
+	}
+
+	// Frames that may wait between each pair of stages; takes effect the
+	// next time the view is enabled
+	public void setPipeline(int depth, int policy) {
+		pipelineDepth = Math.max(1,depth);
+		pipelinePolicy = policy;
+	}
+
+	// Milliseconds each frame may take to track before tracking gives up
+	// some quality (crop, lighter parameters, lower resolution) to keep up;
+	// 0 always tracks at full quality. Batches ignore it. Takes effect the
+	// next time the view is enabled.
+	public void setFrameBudget(int milliseconds) {
+		frameBudget = Math.max(0,milliseconds);
+	}
+
+	// How many trackers a batch may split each video between; takes effect
+	// the next time the view is enabled
+	public void setTrackingThreads(int threads) {
+		trackingThreads = Math.max(1,threads);
+	}
+
+	// How many faces to track at once. More than one tracks each with its
+	// own lightweight tracker on the same models, spread over the tracking
+	// threads, and gives every recorded frame a "faces" array with an id
+	// for each face; the avatar still only goes on the face found first.
+	// Batches are then not split between trackers. Takes effect the next
+	// time the view is enabled.
+	public void setMaxFaces(int faces) {
+		maxFaces = Math.max(1,faces);
+	}
+
+	// Models are files, or assets if their paths are relative
+
 	public void setModelPath(String path) {
 		modelPath = path;
 	}
@@ -113,27 +241,48 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 
 	// Other public stuff
 
+	// Track each video in turn without showing anything, writing out their
+	// expressions as MODE_FILE would; replaces whatever the view was doing
+	public void processVideos(String[] paths, BatchListener listener) {
+		disable();
+
+		mode = MODE_BATCH;
+		videoPaths = paths.clone();
+		batchListener = listener;
+
+		enable();
+	}
+
 	public void enable() {
 		Log.i(TAG,"enable()");
 
-		// No reason to repeat ourselves ourselves
-		if(enabled) return;
+		// No reason to repeat ourselves ourselves, but maybe to carry on
+		if(enabled) {
+			resume();
+			return;
+		}
 
 		// Still be paranoid, though
 		disable();
 
-		if(bitmap == null) {
+		// Batches draw nothing, so they do not need the surface
+		if(bitmap == null && mode != MODE_BATCH) {
 			Log.e(TAG,"enable() called before surface creation");
 			shouldEnable = true;
 			return;
 		}
 
 		// Now do the actual setup
-		spawnWorker(mode,bitmap);
+		PipelineStats.clearBuffer(statsBuffer);
+		spawnWorker(mode,bitmap,getHolder().getSurface());
 		setViewOrientation(getDeviceOrientation());
 
+		if(mode == MODE_CAMERA) startCamera();
+
 		enabled = true;
 		shouldEnable = false;
+		paused = false;
+		pauseRequested = false;
 	}
 
 	public void disable() {
@@ -141,14 +290,86 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 
 		if(!enabled) return;
 
+		// The worker may hand buffers back to the camera until it is gone
 		terminateWorker();
+		stopCamera();
 
 		enabled = false;
+		paused = false;
+		pauseRequested = false;
+
+		synchronized(previewLock) {
+			previewBuffers = null;
+			previewBufferHeld = null;
+		}
+
+		// Nothing is left to answer these
+		int[] requests;
+		synchronized(faceImageRequests) {
+			requests = new int[faceImageRequests.size()];
+			for(int i = 0; i < requests.length; i++)
+				requests[i] = faceImageRequests.keyAt(i);
+		}
+		for(int request : requests)
+			reportFaceImage(request,false);
+	}
+
+	// Stop the camera and drawing, but keep the worker and everything it has
+	// loaded, so that resume() is quick; batches carry on regardless
+	public void pause() {
+		Log.i(TAG,"pause()");
+
+		if(!enabled || mode == MODE_BATCH) return;
+
+		pauseRequested = true;
+		park();
+	}
+
+	// Carry on after pause(), or enable() if there is nothing to carry on
+	public void resume() {
+		Log.i(TAG,"resume()");
+
+		if(!enabled) {
+			enable();
+			return;
+		}
+
+		pauseRequested = false;
+		unpark();
+	}
+
+	// Frees the tracker and avatar models kept from earlier workers; the
+	// next enable() loads them again
+	public static native void releaseModels();
+
+	// What the pipeline has been doing since the view was last enabled; cheap
+	// enough to call a few times a second
+	public PipelineStats getStats() {
+		return new PipelineStats(statsBuffer);
 	}
 
+	// These are carried out by the worker between frames; call them from
+	// the UI thread only
+
 	public native void resetTracking();
-	public native boolean calibrateExpression();
-	public native boolean saveFaceImage(String filename);
+
+	// The avatar takes the next face it is shown as the neutral expression
+	public native void calibrateExpression();
+
+	// Save the face in the next frame to filename; listener hears whether
+	// there was one to save
+	public void saveFaceImage(String filename, FaceImageListener listener) {
+		int request;
+
+		synchronized(faceImageRequests) {
+			request = nextFaceImageRequest++;
+			faceImageRequests.put(request,new FaceImageRequest(filename,listener));
+		}
+
+		// Batches show nothing, so there is no face to save
+		if(!enabled || mode == MODE_BATCH || !queueSaveFaceImage(request,filename))
+			reportFaceImage(request,false);
+	}
 
 	// SurfaceView.Callback implementation
 
@@ -159,26 +380,47 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
 		Log.i(TAG,"surfaceChanged()");
 
-		boolean reenable = enabled || shouldEnable;
-
-		if(reenable) disable();
-
-		if(bitmap != null) bitmap.recycle();
+		Bitmap oldBitmap = bitmap;
 		bitmap = Bitmap.createBitmap(width,height,Bitmap.Config.ARGB_8888);
 
-		if(reenable) enable();
+		// A running worker just moves over to the new surface; a batch
+		// carries on regardless of it
+		if(enabled && mode != MODE_BATCH) {
+			park();
+			setWorkerSurface(bitmap,holder.getSurface());
+			if(!pauseRequested) unpark();
+		} else if(shouldEnable) enable();
+
+		if(oldBitmap != null) oldBitmap.recycle();
 	}
 
 	public void surfaceDestroyed(SurfaceHolder holder) {
 		Log.i(TAG,"surfaceDestroyed()");
 
-		disable();
+		// Wait for the next surface with the worker parked
+		if(enabled && mode != MODE_BATCH) {
+			park();
+			setWorkerSurface(null,null);
+		}
+
+		if(bitmap != null) bitmap.recycle();
+		bitmap = null;
 	}
 
 	// JNI declarations
 
-	private native void spawnWorker(int mode, Bitmap bitmap);
+	// The worker draws straight to surface if it can, and through bitmap and
+	// blitBitmap() if it cannot
+	private native void spawnWorker(int mode, Bitmap bitmap, Surface surface);
 	private native void terminateWorker();
+	private native void pauseWorker();
+	private native void resumeWorker();
+	private native void setWorkerSurface(Bitmap bitmap, Surface surface);
+	private native void submitPreviewFrame(byte[] frame, int width, int height);
+	private native boolean queueSaveFaceImage(int request, String filename);
+
+	// Caches the fields and methods the native side uses
+	private static native void initIDs();
 
 	// Etc.
 
@@ -192,6 +434,171 @@ public class VisualView extends SurfaceView implements SurfaceHolder.Callback {
 		getHolder().unlockCanvasAndPost(canvas);
 	}
 
+	// Stop capturing and drawing; the worker still holds onto everything
+	private void park() {
+		if(paused) return;
+
+		pauseWorker();
+		stopCamera();
+
+		paused = true;
+	}
+
+	// Only once there is a surface to draw on again
+	private void unpark() {
+		if(!paused || bitmap == null) return;
+
+		resumeWorker();
+		setViewOrientation(getDeviceOrientation());
+
+		if(mode == MODE_CAMERA) startCamera();
+
+		paused = false;
+	}
+
+	// Called from the worker thread; a negative video means the batch is done
+	private void reportBatchProgress(final int video, final int numVideos, final float progress, final float eta) {
+		final BatchListener listener = batchListener;
+		if(listener == null) return;
+
+		post(new Runnable() {
+			public void run() {
+				if(video < 0) listener.onBatchFinished();
+				else listener.onBatchProgress(video,numVideos,progress,eta);
+			}
+		});
+	}
+
+	// Called from the worker, or from disable() for requests it never got to
+	private void reportFaceImage(int request, final boolean saved) {
+		final FaceImageRequest face;
+
+		synchronized(faceImageRequests) {
+			face = faceImageRequests.get(request);
+			faceImageRequests.remove(request);
+		}
+
+		if(face == null) return;
+
+		post(new Runnable() {
+			public void run() {
+				face.listener.onFaceImageSaved(face.filename,saved);
+			}
+		});
+	}
+
+	// Preview frames arrive in a pool of buffers that the worker hands back
+	// once it is done with them, so none are allocated per frame
+	private void startCamera() {
+		Camera.CameraInfo info = new Camera.CameraInfo();
+		int id = 0;
+
+		for(int i = 0; i < Camera.getNumberOfCameras(); i++) {
+			Camera.getCameraInfo(i,info);
+			if(info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+				id = i;
+				break;
+			}
+		}
+
+		Camera opened;
+		try {
+			opened = Camera.open(id);
+		} catch(RuntimeException e) {
+			Log.e(TAG,e.toString());
+			e.printStackTrace();
+			return;
+		}
+
+		Camera.Parameters params = opened.getParameters();
+
+		// Take the supported size closest to what the tracker wants
+		Camera.Size best = null;
+		List<Camera.Size> sizes = params.getSupportedPreviewSizes();
+		for(Camera.Size size : sizes) {
+			if(best == null || Math.abs(size.width*size.height - previewWidth*previewHeight)
+				< Math.abs(best.width*best.height - previewWidth*previewHeight))
+				best = size;
+		}
+
+		params.setPreviewSize(best.width,best.height);
+		params.setPreviewFormat(ImageFormat.NV21);
+		opened.setParameters(params);
+
+		final int width = best.width;
+		final int height = best.height;
+
+		int bufferSize = width*height*ImageFormat.getBitsPerPixel(ImageFormat.NV21)/8;
+
+		synchronized(previewLock) {
+			// Enough for every pipeline slot, every stage and the camera itself
+			if(previewBuffers == null || previewBuffers[0].length != bufferSize) {
+				previewBuffers = new byte[2*pipelineDepth + 4][bufferSize];
+				previewBufferHeld = new boolean[previewBuffers.length];
+			}
+
+			// The rest come back through recyclePreviewBuffer()
+			camera = opened;
+			for(int i = 0; i < previewBuffers.length; i++) {
+				if(!previewBufferHeld[i])
+					camera.addCallbackBuffer(previewBuffers[i]);
+			}
+		}
+
+		camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
+			public void onPreviewFrame(byte[] frame, Camera camera) {
+				setPreviewBufferHeld(frame,true);
+				submitPreviewFrame(frame,width,height);
+			}
+		});
+
+		try {
+			// Preview needs somewhere to go, even though nothing shows it
+			previewTexture = new SurfaceTexture(0);
+			camera.setPreviewTexture(previewTexture);
+			camera.startPreview();
+		} catch(IOException e) {
+			Log.e(TAG,e.toString());
+			e.printStackTrace();
+			stopCamera();
+		}
+	}
+
+	private void stopCamera() {
+		if(camera == null) return;
+
+		Camera stopped = camera;
+		synchronized(previewLock) {
+			camera = null;
+		}
+
+		stopped.setPreviewCallbackWithBuffer(null);
+		stopped.stopPreview();
+		stopped.release();
+
+		if(previewTexture != null) previewTexture.release();
+		previewTexture = null;
+	}
+
+	// Called from the worker once it is done with a preview buffer
+	private void recyclePreviewBuffer(byte[] buffer) {
+		synchronized(previewLock) {
+			setPreviewBufferHeld(buffer,false);
+			if(camera != null) camera.addCallbackBuffer(buffer);
+		}
+	}
+
+	private void setPreviewBufferHeld(byte[] buffer, boolean held) {
+		synchronized(previewLock) {
+			if(previewBuffers == null) return;
+
+			for(int i = 0; i < previewBuffers.length; i++) {
+				if(previewBuffers[i] == buffer)
+					previewBufferHeld[i] = held;
+			}
+		}
+	}
+
 	// Accumulate camera and device orientation
 	private int getDeviceOrientation() {
 		WindowManager windowManager = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);